@@ -0,0 +1,102 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares throughput of blocking and asynchronous storage of offline messages. Requires running MongoDB instance
+ * with URI passed as {@code -Dtigase.mongodb.uri=mongodb://localhost/tigase_bench}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncThroughputBenchmark {
+
+	private static final String URI_PROPERTY = "tigase.mongodb.uri";
+
+	@Param({"1", "16", "128"})
+	private int outstanding;
+	@Param({"false", "true"})
+	private boolean reactive;
+
+	private MongoDataSource dataSource;
+	private JID from;
+	private Element msg;
+	private final AtomicLong recipientCounter = new AtomicLong();
+	private MongoMsgRepository repository;
+
+	@Setup
+	public void setup() throws Exception {
+		String uri = System.getProperty(URI_PROPERTY);
+		if (uri == null) {
+			throw new IllegalStateException("MongoDB URI not set, use -D" + URI_PROPERTY + "=<uri>");
+		}
+		dataSource = reactive ? new MongoReactiveDataSource() : new MongoDataSource();
+		dataSource.initialize(uri);
+		repository = new MongoMsgRepository();
+		repository.setDataSource(dataSource);
+		from = JID.jidInstanceNS("sender@example.com/res");
+		msg = MsgRepositoryBenchmark.createMessage(from.toString(), "recipient@example.com", 256);
+	}
+
+	@TearDown
+	public void tearDown() {
+		dataSource.getDatabase().getCollection("tig_offline_messages").drop();
+		dataSource.beforeUnregister();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(128)
+	public void storeBlocking() throws Exception {
+		for (int i = 0; i < 128; i++) {
+			repository.storeMessage(from, nextRecipient(), null, msg, null);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(128)
+	public void storeAsync() {
+		CompletableFuture<?>[] window = new CompletableFuture<?>[outstanding];
+		for (int i = 0; i < 128; i++) {
+			int slot = i % outstanding;
+			if (window[slot] != null) {
+				window[slot].join();
+			}
+			window[slot] = repository.storeMessageAsync(from, nextRecipient(), null, msg, null);
+		}
+		CompletableFuture.allOf(Arrays.stream(window).filter(Objects::nonNull).toArray(CompletableFuture[]::new))
+				.join();
+	}
+
+	// every message goes to different recipient so that offline messages limit is never hit
+	private JID nextRecipient() {
+		return JID.jidInstanceNS("recipient-" + recipientCounter.incrementAndGet() + "@example.com");
+	}
+}
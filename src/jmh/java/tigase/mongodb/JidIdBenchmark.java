@@ -0,0 +1,74 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.xmpp.jid.BareJID;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares calculation of JID ids as it was done by each repository with {@link JidIdCodec}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JidIdBenchmark {
+
+	@Param({"10", "100000"})
+	private int distinctJids;
+	private BareJID[] jids;
+	private int pos = 0;
+
+	@Setup
+	public void setup() {
+		jids = new BareJID[distinctJids];
+		for (int i = 0; i < distinctJids; i++) {
+			jids[i] = BareJID.bareJIDInstanceNS("User-" + i + "@Example.com");
+		}
+	}
+
+	@Benchmark
+	public byte[] legacyDigest() throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		return md.digest(next().toString().toLowerCase().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Benchmark
+	public byte[] codecUncached() {
+		return JidIdCodec.generateId(next().toString());
+	}
+
+	@Benchmark
+	public byte[] codecCached() {
+		return JidIdCodec.generateId(next());
+	}
+
+	private BareJID next() {
+		if (++pos >= jids.length) {
+			pos = 0;
+		}
+		return jids[pos];
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.*;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+import tigase.xmpp.jid.BareJID;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU bound parts of storing and loading offline messages by {@link MongoMsgRepository}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MsgRepositoryBenchmark {
+
+	@Param({"16", "1024"})
+	private int bodySize;
+	private Codec<Document> documentCodec;
+	private byte[] encodedRecord;
+	private BareJID from;
+	private byte[] fromHash;
+	private Element msg;
+	private SimpleParser parser;
+	private Codec<OfflineMessageRecord> recordCodec;
+	private MongoMsgRepository repository;
+	private String storedMsg;
+	private BareJID to;
+	private byte[] toHash;
+
+	static Element createMessage(String from, String to, int bodySize) {
+		StringBuilder sb = new StringBuilder(bodySize);
+		while (sb.length() < bodySize) {
+			sb.append("Lorem ipsum & <dolor> sit amet ");
+		}
+		sb.setLength(bodySize);
+		Element msg = new Element("message", new String[]{"from", "to", "type", "id"},
+		                          new String[]{from, to, "chat", "msg-1234567890"});
+		msg.addChild(new Element("body", sb.toString()));
+		msg.addChild(new Element("delay", new String[]{"xmlns", "stamp"},
+		                         new String[]{"urn:xmpp:delay", "2026-10-18T12:00:00Z"}));
+		return msg;
+	}
+
+	@Setup
+	public void setup() {
+		from = BareJID.bareJIDInstanceNS("sender@example.com");
+		to = BareJID.bareJIDInstanceNS("recipient@example.com");
+		fromHash = JidIdCodec.generateId(from);
+		toHash = JidIdCodec.generateId(to);
+		msg = createMessage(from + "/res", to.toString(), bodySize);
+		storedMsg = msg.toString();
+		parser = SingletonFactory.getParserInstance();
+		repository = new MongoMsgRepository();
+
+		CodecRegistry registry = CodecRegistries.fromRegistries(
+				CodecRegistries.fromProviders(new RecordCodecProvider()), MongoClientSettings.getDefaultCodecRegistry());
+		documentCodec = registry.get(Document.class);
+		recordCodec = registry.get(OfflineMessageRecord.class);
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		recordCodec.encode(new BsonBinaryWriter(buffer),
+		                   repository.createMessageRecord(fromHash, toHash, from, to, new Date(), msg),
+		                   EncoderContext.builder().build());
+		encodedRecord = buffer.toByteArray();
+	}
+
+	@Benchmark
+	public OfflineMessageRecord createMessageRecord() {
+		return repository.createMessageRecord(fromHash, toHash, from, to, new Date(), msg);
+	}
+
+	@Benchmark
+	public Document decodeDocument() {
+		return documentCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(encodedRecord)),
+		                            DecoderContext.builder().build());
+	}
+
+	@Benchmark
+	public Element decodeDocumentAndParse() {
+		Document dto = decodeDocument();
+		String msgStr = dto.getString("message");
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, msgStr.toCharArray(), 0, msgStr.length());
+		return domHandler.getParsedElements().poll();
+	}
+
+	/**
+	 * Decodes record together with parsing of its XML payload.
+	 */
+	@Benchmark
+	public OfflineMessageRecord decodeRecord() {
+		return recordCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(encodedRecord)),
+		                          DecoderContext.builder().build());
+	}
+
+	@Benchmark
+	public String elementToString() {
+		return msg.toString();
+	}
+
+	@Benchmark
+	public Element parseStoredMessage() {
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, storedMsg.toCharArray(), 0, storedMsg.length());
+		Queue<Element> elems = domHandler.getParsedElements();
+		return elems.poll();
+	}
+}
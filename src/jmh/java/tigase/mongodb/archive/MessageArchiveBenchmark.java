@@ -0,0 +1,85 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb.archive;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import tigase.db.TigaseDBException;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU bound parts of archiving and querying messages by {@link MongoMessageArchiveRepository}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageArchiveBenchmark {
+
+	@Param({"16", "1024"})
+	private int bodySize;
+	private BareJID buddy;
+	private Element msg;
+	private BareJID owner;
+	private SimpleParser parser;
+	private MongoMessageArchiveRepository repository;
+	private String storedMsg;
+
+	@Setup
+	public void setup() {
+		owner = BareJID.bareJIDInstanceNS("owner@example.com");
+		buddy = BareJID.bareJIDInstanceNS("buddy@example.com");
+		StringBuilder sb = new StringBuilder(bodySize);
+		while (sb.length() < bodySize) {
+			sb.append("Lorem ipsum & <dolor> sit amet ");
+		}
+		sb.setLength(bodySize);
+		msg = new Element("message", new String[]{"from", "to", "type", "id"},
+		                  new String[]{buddy + "/res", owner.toString(), "chat", "msg-1234567890"});
+		msg.addChild(new Element("body", sb.toString()));
+		storedMsg = msg.toString();
+		parser = SingletonFactory.getParserInstance();
+		repository = new MongoMessageArchiveRepository();
+	}
+
+	@Benchmark
+	public Document createMessageDocument() throws TigaseDBException {
+		return repository.createMessageDocument(owner, buddy, new Date(), msg, UUID.randomUUID(), null,
+		                                        Collections.emptySet());
+	}
+
+	@Benchmark
+	public Element parseArchivedMessage() {
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, storedMsg.toCharArray(), 0, storedMsg.length());
+		Queue<Element> queue = domHandler.getParsedElements();
+		return queue.poll();
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb.pubsub;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import tigase.xml.Element;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU bound parts of writing PubSub items by {@link PubSubDAOMongo}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PubSubItemBenchmark {
+
+	private Element item;
+	private PubSubDAOMongo repository;
+	private String uuid;
+
+	@Setup
+	public void setup() {
+		item = new Element("item", new String[]{"id"}, new String[]{"current"});
+		Element geoloc = new Element("geoloc", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/geoloc"});
+		geoloc.addChild(new Element("lat", "45.44"));
+		geoloc.addChild(new Element("lon", "12.33"));
+		geoloc.addChild(new Element("text", "Venice, Italy"));
+		item.addChild(geoloc);
+		uuid = UUID.randomUUID().toString();
+		repository = new PubSubDAOMongo();
+	}
+
+	@Benchmark
+	public Document createItemUpdate() {
+		return repository.createItemUpdate("publisher@example.com", item, uuid);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import tigase.stats.StatisticsList;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+
+/**
+ * Simple size bounded concurrent cache.
+ * <p>
+ * When number of entries exceeds configured limit a part of entries is evicted (in hash order, so it is an
+ * approximation of random eviction). Cache keeps counters of hits, misses and evictions which may be reported using
+ * {@link #getStatistics(String, String, StatisticsList)}.
+ *
+ * @author andrzej
+ */
+public class BoundedCache<K, V> {
+
+	private static final int EVICTION_FACTOR = 10;
+
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<>();
+	private final LongAdder misses = new LongAdder();
+	private volatile int maxSize;
+
+	public BoundedCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public void clear() {
+		map.clear();
+	}
+
+	public V get(K key) {
+		V value = map.get(key);
+		if (value == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return value;
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		if (maxSize <= 0) {
+			map.clear();
+		} else {
+			ensureCapacity();
+		}
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public void getStatistics(String compName, String prefix, StatisticsList list) {
+		list.add(compName, prefix + " cache size", map.size(), Level.FINE);
+		list.add(compName, prefix + " cache hits", getHits(), Level.FINE);
+		list.add(compName, prefix + " cache misses", getMisses(), Level.FINE);
+		list.add(compName, prefix + " cache evictions", getEvictions(), Level.FINER);
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Returns cached value without updating counters of hits and misses.
+	 */
+	public V peek(K key) {
+		return map.get(key);
+	}
+
+	public void put(K key, V value) {
+		if (maxSize <= 0) {
+			return;
+		}
+		map.put(key, value);
+		ensureCapacity();
+	}
+
+	/**
+	 * Caches value if there is no value for the key and returns previously cached value (or <code>null</code>).
+	 */
+	public V putIfAbsent(K key, V value) {
+		if (maxSize <= 0) {
+			return null;
+		}
+		V existing = map.putIfAbsent(key, value);
+		if (existing == null) {
+			ensureCapacity();
+		}
+		return existing;
+	}
+
+	public V remove(K key) {
+		return map.remove(key);
+	}
+
+	public void removeIf(Predicate<K> predicate) {
+		map.keySet().removeIf(predicate);
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	private void ensureCapacity() {
+		int limit = maxSize;
+		if (map.size() <= limit) {
+			return;
+		}
+		int toRemove = map.size() - limit + Math.max(1, limit / EVICTION_FACTOR);
+		Iterator<K> it = map.keySet().iterator();
+		while (toRemove > 0 && it.hasNext()) {
+			it.next();
+			it.remove();
+			toRemove--;
+			evictions.increment();
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import tigase.auth.credentials.Credentials;
+import tigase.db.AuthRepository;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static tigase.db.AuthRepositoryImpl.ACCOUNT_STATUS_KEY;
+
+/**
+ * Imports users with their credentials and data in batches.
+ * <p>
+ * Credentials of a batch are encoded in parallel (while previous batch is written) and users, credentials and data are
+ * written using unordered bulk writes. All writes are upserts which modify only imported fields (account status of
+ * an existing user is kept), so a batch may be safely imported again and existing users may be imported. If name of a
+ * checkpoint is passed, number of imported users is stored after each batch and import started again with the same
+ * checkpoint and the same sequence of users skips users imported before.
+ *
+ * @author andrzej
+ */
+public class BulkUserImporter {
+
+	protected static final String CHECKPOINTS_COLLECTION = "tig_import_checkpoints";
+	private static final Logger log = Logger.getLogger(BulkUserImporter.class.getCanonicalName());
+
+	private final int batchSize;
+	private final MongoCollection<Document> checkpointsCollection;
+	private final MongoCollection<Document> credentialsCollection;
+	private final MongoCollection<Document> dataCollection;
+	private final boolean embeddedUserData;
+	private final BiFunction<BareJID, String, List<String[]>> encoder;
+	private final Consumer<List<BareJID>> importedListener;
+	private final LargeValues largeValues;
+	private final Collection<String> mechanisms;
+	private final ForkJoinPool pool;
+	private final MongoCollection<Document> usersCollection;
+	private final UsersCounter usersCounter;
+
+	/**
+	 * Creates importer writing data of users to <code>dataCollection</code>, which is <code>tig_user_data</code> if
+	 * <code>embeddedUserData</code> is set or <code>tig_nodes</code> otherwise. Fields of mechanisms (from
+	 * <code>mechanisms</code>) not encoded for a new password are removed from existing credentials. Counters of
+	 * users are incremented by number of created users and listener is called with users of each imported batch.
+	 */
+	public BulkUserImporter(MongoCollection<Document> usersCollection, UsersCounter usersCounter,
+	                        MongoCollection<Document> credentialsCollection,
+	                        MongoCollection<Document> dataCollection, boolean embeddedUserData,
+	                        MongoCollection<Document> checkpointsCollection,
+	                        BiFunction<BareJID, String, List<String[]>> encoder, Collection<String> mechanisms,
+	                        LargeValues largeValues, Consumer<List<BareJID>> importedListener, ForkJoinPool pool,
+	                        int batchSize) {
+		this.usersCollection = usersCollection;
+		this.usersCounter = usersCounter;
+		this.credentialsCollection = credentialsCollection;
+		this.dataCollection = dataCollection;
+		this.embeddedUserData = embeddedUserData;
+		this.checkpointsCollection = checkpointsCollection;
+		this.encoder = encoder;
+		this.mechanisms = mechanisms;
+		this.largeValues = largeValues;
+		this.importedListener = importedListener;
+		this.pool = pool;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Imports users and returns number of imported users (including users imported before reaching the checkpoint).
+	 * Progress listener (if not <code>null</code>) is called with number of imported users after each batch.
+	 */
+	public long importUsers(Iterator<ImportedUser> users, String checkpoint, LongConsumer progress)
+			throws TigaseDBException {
+		try {
+			long imported = checkpoint == null ? 0 : loadCheckpoint(checkpoint);
+			for (long i = 0; i < imported && users.hasNext(); i++) {
+				users.next();
+			}
+			log.log(Level.INFO, "Importing users, skipped {0} users imported before", imported);
+
+			CompletableFuture<List<PreparedUser>> pending = prepare(nextBatch(users));
+			while (pending != null) {
+				CompletableFuture<List<PreparedUser>> next = prepare(nextBatch(users));
+				List<PreparedUser> prepared = pending.join();
+				write(prepared);
+				imported += prepared.size();
+				if (checkpoint != null) {
+					saveCheckpoint(checkpoint, imported);
+				}
+				if (progress != null) {
+					progress.accept(imported);
+				}
+				pending = next;
+			}
+			log.log(Level.INFO, "Imported {0} users", imported);
+			return imported;
+		} catch (CompletionException ex) {
+			throw new TigaseDBException("Problem importing users", ex.getCause() == null ? ex : ex.getCause());
+		} catch (MongoException ex) {
+			throw new TigaseDBException("Problem importing users", ex);
+		}
+	}
+
+	private long loadCheckpoint(String checkpoint) {
+		Document doc = checkpointsCollection.find(Filters.eq("_id", checkpoint)).first();
+		return doc == null ? 0 : doc.get("position", Number.class).longValue();
+	}
+
+	private List<ImportedUser> nextBatch(Iterator<ImportedUser> users) {
+		List<ImportedUser> batch = new ArrayList<>(batchSize);
+		while (batch.size() < batchSize && users.hasNext()) {
+			batch.add(users.next());
+		}
+		return batch;
+	}
+
+	private CompletableFuture<List<PreparedUser>> prepare(List<ImportedUser> batch) {
+		if (batch.isEmpty()) {
+			return null;
+		}
+		return CompletableFuture.supplyAsync(
+				() -> batch.parallelStream().map(this::prepare).collect(Collectors.toList()), pool);
+	}
+
+	PreparedUser prepare(ImportedUser user) {
+		byte[] uid = JidIdCodec.generateId(user.jid);
+		PreparedUser prepared = new PreparedUser();
+		prepared.jid = user.jid;
+		Bson userUpdate = Updates.combine(Updates.setOnInsert(MongoRepository.ID_KEY, user.jid.toString()),
+		                                  Updates.setOnInsert(MongoRepository.DOMAIN_KEY, user.jid.getDomain()));
+		prepared.user = new UpdateOneModel<>(Filters.eq("_id", uid), userUpdate, new UpdateOptions().upsert(true));
+		if (user.password != null) {
+			prepared.credentials = new UpdateOneModel<>(
+					Filters.and(Filters.eq("uid", uid), Filters.eq("username", Credentials.DEFAULT_CREDENTIAL_ID)),
+					credentialsUpdate(encoder.apply(user.jid, user.password), mechanisms,
+					                  AuthRepository.AccountStatus.active),
+					new UpdateOptions().upsert(true));
+		}
+		if (!user.data.isEmpty()) {
+			prepared.data = embeddedUserData ? prepareEmbeddedData(uid, user) : prepareNodesData(uid, user);
+		}
+		return prepared;
+	}
+
+	/**
+	 * Returns update setting encoded credentials, removing other mechanisms and setting account status of a new
+	 * credential (account status of an existing credential is kept).
+	 */
+	protected static Bson credentialsUpdate(List<String[]> credentials, Collection<String> mechanisms,
+	                                        AuthRepository.AccountStatus newAccountStatus) {
+		List<Bson> updates = new ArrayList<>();
+		Set<String> encoded = new HashSet<>();
+		for (String[] pair : credentials) {
+			encoded.add(pair[0]);
+			updates.add(Updates.set(pair[0], pair[1]));
+		}
+		for (String mechanism : mechanisms) {
+			if (!encoded.contains(mechanism)) {
+				updates.add(Updates.unset(mechanism));
+			}
+		}
+		updates.add(Updates.setOnInsert(ACCOUNT_STATUS_KEY, newAccountStatus.name()));
+		return Updates.combine(updates);
+	}
+
+	/**
+	 * Counts users created (upserted) by a bulk write per domain.
+	 */
+	static Map<String, Long> countCreated(List<BulkWriteUpsert> upserts, List<BareJID> jids) {
+		Map<String, Long> created = new HashMap<>();
+		for (BulkWriteUpsert upsert : upserts) {
+			created.merge(jids.get(upsert.getIndex()).getDomain(), 1L, Long::sum);
+		}
+		return created;
+	}
+
+	private List<WriteModel<Document>> prepareEmbeddedData(byte[] uid, ImportedUser user) {
+		Document set = new Document();
+		for (Map.Entry<String, Map<String, String>> node : user.data.entrySet()) {
+			for (Map.Entry<String, String> e : node.getValue().entrySet()) {
+				set.append(EmbeddedUserDataStore.fieldName(node.getKey(), e.getKey()),
+				           largeValues.encode(uid, node.getKey(), e.getKey(), e.getValue()));
+			}
+		}
+		return Collections.singletonList(new UpdateOneModel<>(Filters.eq("_id", uid), new Document("$set", set),
+		                                                      new UpdateOptions().upsert(true)));
+	}
+
+	private List<WriteModel<Document>> prepareNodesData(byte[] uid, ImportedUser user) {
+		List<WriteModel<Document>> writes = new ArrayList<>();
+		for (Map.Entry<String, Map<String, String>> entry : user.data.entrySet()) {
+			String subnode = entry.getKey();
+			for (Map.Entry<String, String> e : entry.getValue().entrySet()) {
+				Bson node = subnode == null ? Filters.exists("node", false) : Filters.eq("node", subnode);
+				Bson filter = Filters.and(Filters.eq("uid", uid), node, Filters.eq("key", e.getKey()));
+				Document dto = new Document("uid", uid).append("key", e.getKey())
+						.append("value", largeValues.encode(uid, subnode, e.getKey(), e.getValue()));
+				if (subnode != null) {
+					dto.append("node", subnode).append(NodePaths.PATH_KEY, NodePaths.of(subnode));
+				}
+				writes.add(new UpdateOneModel<>(filter, new Document("$set", dto), new UpdateOptions().upsert(true)));
+			}
+		}
+		return writes;
+	}
+
+	private void saveCheckpoint(String checkpoint, long position) {
+		checkpointsCollection.updateOne(Filters.eq("_id", checkpoint),
+		                                Updates.combine(Updates.set("position", position),
+		                                                Updates.currentDate("updated")),
+		                                new UpdateOptions().upsert(true));
+	}
+
+	private void write(List<PreparedUser> prepared) {
+		List<WriteModel<Document>> users = new ArrayList<>(prepared.size());
+		List<WriteModel<Document>> credentials = new ArrayList<>(prepared.size());
+		List<WriteModel<Document>> data = new ArrayList<>();
+		List<BareJID> jids = new ArrayList<>(prepared.size());
+		for (PreparedUser user : prepared) {
+			jids.add(user.jid);
+			users.add(user.user);
+			if (user.credentials != null) {
+				credentials.add(user.credentials);
+			}
+			if (user.data != null) {
+				data.addAll(user.data);
+			}
+		}
+		BulkWriteOptions options = new BulkWriteOptions().ordered(false);
+		BulkWriteResult result = usersCollection.bulkWrite(users, options);
+		for (Map.Entry<String, Long> e : countCreated(result.getUpserts(), jids).entrySet()) {
+			usersCounter.increment(e.getKey(), e.getValue());
+		}
+		if (!credentials.isEmpty()) {
+			credentialsCollection.bulkWrite(credentials, options);
+		}
+		if (!data.isEmpty()) {
+			dataCollection.bulkWrite(data, options);
+		}
+		importedListener.accept(jids);
+	}
+
+	/**
+	 * User to import with password (may be <code>null</code>) and data (ie. roster or private storage).
+	 */
+	public static class ImportedUser {
+
+		private final Map<String, Map<String, String>> data = new LinkedHashMap<>();
+		private final BareJID jid;
+		private final String password;
+
+		public ImportedUser(BareJID jid, String password) {
+			this.jid = jid;
+			this.password = password;
+		}
+
+		/**
+		 * Sets value of the key in the subnode (<code>null</code> for the root node). Subnode should be normalized
+		 * (without leading or trailing slashes).
+		 */
+		public ImportedUser setData(String subnode, String key, String value) {
+			data.computeIfAbsent(subnode, node -> new LinkedHashMap<>()).put(key, value);
+			return this;
+		}
+	}
+
+	static class PreparedUser {
+
+		WriteModel<Document> credentials;
+		List<WriteModel<Document>> data;
+		BareJID jid;
+		WriteModel<Document> user;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind writer for append-only writes.
+ * <p>
+ * Writes are queued in bounded queues (one per collection) and written as unordered bulk writes when number of queued
+ * writes reaches batch size or when flush interval passes. If a queue is full, write is executed synchronously by
+ * the calling thread. All queued writes are flushed when writer is stopped (waiting for flushes in progress).
+ * <br>
+ * Queued writes are lost if server crashes before they are flushed, so repositories use this writer only if
+ * configured to do so.
+ *
+ * @author andrzej
+ */
+public class BulkWriter {
+
+	private static final Logger log = Logger.getLogger(BulkWriter.class.getCanonicalName());
+
+	private static final BulkWriteOptions BULK_WRITE_OPTIONS = new BulkWriteOptions().ordered(false);
+
+	private final int batchSize;
+	private final LongAdder executedWrites = new LongAdder();
+	private final LongAdder failedWrites = new LongAdder();
+	private final MongoDriverStatistics.Histogram flushLatency = new MongoDriverStatistics.Histogram();
+	private final int queueSize;
+	private final Map<MongoNamespace, CollectionQueue> queues = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler;
+	private final AtomicBoolean stopped = new AtomicBoolean(false);
+	private final LongAdder synchronousWrites = new LongAdder();
+	private final WriteConcern writeConcern;
+	private final ScheduledFuture<?> flushTask;
+
+	/**
+	 * @param scheduler executor used to execute flushes
+	 * @param batchSize max number of writes in a single bulk write
+	 * @param flushInterval max time (in milliseconds) for which write may be queued
+	 * @param queueSize max number of queued writes per collection
+	 * @param writeConcern write concern used for bulk writes or {@code null} to use the one of the collection
+	 */
+	public BulkWriter(ScheduledExecutorService scheduler, int batchSize, long flushInterval, int queueSize,
+	                  WriteConcern writeConcern) {
+		this.scheduler = scheduler;
+		this.batchSize = Math.max(1, batchSize);
+		this.queueSize = Math.max(this.batchSize, queueSize);
+		this.writeConcern = writeConcern;
+		this.flushTask = scheduler.scheduleWithFixedDelay(this::flushAll, flushInterval, flushInterval,
+		                                                  TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues write to be executed on the collection.
+	 */
+	public void submit(MongoCollection<Document> collection, WriteModel<Document> write) {
+		CollectionQueue queue = queues.computeIfAbsent(collection.getNamespace(),
+		                                               ns -> new CollectionQueue(collection));
+		if (stopped.get() || !queue.writes.offer(write)) {
+			synchronousWrites.increment();
+			queue.write(Collections.singletonList(write));
+			return;
+		}
+		if (stopped.get()) {
+			// writer was stopped after our check, so our write could be missed by the final flush
+			queue.drain();
+			return;
+		}
+		if (queue.writes.size() >= batchSize && queue.flushScheduled.compareAndSet(false, true)) {
+			scheduler.execute(queue::flush);
+		}
+	}
+
+	/**
+	 * Writes all queued writes.
+	 */
+	public void flushAll() {
+		for (CollectionQueue queue : queues.values()) {
+			// exception would cancel periodic flushing of all queues
+			try {
+				queue.flush();
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Failed to flush writes to " + queue.collection.getNamespace(), ex);
+			}
+		}
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (CollectionQueue queue : queues.values()) {
+			depth += queue.writes.size();
+		}
+		return depth;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Bulk writer queue depth", getQueueDepth(), Level.FINE);
+		list.add(compName, "Bulk writer writes", executedWrites.sum(), Level.FINE);
+		list.add(compName, "Bulk writer failed writes", failedWrites.sum(), Level.FINE);
+		list.add(compName, "Bulk writer synchronous writes", synchronousWrites.sum(), Level.FINE);
+		flushLatency.getStatistics(compName, "Bulk writer flush", list, Level.FINE);
+		if (list.checkLevel(Level.FINER)) {
+			for (CollectionQueue queue : queues.values()) {
+				list.add(compName, "Bulk writer " + queue.collection.getNamespace().getCollectionName() +
+						" queue depth", queue.writes.size(), Level.FINER);
+			}
+		}
+	}
+
+	/**
+	 * Stops periodic flushes and writes all queued writes. Writes submitted after this call are executed
+	 * synchronously.
+	 */
+	public void stop() {
+		if (stopped.compareAndSet(false, true)) {
+			flushTask.cancel(false);
+			for (CollectionQueue queue : queues.values()) {
+				queue.drain();
+			}
+		}
+	}
+
+	private class CollectionQueue {
+
+		private final MongoCollection<Document> collection;
+		private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+		private final ReentrantLock lock = new ReentrantLock();
+		private final BlockingQueue<WriteModel<Document>> writes = new ArrayBlockingQueue<>(queueSize);
+
+		private CollectionQueue(MongoCollection<Document> collection) {
+			this.collection = writeConcern == null ? collection : collection.withWriteConcern(writeConcern);
+		}
+
+		/**
+		 * Writes all queued writes waiting for flush executed by other thread to complete.
+		 */
+		private void drain() {
+			lock.lock();
+			try {
+				writeQueued();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void flush() {
+			flushScheduled.set(false);
+			// if other thread is flushing this queue, it will write our entries as well
+			if (!lock.tryLock()) {
+				return;
+			}
+			try {
+				writeQueued();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void writeQueued() {
+			List<WriteModel<Document>> batch = new ArrayList<>(batchSize);
+			while (writes.drainTo(batch, batchSize) > 0) {
+				write(batch);
+				batch.clear();
+			}
+		}
+
+		private void write(List<WriteModel<Document>> batch) {
+			long start = System.nanoTime();
+			try {
+				collection.bulkWrite(batch, BULK_WRITE_OPTIONS);
+				executedWrites.add(batch.size());
+			} catch (MongoBulkWriteException ex) {
+				if (ex.getWriteErrors().isEmpty()) {
+					// only write concern was not satisfied, so none of the writes is known to be durable
+					failedWrites.add(batch.size());
+					log.log(Level.WARNING,
+					        "Failed to execute " + batch.size() + " writes to " + collection.getNamespace() +
+							        ", write concern error: " + ex.getWriteConcernError());
+					return;
+				}
+				executedWrites.add(batch.size() - ex.getWriteErrors().size());
+				failedWrites.add(ex.getWriteErrors().size());
+				log.log(Level.WARNING, "Failed to execute " + ex.getWriteErrors().size() + " of " + batch.size() +
+						" writes to " + collection.getNamespace() + ", first error: " + ex.getWriteErrors().get(0));
+			} catch (MongoException ex) {
+				failedWrites.add(batch.size());
+				log.log(Level.WARNING, "Failed to execute " + batch.size() + " writes to " + collection.getNamespace(),
+				        ex);
+			} finally {
+				flushLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			}
+		}
+	}
+}
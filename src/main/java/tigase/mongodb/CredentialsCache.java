@@ -0,0 +1,114 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import tigase.auth.credentials.Credentials;
+import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Short living cache of credentials used on the authentication path.
+ * <p>
+ * Unknown credentials (ie. of not existing users) are cached as well, usually for a shorter time. Cache is not
+ * synchronized between cluster nodes, so changes made on other nodes are visible after cached entries expire.
+ *
+ * @author andrzej
+ */
+public class CredentialsCache {
+
+	private final BoundedCache<BareJID, ConcurrentHashMap<String, Entry>> cache;
+	private final LongAdder cacheLookups = new LongAdder();
+	private final LongAdder databaseLookups = new LongAdder();
+	private final long negativeTtl;
+	private final long ttl;
+
+	/**
+	 * Creates cache for the number of users keeping credentials for <code>ttl</code> and unknown credentials for
+	 * <code>negativeTtl</code> (both in seconds).
+	 */
+	public CredentialsCache(int maxSize, long ttl, long negativeTtl) {
+		this.cache = new BoundedCache<>(maxSize);
+		this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+		this.negativeTtl = TimeUnit.SECONDS.toNanos(negativeTtl);
+	}
+
+	/**
+	 * Returns cached credentials or loads them using the loader (and caches them).
+	 */
+	public Credentials get(BareJID user, String credentialId, Loader loader) throws TigaseDBException {
+		ConcurrentHashMap<String, Entry> entries = cache.peek(user);
+		Entry entry = entries == null ? null : entries.get(credentialId);
+		long now = System.nanoTime();
+		if (entry != null && entry.expiresAt - now > 0) {
+			cacheLookups.increment();
+			return entry.credentials;
+		}
+		databaseLookups.increment();
+		if (entries == null) {
+			entries = new ConcurrentHashMap<>();
+			ConcurrentHashMap<String, Entry> existing = cache.putIfAbsent(user, entries);
+			if (existing != null) {
+				entries = existing;
+			}
+		}
+		Credentials credentials = loader.load();
+		long entryTtl = credentials == null ? negativeTtl : ttl;
+		if (entryTtl > 0) {
+			// if credentials were invalidated in the meantime, entry is stored in a map which is no longer cached
+			entries.put(credentialId, new Entry(credentials, now + entryTtl));
+		}
+		return credentials;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Credentials cache size", cache.size(), Level.FINE);
+		list.add(compName, "Credentials lookups from cache", cacheLookups.sum(), Level.FINE);
+		list.add(compName, "Credentials lookups from database", databaseLookups.sum(), Level.FINE);
+		list.add(compName, "Credentials cache evictions", cache.getEvictions(), Level.FINER);
+	}
+
+	public void invalidate(BareJID user) {
+		cache.remove(user);
+	}
+
+	/**
+	 * Loads credentials from the database.
+	 */
+	@FunctionalInterface
+	public interface Loader {
+
+		Credentials load() throws TigaseDBException;
+	}
+
+	private static class Entry {
+
+		private final Credentials credentials;
+		private final long expiresAt;
+
+		private Entry(Credentials credentials, long expiresAt) {
+			this.credentials = credentials;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Stores all user data (keys of all subnodes) of a single user in a single document.
+ * <p>
+ * Document of a user has following structure: <code>{ _id: uid, nodes: { "path": { "key": value } } }</code>, where
+ * path is a full path of a subnode (<code>/</code> for root node) and value is a string or a list of strings. Names
+ * of subnodes and keys are escaped, so they are valid field names.
+ * <p>
+ * Data stored in the legacy layout (a document per key in <code>tig_nodes</code>) is moved to the user document on
+ * first access to the user data or by {@link #migrateAll()}, so store may be enabled on a running installation.
+ *
+ * @author andrzej
+ */
+public class EmbeddedUserDataStore {
+
+	protected static final long CLAIM_TIMEOUT = 60 * 1000;
+	protected static final String CLAIM_KEY = "migration_claim";
+	protected static final String NODES_KEY = "nodes";
+	protected static final String ROOT_NODE = "/";
+	private static final Logger log = Logger.getLogger(EmbeddedUserDataStore.class.getCanonicalName());
+
+	private final MongoCollection<Document> collection;
+	private final MongoCollection<Document> legacyCollection;
+	private final LongAdder migratedUsers = new LongAdder();
+	private volatile boolean migrationCompleted;
+
+	protected static String escape(String name) {
+		StringBuilder sb = null;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			String replacement;
+			switch (c) {
+				case '%':
+					replacement = "%25";
+					break;
+				case '.':
+					replacement = "%2E";
+					break;
+				case '$':
+					replacement = "%24";
+					break;
+				default:
+					replacement = null;
+					break;
+			}
+			if (replacement != null && sb == null) {
+				sb = new StringBuilder(name.length() + 8).append(name, 0, i);
+			}
+			if (sb != null) {
+				if (replacement != null) {
+					sb.append(replacement);
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb == null ? name : sb.toString();
+	}
+
+	protected static String unescape(String name) {
+		if (name.indexOf('%') < 0) {
+			return name;
+		}
+		return name.replace("%2E", ".").replace("%24", "$").replace("%25", "%");
+	}
+
+	/**
+	 * Returns names of direct children of the subnode (<code>null</code> for root node) based on the list of paths of
+	 * existing subnodes.
+	 */
+	protected static List<String> childNodes(Collection<String> paths, String subnode) {
+		String prefix = subnode == null ? "" : subnode + "/";
+		List<String> result = new ArrayList<>();
+		for (String path : paths) {
+			if (ROOT_NODE.equals(path) || path.length() <= prefix.length() || !path.startsWith(prefix)) {
+				continue;
+			}
+			String node = path.substring(prefix.length());
+			int idx = node.indexOf('/');
+			if (idx > 0) {
+				node = node.substring(0, idx);
+			}
+			if (!result.contains(node)) {
+				result.add(node);
+			}
+		}
+		return result;
+	}
+
+	protected static String fieldName(String subnode, String key) {
+		return nodeFieldName(subnode) + "." + escape(key);
+	}
+
+	protected static String nodeFieldName(String subnode) {
+		return NODES_KEY + "." + nodePath(subnode);
+	}
+
+	private static String nodePath(String subnode) {
+		return (subnode == null || subnode.isEmpty()) ? ROOT_NODE : escape(subnode);
+	}
+
+	public EmbeddedUserDataStore(MongoCollection<Document> collection, MongoCollection<Document> legacyCollection) {
+		this.collection = collection;
+		this.legacyCollection = legacyCollection;
+		this.migrationCompleted = legacyCollection.find().projection(Projections.include("_id")).first() == null;
+	}
+
+	public void addValues(byte[] uid, String subnode, String key, List<String> values) {
+		ensureMigrated(uid);
+		collection.updateOne(Filters.eq("_id", uid), Updates.pushEach(fieldName(subnode, key), values),
+		                     new UpdateOptions().upsert(true));
+	}
+
+	/**
+	 * Moves user document to the new id (used when algorithm of calculation of user ids changes).
+	 */
+	public void changeId(byte[] oldUid, byte[] newUid) {
+		Document doc = collection.find(Filters.eq("_id", oldUid)).first();
+		if (doc == null) {
+			return;
+		}
+		collection.replaceOne(Filters.eq("_id", newUid), doc.append("_id", newUid),
+		                      new ReplaceOptions().upsert(true));
+		collection.deleteOne(Filters.eq("_id", oldUid));
+	}
+
+	/**
+	 * Returns keys and values (string or list of strings) stored in the subnode.
+	 */
+	public Map<String, Object> getNode(byte[] uid, String subnode) {
+		ensureMigrated(uid);
+		String path = nodePath(subnode);
+		Document doc = collection.find(Filters.eq("_id", uid))
+				.projection(Projections.include(NODES_KEY + "." + path))
+				.first();
+		Document node = doc == null ? null : doc.get(NODES_KEY, Document.class);
+		node = node == null ? null : node.get(path, Document.class);
+		if (node == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, Object> result = new HashMap<>(node.size());
+		for (Map.Entry<String, Object> e : node.entrySet()) {
+			result.put(unescape(e.getKey()), e.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns keys and values (string or list of strings) stored in the subnode for each of the users (with
+	 * at least a single key in the subnode).
+	 */
+	public Map<ByteBuffer, Map<String, Object>> getNodes(List<byte[]> uids, String subnode) {
+		for (byte[] uid : uids) {
+			ensureMigrated(uid);
+		}
+		String path = nodePath(subnode);
+		Map<ByteBuffer, Map<String, Object>> result = new HashMap<>(uids.size());
+		for (Document doc : collection.find(Filters.in("_id", uids))
+				.projection(Projections.include(NODES_KEY + "." + path))) {
+			Document nodes = doc.get(NODES_KEY, Document.class);
+			Document node = nodes == null ? null : nodes.get(path, Document.class);
+			if (node == null) {
+				continue;
+			}
+			Map<String, Object> values = new HashMap<>(node.size());
+			for (Map.Entry<String, Object> e : node.entrySet()) {
+				values.put(unescape(e.getKey()), e.getValue());
+			}
+			result.put(ByteBuffer.wrap(((Binary) doc.get("_id")).getData()), values);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns names of direct children of the subnode.
+	 */
+	public List<String> getSubnodes(byte[] uid, String subnode) {
+		ensureMigrated(uid);
+		Document doc = collection.find(Filters.eq("_id", uid)).projection(Projections.include(NODES_KEY)).first();
+		Document nodes = doc == null ? null : doc.get(NODES_KEY, Document.class);
+		if (nodes == null) {
+			return Collections.emptyList();
+		}
+		List<String> paths = new ArrayList<>(nodes.size());
+		for (Map.Entry<String, Object> e : nodes.entrySet()) {
+			// subnode with all keys removed
+			if (e.getValue() instanceof Document && ((Document) e.getValue()).isEmpty()) {
+				continue;
+			}
+			paths.add(unescape(e.getKey()));
+		}
+		return childNodes(paths, subnode);
+	}
+
+	/**
+	 * Returns value (string or list of strings) stored for the key in the subnode.
+	 */
+	public Object getValue(byte[] uid, String subnode, String key) {
+		ensureMigrated(uid);
+		String path = nodePath(subnode);
+		String escapedKey = escape(key);
+		Document doc = collection.find(Filters.eq("_id", uid))
+				.projection(Projections.include(NODES_KEY + "." + path + "." + escapedKey))
+				.first();
+		Document node = doc == null ? null : doc.get(NODES_KEY, Document.class);
+		node = node == null ? null : node.get(path, Document.class);
+		return node == null ? null : node.get(escapedKey);
+	}
+
+	public boolean isMigrationCompleted() {
+		return migrationCompleted;
+	}
+
+	/**
+	 * Moves data of the user stored in the legacy layout to the user document.
+	 * <p>
+	 * Legacy documents are claimed before they are moved, so they are moved only once and other threads (or nodes)
+	 * wait until the claimed documents are moved before accessing the user document. Claim of a migration which was
+	 * not completed in {@value #CLAIM_TIMEOUT} ms is taken over.
+	 */
+	public void migrate(byte[] uid) {
+		while (legacyCollection.find(Filters.eq("uid", uid)).projection(Projections.include("_id")).first() != null) {
+			ObjectId claim = new ObjectId();
+			Bson notClaimed = Filters.or(Filters.exists(CLAIM_KEY, false), Filters.lt(CLAIM_KEY, new ObjectId(
+					new Date(System.currentTimeMillis() - CLAIM_TIMEOUT))));
+			legacyCollection.updateMany(Filters.and(Filters.eq("uid", uid), notClaimed), Updates.set(CLAIM_KEY, claim));
+			List<Document> legacy = legacyCollection.find(Filters.and(Filters.eq("uid", uid), Filters.eq(CLAIM_KEY, claim)))
+					.into(new ArrayList<>());
+			if (!legacy.isEmpty()) {
+				migrate(uid, legacy);
+				legacyCollection.deleteMany(Filters.and(Filters.in("_id", legacy.stream()
+						.map(doc -> doc.get("_id"))
+						.collect(Collectors.toList())), Filters.eq(CLAIM_KEY, claim)));
+				migratedUsers.increment();
+				continue;
+			}
+			// data of the user is being moved by other thread
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void migrate(byte[] uid, List<Document> legacy) {
+		Document set = new Document();
+		for (Document doc : legacy) {
+			String key = doc.getString("key");
+			if (key == null) {
+				continue;
+			}
+			String field = fieldName(doc.getString("node"), key);
+			Object existing = set.get(field);
+			List<String> values = (List<String>) doc.get("values");
+			if (values == null) {
+				// compressed or offloaded values are moved as they are
+				Object value = doc.get("value");
+				if (existing == null || !(value instanceof String)) {
+					set.put(field, value);
+					continue;
+				}
+				values = Collections.singletonList((String) value);
+			}
+			if (existing instanceof List) {
+				((List<String>) existing).addAll(values);
+			} else {
+				List<String> merged = new ArrayList<>(values.size() + 1);
+				if (existing instanceof String) {
+					merged.add((String) existing);
+				}
+				merged.addAll(values);
+				set.put(field, merged);
+			}
+		}
+		if (!set.isEmpty()) {
+			try {
+				collection.updateOne(Filters.eq("_id", uid), new Document("$set", set),
+				                     new UpdateOptions().upsert(true));
+			} catch (MongoWriteException ex) {
+				// concurrent upsert of the same user document
+				if (ex.getError() == null || ex.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+					throw ex;
+				}
+				collection.updateOne(Filters.eq("_id", uid), new Document("$set", set));
+			}
+		}
+	}
+
+	/**
+	 * Moves data of all users stored in the legacy layout to user documents.
+	 */
+	public void migrateAll() {
+		if (migrationCompleted) {
+			return;
+		}
+		log.log(Level.INFO, "Migrating user data to {0}", collection.getNamespace());
+		Document doc;
+		// documents without valid uid are skipped, they are not accessible anyway
+		while ((doc = legacyCollection.find(Filters.type("uid", BsonType.BINARY_DATA))
+				.projection(Projections.include("uid"))
+				.first()) != null) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			migrate(((Binary) doc.get("uid")).getData());
+		}
+		migrationCompleted = true;
+		log.log(Level.INFO, "Migration of user data to {0} completed, migrated {1} users",
+		        new Object[]{collection.getNamespace(), migratedUsers.sum()});
+	}
+
+	public void removeSubnode(byte[] uid, String subnode) {
+		ensureMigrated(uid);
+		if (subnode == null) {
+			collection.deleteOne(Filters.eq("_id", uid));
+			return;
+		}
+		Document doc = collection.find(Filters.eq("_id", uid)).projection(Projections.include(NODES_KEY)).first();
+		Document nodes = doc == null ? null : doc.get(NODES_KEY, Document.class);
+		if (nodes == null) {
+			return;
+		}
+		String prefix = subnode + "/";
+		Document unset = new Document();
+		for (String path : nodes.keySet()) {
+			String name = unescape(path);
+			if (name.equals(subnode) || name.startsWith(prefix)) {
+				unset.append(NODES_KEY + "." + path, "");
+			}
+		}
+		if (!unset.isEmpty()) {
+			collection.updateOne(Filters.eq("_id", uid), new Document("$unset", unset));
+		}
+	}
+
+	public void removeValue(byte[] uid, String subnode, String key) {
+		ensureMigrated(uid);
+		collection.updateOne(Filters.eq("_id", uid), Updates.unset(fieldName(subnode, key)));
+	}
+
+	/**
+	 * Sets value (string or list of strings) of the key in the subnode.
+	 */
+	public void setValue(byte[] uid, String subnode, String key, Object value) {
+		ensureMigrated(uid);
+		collection.updateOne(Filters.eq("_id", uid), Updates.set(fieldName(subnode, key), value),
+		                     new UpdateOptions().upsert(true));
+	}
+
+	private void ensureMigrated(byte[] uid) throws MongoException {
+		if (!migrationCompleted) {
+			migrate(uid);
+		}
+	}
+}
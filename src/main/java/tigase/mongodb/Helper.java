@@ -17,9 +17,7 @@
  */
 package tigase.mongodb;
 
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.IndexOptions;
 import org.bson.Document;
 
 import java.util.Map;
@@ -50,19 +48,4 @@ public class Helper {
 		}
 		return sb.toString();
 	}
-
-	public static void indexCreateOrReplace(MongoCollection<Document> collection, Document index,
-	                                        IndexOptions options) {
-		String indexName = createIndexName(index);
-		boolean drop = false;
-		for (Document idx : collection.listIndexes()) {
-			if (indexName.equals(idx.getString("name")) && (idx.getBoolean("unique", false) != options.isUnique())) {
-				drop = true;
-			}
-		}
-		if (drop) {
-			collection.dropIndex(indexName);
-		}
-		collection.createIndex(index, options);
-	}
 }
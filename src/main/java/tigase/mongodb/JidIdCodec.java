@@ -0,0 +1,145 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Shared codec calculating ids (SHA-256 hashes) of JIDs and other strings used as keys by MongoDB repositories.
+ * <p>
+ * Message digests and encoding buffers are reused per thread and ASCII strings (most of JIDs) are hashed without
+ * creation of temporary lower-cased string or byte array. Ids of bare JIDs are kept in a bounded cache, so hot JIDs are
+ * not hashed again for every stanza.
+ * <br>
+ * Arrays returned by this codec may be shared between callers and must not be modified.
+ *
+ * @author andrzej
+ */
+public final class JidIdCodec {
+
+	public static final String HASH_ALG = "SHA-256";
+
+	public static final int DEF_CACHE_SIZE = 100000;
+
+	private static final boolean ASCII_LOWER_CASE_SAFE = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase()
+			.equals("abcdefghijklmnopqrstuvwxyz");
+
+	private static final BoundedCache<BareJID, byte[]> cache = new BoundedCache<>(DEF_CACHE_SIZE);
+	private static final LongAdder computations = new LongAdder();
+	private static final ThreadLocal<HashContext> context = ThreadLocal.withInitial(HashContext::new);
+
+	/**
+	 * Calculates hash of passed string exactly as it is (without changing case).
+	 */
+	public static byte[] calculateHash(String in) {
+		computations.increment();
+		return context.get().hash(in, false);
+	}
+
+	/**
+	 * Calculates id of the bare JID, which is a hash of lower-cased string representation of JID.
+	 */
+	public static byte[] generateId(BareJID jid) {
+		byte[] id = cache.get(jid);
+		if (id == null) {
+			computations.increment();
+			id = context.get().hash(jid.toString(), true);
+			cache.put(jid, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Calculates id of the string which is a hash of lower-cased string (same as for {@link #generateId(BareJID)}).
+	 */
+	public static byte[] generateId(String jid) {
+		computations.increment();
+		return context.get().hash(jid, true);
+	}
+
+	public static long getCacheHits() {
+		return cache.getHits();
+	}
+
+	public static long getCacheMisses() {
+		return cache.getMisses();
+	}
+
+	public static int getCacheSize() {
+		return cache.getMaxSize();
+	}
+
+	public static void setCacheSize(int size) {
+		cache.setMaxSize(size);
+	}
+
+	public static long getComputations() {
+		return computations.sum();
+	}
+
+	public static void getStatistics(String compName, StatisticsList list) {
+		cache.getStatistics(compName, "JID id", list);
+		list.add(compName, "JID id computations", getComputations(), Level.FINE);
+	}
+
+	private JidIdCodec() {
+	}
+
+	private static class HashContext {
+
+		private final MessageDigest md;
+		private byte[] buffer = new byte[128];
+
+		private HashContext() {
+			try {
+				md = MessageDigest.getInstance(HASH_ALG);
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException("Should not happen!!", ex);
+			}
+		}
+
+		private byte[] hash(String in, boolean lowerCase) {
+			final int len = in.length();
+			if (len > buffer.length) {
+				buffer = new byte[Math.max(len, buffer.length * 2)];
+			}
+			final byte[] buf = buffer;
+			for (int i = 0; i < len; i++) {
+				char c = in.charAt(i);
+				if (c >= 0x80 || (lowerCase && !ASCII_LOWER_CASE_SAFE)) {
+					// non-ASCII characters are processed by JDK to keep exactly the same results as before
+					String str = lowerCase ? in.toLowerCase() : in;
+					return md.digest(str.getBytes(StandardCharsets.UTF_8));
+				}
+				if (lowerCase && c >= 'A' && c <= 'Z') {
+					c += ('a' - 'A');
+				}
+				buf[i] = (byte) c;
+			}
+			md.update(buf, 0, len);
+			return md.digest();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import tigase.stats.StatisticsList;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Compact set of ids of users known to exist in <code>tig_users</code>.
+ * <p>
+ * Only first 8 bytes of a user id (which is a hash of the JID) are stored in striped open addressing hash tables, so a
+ * single user takes about 16 bytes. When a stripe is full it is cleared, so the set never exceeds configured size.
+ * Users removed on other cluster nodes are not removed from the set, so it should be cleared periodically.
+ *
+ * @author andrzej
+ */
+public class KnownUsers {
+
+	private static final int STRIPES = 64;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	protected static long prefix(byte[] uid) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (i < uid.length ? (uid[i] & 0xFF) : 0);
+		}
+		// 0 marks empty slot
+		return value == 0 ? 1 : value;
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public KnownUsers(int maxSize) {
+		int stripeSize = Math.max(16, maxSize / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(stripeSize);
+		}
+	}
+
+	public void add(byte[] uid) {
+		long key = prefix(uid);
+		stripe(key).add(key);
+	}
+
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	public boolean contains(byte[] uid) {
+		long key = prefix(uid);
+		boolean result = stripe(key).contains(key);
+		if (result) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		return result;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Known users size", size(), Level.FINE);
+		list.add(compName, "Known users hits", hits.sum(), Level.FINE);
+		list.add(compName, "Known users misses", misses.sum(), Level.FINE);
+	}
+
+	public void remove(byte[] uid) {
+		long key = prefix(uid);
+		stripe(key).remove(key);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	private Stripe stripe(long key) {
+		return stripes[(mix(key) >>> 26) & (STRIPES - 1)];
+	}
+
+	private static class Stripe {
+
+		private final int mask;
+		private final int maxSize;
+		private final long[] table;
+		private int size;
+
+		private Stripe(int maxSize) {
+			this.maxSize = maxSize;
+			// keeps load factor below 0.5
+			this.table = new long[Integer.highestOneBit(maxSize) << 2];
+			this.mask = table.length - 1;
+		}
+
+		private synchronized void add(long key) {
+			int i = mix(key) & mask;
+			while (table[i] != 0) {
+				if (table[i] == key) {
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			if (size >= maxSize) {
+				clear();
+				i = mix(key) & mask;
+			}
+			table[i] = key;
+			size++;
+		}
+
+		private synchronized void clear() {
+			Arrays.fill(table, 0);
+			size = 0;
+		}
+
+		private synchronized boolean contains(long key) {
+			int i = mix(key) & mask;
+			while (table[i] != 0) {
+				if (table[i] == key) {
+					return true;
+				}
+				i = (i + 1) & mask;
+			}
+			return false;
+		}
+
+		private synchronized void remove(long key) {
+			int i = mix(key) & mask;
+			while (table[i] != key) {
+				if (table[i] == 0) {
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			table[i] = 0;
+			size--;
+			// move following entries of the cluster, so they are reachable from their home slots
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (table[j] == 0) {
+					return;
+				}
+				int home = mix(table[j]) & mask;
+				boolean movable = (i <= j) ? (home <= i || home > j) : (home <= i && home > j);
+				if (movable) {
+					table[i] = table[j];
+					table[j] = 0;
+					i = j;
+				}
+			}
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import tigase.stats.StatisticsList;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+/**
+ * Stores large values of user data compressed or out-of-line.
+ * <p>
+ * Values longer than compression threshold are stored compressed (in {@link PayloadFormat}). If the stored value
+ * is still larger than offload threshold, it is stored in <code>tig_node_blobs</code> and user data contains only a
+ * reference (<code>{ blob: id, v: version }</code>), which is resolved when the value is read. Id of the blob is
+ * derived from the user, subnode and key, so a new large value replaces the previous one, while version is new for
+ * each write, so the reference stored in user data changes as well. Blob is not removed when a small value is set
+ * for the key, but it is removed with the key, subnode or user.
+ *
+ * @author andrzej
+ */
+public class LargeValues {
+
+	public static final String BLOB_KEY = "blob";
+	public static final String BLOBS_COLLECTION = "tig_node_blobs";
+	public static final String VERSION_KEY = "v";
+
+	private final MongoCollection<Document> blobs;
+	private final LongAdder compressedValues = new LongAdder();
+	private final PayloadFormat format;
+	private final int offloadThreshold;
+	private final LongAdder offloadedValues = new LongAdder();
+	private final LongAdder resolvedBlobs = new LongAdder();
+
+	private static Document blobId(byte[] uid, String subnode, String key) {
+		return new Document("u", uid).append("n", subnode).append("k", key);
+	}
+
+	/**
+	 * Creates instance compressing values with at least <code>compressionThreshold</code> characters (0 disables
+	 * compression) and offloading values which stored size exceeds <code>offloadThreshold</code> (0 disables offloading).
+	 */
+	public LargeValues(MongoCollection<Document> blobs, int compressionThreshold, int compressionLevel,
+	                   int offloadThreshold) {
+		this.blobs = blobs;
+		this.format = compressionThreshold > 0
+		              ? new PayloadFormat(true, compressionThreshold, compressionLevel)
+		              : PayloadFormat.PLAIN;
+		this.offloadThreshold = offloadThreshold;
+	}
+
+	/**
+	 * Converts stored value (string, compressed value or reference to the blob) to string. Values of other types
+	 * (ie. lists) are converted to <code>null</code>.
+	 */
+	public String decode(Object value) {
+		if (value instanceof Document) {
+			Document blob = blobs.find(Filters.eq("_id", ((Document) value).get(BLOB_KEY))).first();
+			resolvedBlobs.increment();
+			return blob == null ? null : PayloadFormat.toString(blob.get("value"));
+		}
+		if (value instanceof String || value instanceof Binary) {
+			return PayloadFormat.toString(value);
+		}
+		return null;
+	}
+
+	/**
+	 * Converts all stored values to strings resolving references to blobs using a single query.
+	 */
+	public <K> Map<K, String> decodeAll(Map<K, Object> values) {
+		Map<K, String> result = new HashMap<>(values.size());
+		List<Object> blobIds = null;
+		for (Map.Entry<K, Object> e : values.entrySet()) {
+			if (e.getValue() instanceof Document) {
+				if (blobIds == null) {
+					blobIds = new ArrayList<>();
+				}
+				blobIds.add(((Document) e.getValue()).get(BLOB_KEY));
+				result.put(e.getKey(), null);
+			} else {
+				result.put(e.getKey(), decode(e.getValue()));
+			}
+		}
+		if (blobIds != null) {
+			Map<Object, String> blobValues = new HashMap<>(blobIds.size());
+			for (Document blob : blobs.find(Filters.in("_id", blobIds))) {
+				blobValues.put(blob.get("_id"), PayloadFormat.toString(blob.get("value")));
+			}
+			resolvedBlobs.add(blobValues.size());
+			for (Map.Entry<K, Object> e : values.entrySet()) {
+				if (e.getValue() instanceof Document) {
+					result.put(e.getKey(), blobValues.get(((Document) e.getValue()).get(BLOB_KEY)));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns value which should be stored for the key in the subnode (string, compressed value or reference to the
+	 * blob). Subnode should be normalized.
+	 */
+	public Object encode(byte[] uid, String subnode, String key, String value) {
+		if (value == null || (!format.isCompression() && offloadThreshold <= 0)) {
+			return value;
+		}
+		Object encoded = format.encode(value);
+		int size = (encoded instanceof Binary) ? ((Binary) encoded).length() : value.length();
+		if (offloadThreshold > 0 && size > offloadThreshold) {
+			Document id = blobId(uid, subnode, key);
+			// version makes reference different for each write, so the change is visible to watchers of user data
+			ObjectId version = new ObjectId();
+			blobs.replaceOne(Filters.eq("_id", id),
+			                 new Document("_id", id).append("uid", uid).append("node", subnode).append("value", encoded)
+					                 .append(VERSION_KEY, version), new ReplaceOptions().upsert(true));
+			offloadedValues.increment();
+			return new Document(BLOB_KEY, id).append(VERSION_KEY, version);
+		}
+		if (encoded instanceof Binary) {
+			compressedValues.increment();
+		}
+		return encoded;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Large values compressed", compressedValues.sum(), Level.FINER);
+		list.add(compName, "Large values offloaded", offloadedValues.sum(), Level.FINER);
+		list.add(compName, "Large values resolved blobs", resolvedBlobs.sum(), Level.FINER);
+	}
+
+	public boolean isOffloading() {
+		return offloadThreshold > 0;
+	}
+
+	/**
+	 * Removes blobs of the key in the subnode, of the subnode and its descendants (if key is <code>null</code>) or
+	 * of the user (if subnode and key are <code>null</code>).
+	 */
+	public void remove(byte[] uid, String subnode, String key) {
+		if (!isOffloading()) {
+			return;
+		}
+		if (key != null) {
+			blobs.deleteOne(Filters.eq("_id", blobId(uid, subnode, key)));
+			return;
+		}
+		Bson filter = Filters.eq("uid", uid);
+		if (subnode != null) {
+			filter = Filters.and(filter,
+			                     Filters.regex("node", "^" + Pattern.quote(subnode) + "(/|$)"));
+		}
+		blobs.deleteMany(filter);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import tigase.stats.StatisticsList;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Tracks time of last activity (login or logout) of users.
+ * <p>
+ * Times are kept in memory and written to <code>tig_users</code> by {@link #flush()}, so multiple logins and logouts
+ * of a user between flushes result in a single write. Writes are executed by the shared {@link BulkWriter} and use
+ * <code>$max</code>, so stored time never moves back if users are active on many cluster nodes.
+ *
+ * @author andrzej
+ */
+public class LastActivityTracker {
+
+	public static final String LAST_ACTIVITY_KEY = "last_activity";
+
+	private final LongAdder flushed = new LongAdder();
+	private final ConcurrentHashMap<ByteBuffer, Long> pending = new ConcurrentHashMap<>();
+	private final LongAdder recorded = new LongAdder();
+	private final MongoCollection<Document> usersCollection;
+	private final BulkWriter writer;
+
+	public LastActivityTracker(MongoCollection<Document> usersCollection, BulkWriter writer) {
+		this.usersCollection = usersCollection;
+		this.writer = writer;
+	}
+
+	/**
+	 * Queues writes of all recorded times.
+	 */
+	public void flush() {
+		Iterator<Map.Entry<ByteBuffer, Long>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<ByteBuffer, Long> e = it.next();
+			// entry is removed only if time was not updated in the meantime
+			if (!pending.remove(e.getKey(), e.getValue())) {
+				continue;
+			}
+			writer.submit(usersCollection, new UpdateOneModel<>(Filters.eq("_id", e.getKey().array()),
+			                                                    Updates.max(LAST_ACTIVITY_KEY,
+			                                                                new Date(e.getValue()))));
+			flushed.increment();
+		}
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Last activity pending updates", pending.size(), Level.FINE);
+		list.add(compName, "Last activity recorded", recorded.sum(), Level.FINER);
+		list.add(compName, "Last activity written", flushed.sum(), Level.FINER);
+	}
+
+	public void record(byte[] uid, long timestamp) {
+		recorded.increment();
+		pending.merge(ByteBuffer.wrap(uid), timestamp, Math::max);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import tigase.auth.credentials.Credentials;
+import tigase.db.AuthRepository;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static tigase.db.AuthRepositoryImpl.ACCOUNT_STATUS_KEY;
+
+/**
+ * Moves passwords stored (by old versions) in <code>tig_users</code> to <code>tig_user_credentials</code> in batches.
+ * <p>
+ * Credentials are created only for users without default credentials and password is removed from
+ * <code>tig_users</code> only if it was not changed in the meantime, so migration may run while users are logging in.
+ * As only users with password in <code>tig_users</code> are processed, interrupted migration continues where it
+ * stopped when it is started again.
+ *
+ * @author andrzej
+ */
+public class LegacyPasswordMigrator {
+
+	private static final Logger log = Logger.getLogger(LegacyPasswordMigrator.class.getCanonicalName());
+
+	private final int batchSize;
+	private final MongoCollection<Document> credentialsCollection;
+	private final BiFunction<BareJID, String, List<String[]>> encoder;
+	private final LongAdder migratedPasswords = new LongAdder();
+	private final MongoCollection<Document> usersCollection;
+
+	public LegacyPasswordMigrator(MongoCollection<Document> usersCollection,
+	                              MongoCollection<Document> credentialsCollection,
+	                              BiFunction<BareJID, String, List<String[]>> encoder, int batchSize) {
+		this.usersCollection = usersCollection;
+		this.credentialsCollection = credentialsCollection;
+		this.encoder = encoder;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Legacy passwords migrated", migratedPasswords.sum(), Level.FINE);
+	}
+
+	/**
+	 * Migrates all passwords and returns <code>true</code> if there are no more passwords in <code>tig_users</code>.
+	 */
+	public boolean migrateAll() {
+		log.log(Level.INFO, "Migrating passwords from {0}", usersCollection.getNamespace());
+		List<WriteModel<Document>> credentials = new ArrayList<>(batchSize);
+		List<WriteModel<Document>> users = new ArrayList<>(batchSize);
+		for (Document userDto : usersCollection.find(Filters.exists(AuthRepository.PASSWORD_KEY))
+				.projection(Projections.include(MongoRepository.ID_KEY, AuthRepository.PASSWORD_KEY,
+				                                ACCOUNT_STATUS_KEY))
+				.sort(Sorts.ascending("_id"))
+				.batchSize(batchSize)) {
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			Object uid = userDto.get("_id");
+			String password = userDto.getString(AuthRepository.PASSWORD_KEY);
+			String jid = userDto.getString(MongoRepository.ID_KEY);
+			if (password != null && jid != null) {
+				BareJID user = BareJID.bareJIDInstanceNS(jid);
+				String accountStatus = userDto.getString(ACCOUNT_STATUS_KEY);
+				Document doc = new Document("uid", uid).append("username", Credentials.DEFAULT_CREDENTIAL_ID)
+						.append(ACCOUNT_STATUS_KEY, accountStatus == null
+						                            ? AuthRepository.AccountStatus.active.name()
+						                            : accountStatus);
+				for (String[] pair : encoder.apply(user, password)) {
+					doc.append(pair[0], pair[1]);
+				}
+				credentials.add(new UpdateOneModel<>(
+						Filters.and(Filters.eq("uid", uid), Filters.eq("username", Credentials.DEFAULT_CREDENTIAL_ID)),
+						Updates.setOnInsert(doc), new UpdateOptions().upsert(true)));
+			}
+			users.add(new UpdateOneModel<>(
+					Filters.and(Filters.eq("_id", uid), Filters.eq(AuthRepository.PASSWORD_KEY, password)),
+					Updates.unset(AuthRepository.PASSWORD_KEY)));
+			if (users.size() >= batchSize) {
+				write(credentials, users);
+			}
+		}
+		write(credentials, users);
+
+		boolean completed = usersCollection.find(Filters.exists(AuthRepository.PASSWORD_KEY))
+				.projection(Projections.include("_id"))
+				.first() == null;
+		log.log(Level.INFO, "Migrated {0} passwords from {1}, completed: {2}",
+		        new Object[]{migratedPasswords.sum(), usersCollection.getNamespace(), completed});
+		return completed;
+	}
+
+	private void write(List<WriteModel<Document>> credentials, List<WriteModel<Document>> users) {
+		// credentials have to be stored before passwords are removed
+		if (!credentials.isEmpty()) {
+			credentialsCollection.bulkWrite(credentials, new BulkWriteOptions().ordered(false));
+			credentials.clear();
+		}
+		if (!users.isEmpty()) {
+			migratedPasswords.add(
+					usersCollection.bulkWrite(users, new BulkWriteOptions().ordered(false)).getModifiedCount());
+			users.clear();
+		}
+	}
+}
@@ -18,21 +18,34 @@
 package tigase.mongodb;
 
 import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
 import tigase.annotations.TigaseDeprecated;
 import tigase.db.DBInitException;
 import tigase.db.DataSource;
 import tigase.db.Repository;
 import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
 import tigase.util.Version;
 
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,16 +58,69 @@ import static tigase.mongodb.MongoSchemaLoader.SCHEMA_VERSION;
 @TigaseDeprecated(since = "2.5.0", note = "MongoDB support in Tigase is depracated and will be removed in Tigase XMPP Server 9.0.0")
 @Repository.Meta(isDefault = true, supportedUris = {"mongodb:.*"})
 public class MongoDataSource
-		implements DataSource, UnregisterAware {
+		implements DataSource, StatisticHolder, UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(MongoDataSource.class.getName());
 
 	@ConfigField(desc = "Automatic schema management", alias = "schema-management")
 	private boolean automaticSchemaManagement = true;
 
+	@ConfigField(desc = "Max number of writes in a single bulk write", alias = "bulk-write-batch-size")
+	private int bulkWriteBatchSize = 500;
+
+	@ConfigField(desc = "Max time (in milliseconds) for which write may be queued", alias = "bulk-write-flush-interval")
+	private long bulkWriteFlushInterval = 100;
+
+	@ConfigField(desc = "Max number of queued writes per collection", alias = "bulk-write-queue-size")
+	private int bulkWriteQueueSize = 10000;
+
+	@ConfigField(desc = "Number of threads executing bulk writes", alias = "bulk-write-threads")
+	private int bulkWriteThreads = 2;
+
+	@ConfigField(desc = "Write concern of bulk writes (ie. w1, majority, journaled)", alias = "bulk-write-concern")
+	private String bulkWriteConcern = null;
+
+	@ConfigField(desc = "Collect statistics of MongoDB driver commands and connection pool", alias = "driver-statistics")
+	private boolean driverStatisticsEnabled = true;
+
+	@ConfigField(desc = "Count bytes sent and received by MongoDB driver commands", alias = "driver-statistics-bytes")
+	private boolean driverStatisticsBytes = false;
+
+	@ConfigField(desc = "Max number of cached JID ids", alias = "jid-id-cache-size")
+	private int jidIdCacheSize = JidIdCodec.DEF_CACHE_SIZE;
+
+	@ConfigField(desc = "Store XML payloads compressed with deflate", alias = "payload-compression")
+	private boolean payloadCompression = false;
+
+	@ConfigField(desc = "Convert existing XML payloads to compressed format in background", alias = "payload-compression-convert")
+	private boolean payloadCompressionConvert = false;
+
+	@ConfigField(desc = "Deflate compression level (1-9) of XML payloads", alias = "payload-compression-level")
+	private int payloadCompressionLevel = 6;
+
+	@ConfigField(desc = "Min size (in chars) of XML payload which will be compressed", alias = "payload-compression-min-size")
+	private int payloadCompressionMinSize = 256;
+
+	@ConfigField(desc = "Drop and recreate indexes with different options (ie. unique or TTL)", alias = "schema-recreate-indexes")
+	private boolean schemaRecreateIndexes = false;
+
+	@ConfigField(desc = "Create missing indexes in background", alias = "schema-reconcile-background")
+	private boolean schemaReconcileInBackground = false;
+
+	@ConfigField(desc = "Number of threads used to create missing collections and indexes", alias = "schema-reconcile-threads")
+	private int schemaReconcileThreads = 4;
+
+	private volatile BulkWriter bulkWriter;
+	private ScheduledExecutorService bulkWriterExecutor;
 	private MongoDatabase db;
+	private MongoDriverStatistics driverStatistics;
 	private MongoClient mongo;
+	private PayloadConverter payloadConverter;
+	private ExecutorService payloadConverterExecutor;
+	private PayloadFormat payloadFormat = PayloadFormat.PLAIN;
 	private String resourceUri;
+	private ExecutorService schemaExecutor;
+	private SchemaReconciler schemaReconciler;
 
 	@Override
 	public boolean automaticSchemaManagement() {
@@ -63,13 +129,100 @@ public class MongoDataSource
 
 	@Override
 	public void beforeUnregister() {
+		synchronized (this) {
+			if (bulkWriter != null) {
+				bulkWriter.stop();
+				bulkWriterExecutor.shutdown();
+				try {
+					// scheduled flushes may still be executing bulk writes
+					if (!bulkWriterExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+						log.log(Level.WARNING, "Bulk writes were not completed before closing connection");
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (schemaExecutor != null) {
+			schemaExecutor.shutdownNow();
+		}
+		synchronized (this) {
+			if (payloadConverterExecutor != null) {
+				payloadConverterExecutor.shutdownNow();
+			}
+		}
 		mongo.close();
 	}
 
+	/**
+	 * Returns shared write-behind writer (created on first use).
+	 */
+	public synchronized BulkWriter getBulkWriter() {
+		if (bulkWriter == null) {
+			AtomicInteger threadCounter = new AtomicInteger();
+			bulkWriterExecutor = Executors.newScheduledThreadPool(Math.max(1, bulkWriteThreads), runnable -> {
+				Thread thread = new Thread(runnable, "mongodb-bulk-writer-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			WriteConcern writeConcern = (bulkWriteConcern == null || bulkWriteConcern.isEmpty())
+			                            ? null
+			                            : WriteConcern.valueOf(bulkWriteConcern);
+			if (bulkWriteConcern != null && !bulkWriteConcern.isEmpty() && writeConcern == null) {
+				log.log(Level.WARNING, "Unknown write concern " + bulkWriteConcern + ", using default");
+			}
+			bulkWriter = new BulkWriter(bulkWriterExecutor, bulkWriteBatchSize, bulkWriteFlushInterval,
+			                            bulkWriteQueueSize, writeConcern);
+		}
+		return bulkWriter;
+	}
+
+	/**
+	 * Schedules conversion of XML payloads stored in the field of the collection to compressed format. Does nothing
+	 * unless both compression and conversion are enabled.
+	 */
+	public synchronized void convertPayloads(MongoCollection<Document> collection, String field) {
+		if (!payloadCompression || !payloadCompressionConvert) {
+			return;
+		}
+		if (payloadConverter == null) {
+			payloadConverterExecutor = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "mongodb-payload-converter");
+				thread.setDaemon(true);
+				return thread;
+			});
+			payloadConverter = new PayloadConverter(payloadConverterExecutor, payloadFormat, bulkWriteBatchSize);
+		}
+		payloadConverter.convert(collection, field);
+	}
+
+	public MongoClient getClient() {
+		return mongo;
+	}
+
+	/**
+	 * Returns format in which XML payloads should be stored.
+	 */
+	public PayloadFormat getPayloadFormat() {
+		return payloadFormat;
+	}
+
 	public MongoDatabase getDatabase() {
 		return db;
 	}
 
+	@Override
+	public void everyHour() {
+	}
+
+	@Override
+	public void everyMinute() {
+	}
+
+	@Override
+	public void everySecond() {
+	}
+
 	@Override
 	public String getResourceUri() {
 		return resourceUri;
@@ -99,6 +252,26 @@ public class MongoDataSource
 		return Optional.empty();
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		JidIdCodec.getStatistics(compName, list);
+		if (driverStatistics != null) {
+			driverStatistics.getStatistics(compName, list);
+		}
+		if (schemaReconciler != null) {
+			schemaReconciler.getStatistics(compName, list);
+		}
+		BulkWriter bulkWriter = this.bulkWriter;
+		if (bulkWriter != null) {
+			bulkWriter.getStatistics(compName, list);
+		}
+		synchronized (this) {
+			if (payloadConverter != null) {
+				payloadConverter.getStatistics(compName, list);
+			}
+		}
+	}
+
 	@Override
 	@Deprecated
 	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
@@ -108,8 +281,62 @@ public class MongoDataSource
 	@Override
 	public void initialize(String resource_uri) throws DBInitException {
 		resourceUri = resource_uri;
+		JidIdCodec.setCacheSize(jidIdCacheSize);
+		payloadFormat = payloadCompression
+		                ? new PayloadFormat(true, payloadCompressionMinSize, payloadCompressionLevel)
+		                : PayloadFormat.PLAIN;
 		ConnectionString connectionString = new ConnectionString(resource_uri);
-		mongo = MongoClients.create(connectionString);
+		mongo = MongoClients.create(createClientSettings(connectionString));
 		db = mongo.getDatabase(connectionString.getDatabase());
+		AtomicInteger threadCounter = new AtomicInteger();
+		schemaExecutor = Executors.newFixedThreadPool(Math.max(1, schemaReconcileThreads), runnable -> {
+			Thread thread = new Thread(runnable, "mongodb-schema-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		schemaReconciler = new SchemaReconciler(db, schemaExecutor, schemaRecreateIndexes);
+	}
+
+	/**
+	 * Creates collections and indexes declared in the manifest which are missing in the database. Unless
+	 * reconciliation in background is enabled, method returns after all indexes are created.
+	 */
+	public void reconcileSchema(SchemaManifest manifest) {
+		CompletableFuture<Void> future = schemaReconciler.reconcile(manifest);
+		if (schemaReconcileInBackground) {
+			return;
+		}
+		try {
+			future.join();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw ex;
+		}
+	}
+
+	protected MongoClientSettings createClientSettings(ConnectionString connectionString) {
+		MongoClientSettings.Builder settings = MongoClientSettings.builder()
+				.applyConnectionString(connectionString)
+				.codecRegistry(CodecRegistries.fromRegistries(
+						CodecRegistries.fromProviders(new RecordCodecProvider(payloadFormat)),
+						MongoClientSettings.getDefaultCodecRegistry()));
+		if (driverStatisticsEnabled) {
+			if (driverStatistics == null) {
+				driverStatistics = new MongoDriverStatistics(driverStatisticsBytes);
+			}
+			settings.addCommandListener(driverStatistics)
+					.applyToConnectionPoolSettings(builder -> builder.addConnectionPoolListener(driverStatistics));
+		}
+		return settings.build();
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
 	}
 }
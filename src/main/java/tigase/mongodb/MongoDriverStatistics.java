@@ -0,0 +1,309 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.*;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import tigase.stats.StatisticsList;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Collects statistics of commands executed by MongoDB driver and of usage of its connection pools.
+ * <p>
+ * Instance of this class is registered as {@link CommandListener} and {@link ConnectionPoolListener} of the
+ * {@link com.mongodb.client.MongoClient} created by {@link MongoDataSource} and keeps latency histograms and counters
+ * per collection and command (ie. {@code tig_nodes/find}). Collected data is reported using
+ * {@link #getStatistics(String, StatisticsList)}.
+ *
+ * @author andrzej
+ */
+public class MongoDriverStatistics
+		implements CommandListener, ConnectionPoolListener {
+
+	private static final String NO_COLLECTION = "-";
+
+	private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec();
+
+	// check out events of driver 4.7 have no operation id, so waiting check outs are matched with finished check outs
+	// in order of start per server (order in which pool serves them), as these may be reported by different threads
+	private final Map<ServerId, Queue<Long>> checkOutStarts = new ConcurrentHashMap<>();
+	private final LongAdder checkOutFailures = new LongAdder();
+	private final Histogram checkOutWait = new Histogram();
+	private final AtomicInteger checkOutWaiting = new AtomicInteger();
+	private final AtomicInteger checkedOut = new AtomicInteger();
+	private final Map<String, CommandStatistics> commands = new ConcurrentHashMap<>();
+	private final boolean countBytes;
+	private final AtomicInteger maxPoolSize = new AtomicInteger();
+	private final AtomicInteger peakCheckedOut = new AtomicInteger();
+	private final Map<Integer, CommandStatistics> pending = new ConcurrentHashMap<>();
+	private final Map<ServerId, Integer> poolSizes = new ConcurrentHashMap<>();
+	private final LongAdder saturatedCheckOuts = new LongAdder();
+
+	/**
+	 * @param countBytes if sizes of commands and responses should be calculated (requires serialization of every
+	 * command and response to BSON once again, so it is expensive)
+	 */
+	public MongoDriverStatistics(boolean countBytes) {
+		this.countBytes = countBytes;
+	}
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+		String collection = getCollectionName(event.getCommandName(), event.getCommand());
+		String key = collection + "/" + event.getCommandName();
+		CommandStatistics stats = commands.computeIfAbsent(key, CommandStatistics::new);
+		if (countBytes) {
+			stats.bytesOut.add(sizeOf(event.getCommand()));
+		}
+		pending.put(event.getRequestId(), stats);
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		CommandStatistics stats = pending.remove(event.getRequestId());
+		if (stats == null) {
+			return;
+		}
+		stats.latency.record(event.getElapsedTime(TimeUnit.MICROSECONDS));
+		if (countBytes) {
+			stats.bytesIn.add(sizeOf(event.getResponse()));
+		}
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		CommandStatistics stats = pending.remove(event.getRequestId());
+		if (stats == null) {
+			return;
+		}
+		stats.latency.record(event.getElapsedTime(TimeUnit.MICROSECONDS));
+		stats.failures.increment();
+	}
+
+	@Override
+	public void connectionPoolCreated(ConnectionPoolCreatedEvent event) {
+		poolSizes.put(event.getServerId(), event.getSettings().getMaxSize());
+		updateMaxPoolSize();
+	}
+
+	@Override
+	public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+		poolSizes.remove(event.getServerId());
+		checkOutStarts.remove(event.getServerId());
+		updateMaxPoolSize();
+	}
+
+	@Override
+	public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+		checkOutWaiting.incrementAndGet();
+		checkOutStarts.computeIfAbsent(event.getServerId(), serverId -> new ConcurrentLinkedQueue<>())
+				.offer(System.nanoTime());
+	}
+
+	@Override
+	public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+		checkOutFinished(event.getConnectionId().getServerId());
+		int current = checkedOut.incrementAndGet();
+		peakCheckedOut.accumulateAndGet(current, Math::max);
+		int max = maxPoolSize.get();
+		if (max > 0 && current >= max) {
+			saturatedCheckOuts.increment();
+		}
+	}
+
+	@Override
+	public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+		checkOutFinished(event.getServerId());
+		checkOutFailures.increment();
+	}
+
+	@Override
+	public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+		checkedOut.decrementAndGet();
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		long requests = 0;
+		long failures = 0;
+		for (CommandStatistics stats : commands.values()) {
+			requests += stats.latency.getCount();
+			failures += stats.failures.sum();
+		}
+		list.add(compName, "MongoDB requests", requests, Level.FINE);
+		list.add(compName, "MongoDB failed requests", failures, Level.FINE);
+
+		int max = maxPoolSize.get();
+		int peak = peakCheckedOut.get();
+		list.add(compName, "MongoDB pool max size", max, Level.FINE);
+		list.add(compName, "MongoDB pool checked out", checkedOut.get(), Level.FINE);
+		list.add(compName, "MongoDB pool peak checked out", peak, Level.FINE);
+		list.add(compName, "MongoDB pool saturation [%]", max > 0 ? (peak * 100f / max) : 0f, Level.FINE);
+		list.add(compName, "MongoDB pool saturated check outs", saturatedCheckOuts.sum(), Level.FINE);
+		list.add(compName, "MongoDB pool waiting for check out", checkOutWaiting.get(), Level.FINE);
+		list.add(compName, "MongoDB pool check out failures", checkOutFailures.sum(), Level.FINE);
+		checkOutWait.getStatistics(compName, "MongoDB pool check out wait", list, Level.FINE);
+
+		if (list.checkLevel(Level.FINER)) {
+			for (CommandStatistics stats : commands.values()) {
+				String prefix = "MongoDB " + stats.key;
+				list.add(compName, prefix + " failures", stats.failures.sum(), Level.FINER);
+				if (countBytes) {
+					list.add(compName, prefix + " bytes out", stats.bytesOut.sum(), Level.FINER);
+					list.add(compName, prefix + " bytes in", stats.bytesIn.sum(), Level.FINER);
+				}
+				stats.latency.getStatistics(compName, prefix, list, Level.FINER);
+			}
+		}
+	}
+
+	private void checkOutFinished(ServerId serverId) {
+		checkOutWaiting.decrementAndGet();
+		Queue<Long> starts = checkOutStarts.get(serverId);
+		Long start = starts == null ? null : starts.poll();
+		if (start != null) {
+			checkOutWait.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		}
+	}
+
+	Histogram getCheckOutWait() {
+		return checkOutWait;
+	}
+
+	int getPeakCheckedOut() {
+		return peakCheckedOut.get();
+	}
+
+	private void updateMaxPoolSize() {
+		maxPoolSize.set(poolSizes.values().stream().mapToInt(Integer::intValue).sum());
+	}
+
+	private static String getCollectionName(String commandName, BsonDocument command) {
+		try {
+			BsonValue value = command.get("getMore".equals(commandName) ? "collection" : commandName);
+			if (value != null && value.isString()) {
+				return value.asString().getValue();
+			}
+		} catch (RuntimeException ex) {
+			// command document may not be available for some commands
+		}
+		return NO_COLLECTION;
+	}
+
+	private static long sizeOf(BsonDocument document) {
+		if (document == null) {
+			return 0;
+		}
+		if (document instanceof RawBsonDocument) {
+			return ((RawBsonDocument) document).getByteBuffer().remaining();
+		}
+		return new RawBsonDocument(document, BSON_DOCUMENT_CODEC).getByteBuffer().remaining();
+	}
+
+	private static class CommandStatistics {
+
+		private final LongAdder bytesIn = new LongAdder();
+		private final LongAdder bytesOut = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final String key;
+		private final Histogram latency = new Histogram();
+
+		private CommandStatistics(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Histogram of durations (in microseconds) with buckets growing by power of 2.
+	 */
+	static class Histogram {
+
+		private static final int BUCKETS = 32;
+
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long micros) {
+			int idx = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets[idx].increment();
+			count.increment();
+			total.add(micros);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		float getAverage() {
+			long cnt = count.sum();
+			return cnt == 0 ? 0f : ((float) total.sum()) / cnt;
+		}
+
+		/**
+		 * Returns upper bound (in microseconds) of the bucket containing requested percentile.
+		 */
+		long getPercentile(double percentile) {
+			long cnt = count.sum();
+			if (cnt == 0) {
+				return 0;
+			}
+			long threshold = (long) Math.ceil(cnt * percentile / 100);
+			long sum = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				sum += buckets[i].sum();
+				if (sum >= threshold) {
+					return i == 0 ? 0 : (1L << i) - 1;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		void getStatistics(String compName, String prefix, StatisticsList list, Level level) {
+			list.add(compName, prefix + " count", getCount(), level);
+			list.add(compName, prefix + " avg [us]", getAverage(), level);
+			list.add(compName, prefix + " 50th percentile [us]", getPercentile(50), level);
+			list.add(compName, prefix + " 99th percentile [us]", getPercentile(99), level);
+			if (list.checkLevel(Level.FINEST)) {
+				for (int i = 0; i < BUCKETS; i++) {
+					long value = buckets[i].sum();
+					if (value > 0) {
+						list.add(compName, prefix + " <= " + (i == 0 ? 0 : (1L << i) - 1) + "us", value, Level.FINEST);
+					}
+				}
+			}
+		}
+	}
+}
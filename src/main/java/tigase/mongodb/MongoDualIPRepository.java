@@ -17,7 +17,6 @@
  */
 package tigase.mongodb;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
@@ -33,8 +32,6 @@ import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static tigase.mongodb.Helper.collectionExists;
-
 /**
  * @author Wojtek
  */
@@ -82,11 +79,11 @@ public class MongoDualIPRepository
 	public void setDataSource(MongoDataSource dataSource) {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, CLUSTER_NODES)) {
-			db.createCollection(CLUSTER_NODES);
-		}
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(CLUSTER_NODES).index(new Document("hostname", 1));
+		dataSource.reconcileSchema(manifest);
+
 		clusterNodes = db.getCollection(CLUSTER_NODES);
-		clusterNodes.createIndex(new BasicDBObject("hostname", 1));
 	}
 
 }
@@ -18,11 +18,11 @@
 package tigase.mongodb;
 
 import com.mongodb.MongoException;
-import com.mongodb.MongoNamespace;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.Updates;
 import org.bson.Document;
@@ -33,24 +33,17 @@ import tigase.db.Schema;
 import tigase.db.TigaseDBException;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.amp.db.MsgBroadcastRepository;
-import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.Queue;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static tigase.mongodb.Helper.collectionExists;
-
 /**
  * Created by andrzej on 04.10.2016.
  */
@@ -64,19 +57,18 @@ public class MongoMsgBroadcastRepository
 
 	private static final Logger log = Logger.getLogger(MongoMsgBroadcastRepository.class.getCanonicalName());
 
-	private static final String JID_HASH_ALG = "SHA-256";
-
 	private static final int DEF_BATCH_SIZE = 100;
 
 	private static final String MSG_BROADCAST_COLLECTION = "tig_broadcast_messages";
 	private static final String MSG_BROADCAST_RECP_COLLECTION = "tig_broadcast_recipients";
-
-	private static final Charset UTF8 = Charset.forName("UTF-8");
 	@ConfigField(desc = "Batch size", alias = "batch-size")
 	private int batchSize = DEF_BATCH_SIZE;
 	private MongoCollection<Document> broadcastMsgCollection;
 	private MongoCollection<Document> broadcastMsgRecpCollection;
+	private BulkWriter bulkWriter;
 	private MongoDatabase db;
+	@ConfigField(desc = "Queue writes and execute them in bulk (queued writes may be lost on crash)", alias = "write-behind")
+	private boolean writeBehind = false;
 
 	@Override
 	protected void ensureBroadcastMessageRecipient(String id, BareJID recipient) {
@@ -84,20 +76,22 @@ public class MongoMsgBroadcastRepository
 			byte[] recipientId = generateId(recipient);
 			Document crit = new Document("msg_id", id).append("recipient_id", recipientId)
 					.append("recipient", recipient.toString());
-			broadcastMsgRecpCollection.updateOne(crit, Updates.set("recipient_id", recipientId),
-			                                     new UpdateOptions().upsert(true));
+			if (bulkWriter != null) {
+				bulkWriter.submit(broadcastMsgRecpCollection,
+				                  new UpdateOneModel<>(crit, Updates.set("recipient_id", recipientId),
+				                                       new UpdateOptions().upsert(true)));
+			} else {
+				broadcastMsgRecpCollection.updateOne(crit, Updates.set("recipient_id", recipientId),
+				                                     new UpdateOptions().upsert(true));
+			}
 		} catch (Exception ex) {
 			log.log(Level.WARNING, "Problem inserting messages recipients for broadcast to db: ", ex);
 		}
 	}
 
 	private byte[] generateId(BareJID user) throws TigaseDBException {
-		try {
-			MessageDigest md = MessageDigest.getInstance(JID_HASH_ALG);
-			return md.digest(user.toString().getBytes(UTF8));
-		} catch (NoSuchAlgorithmException ex) {
-			throw new TigaseDBException("Should not happen!!", ex);
-		}
+		// recipient ids were always calculated from JID without changing its case
+		return JidIdCodec.calculateHash(user.toString());
 	}
 
 	@Override
@@ -119,7 +113,6 @@ public class MongoMsgBroadcastRepository
 			Set<String> oldMessages = new HashSet<String>(broadcastMessages.keySet());
 			FindIterable<Document> cursor = broadcastMsgCollection.find(
 					new Document("expire", new Document("$gt", new Date()))).batchSize(batchSize);
-			DomBuilderHandler domHandler = new DomBuilderHandler();
 			for (Document dto : cursor) {
 				String id = dto.getString("_id");
 				oldMessages.remove(id);
@@ -128,12 +121,7 @@ public class MongoMsgBroadcastRepository
 				}
 
 				Date expire = (Date) dto.get("expire");
-				char[] msgChars = ((String) dto.get("msg")).toCharArray();
-
-				parser.parse(domHandler, msgChars, 0, msgChars.length);
-
-				Queue<Element> elems = domHandler.getParsedElements();
-				Element msg = elems.poll();
+				Element msg = XmlPayloads.parseElement(dto.getString("msg"));
 				if (msg == null) {
 					continue;
 				}
@@ -159,30 +147,18 @@ public class MongoMsgBroadcastRepository
 	public void setDataSource(MongoDataSource dataSource) {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, MSG_BROADCAST_COLLECTION)) {
-			if (collectionExists(db, "msg_broadcast")) {
-				db.getCollection("msg_broadcast")
-						.renameCollection(new MongoNamespace(db.getName(), MSG_BROADCAST_COLLECTION));
-			} else {
-				db.createCollection(MSG_BROADCAST_COLLECTION);
-			}
-		}
-		broadcastMsgCollection = db.getCollection(MSG_BROADCAST_COLLECTION);
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(MSG_BROADCAST_COLLECTION)
+				.renamedFrom("msg_broadcast")
+				.index(new Document("_id", 1).append("expire", 1));
+		manifest.collection(MSG_BROADCAST_RECP_COLLECTION)
+				.renamedFrom("msg_broadcast_recp")
+				.index(new Document("msg_id", 1))
+				.index(new Document("msg_id", 1).append("recipient_id", 1), new IndexOptions().unique(true));
+		dataSource.reconcileSchema(manifest);
 
-		broadcastMsgCollection.createIndex(new Document("_id", 1).append("expire", 1));
-
-		if (!collectionExists(db, MSG_BROADCAST_RECP_COLLECTION)) {
-			if (collectionExists(db, "msg_broadcast_recp")) {
-				db.getCollection("msg_broadcast_recp")
-						.renameCollection(new MongoNamespace(db.getName(), MSG_BROADCAST_RECP_COLLECTION));
-			} else {
-				db.createCollection(MSG_BROADCAST_RECP_COLLECTION);
-			}
-		}
+		broadcastMsgCollection = db.getCollection(MSG_BROADCAST_COLLECTION);
 		broadcastMsgRecpCollection = db.getCollection(MSG_BROADCAST_RECP_COLLECTION);
-
-		broadcastMsgRecpCollection.createIndex(new Document("msg_id", 1));
-		broadcastMsgRecpCollection.createIndex(new Document("msg_id", 1).append("recipient_id", 1),
-		                                       new IndexOptions().unique(true));
+		bulkWriter = writeBehind ? dataSource.getBulkWriter() : null;
 	}
 }
@@ -18,11 +18,11 @@
 package tigase.mongodb;
 
 import com.mongodb.MongoException;
-import com.mongodb.MongoNamespace;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
 import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
 import com.mongodb.client.result.DeleteResult;
@@ -34,28 +34,30 @@ import tigase.annotations.TigaseDeprecated;
 import tigase.db.*;
 import tigase.db.util.RepositoryVersionAware;
 import tigase.db.util.SchemaLoader;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
 import tigase.server.amp.db.MsgRepository;
 import tigase.util.Version;
 import tigase.util.datetime.TimestampHelper;
-import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import static com.mongodb.client.model.Projections.fields;
 import static com.mongodb.client.model.Projections.include;
-import static tigase.mongodb.Helper.collectionExists;
 
 /**
  * @author andrzej
@@ -67,39 +69,49 @@ import static tigase.mongodb.Helper.collectionExists;
 @RepositoryVersionAware.SchemaVersion
 public class MongoMsgRepository
 		extends MsgRepository<ObjectId, MongoDataSource>
-		implements MongoRepositoryVersionAware {
+		implements MongoRepositoryVersionAware, UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(MongoMsgRepository.class.getCanonicalName());
 
-	private static final String JID_HASH_ALG = "SHA-256";
-
 	private static final int DEF_BATCH_SIZE = 100;
 
 	private static final String MSG_HISTORY_COLLECTION = "tig_offline_messages";
 
 	private static final TimestampHelper dt = new TimestampHelper();
 
+	private static final Bson SUMMARY_PROJECTION = Projections.include("_id", "from_hash", "to_hash", "msg_type");
+
 	//private static final Comparator<Document> MSG_COMPARATOR = (o1, o2) -> ((Date) o1.get("ts")).compareTo((Date) o2.get("ts"));
 
-	private static final Charset UTF8 = Charset.forName("UTF-8");
 	@ConfigField(desc = "Batch size", alias = "batch-size")
 	private int batchSize = DEF_BATCH_SIZE;
 	private MongoDatabase db;
+	@ConfigField(desc = "Max number of offline messages delivered in a single batch", alias = "delivery-batch-size")
+	private int deliveryBatchSize = DEF_BATCH_SIZE;
+	// executes blocking operations requested from threads of the reactive driver and reconciliation of summaries
+	private ScheduledExecutorService executor;
+	private OfflineInbox inbox;
+	@ConfigField(desc = "Interval (in seconds) of reconciliation of summaries of offline messages", alias = "inbox-reconcile-interval")
+	private long inboxReconcileInterval = 3600;
+	// set while summaries are reconciled, as reconciliation may still run on executor replaced on reload
+	private final AtomicBoolean inboxReconciling = new AtomicBoolean();
 	private MongoCollection<Document> msgHistoryCollection;
+	private com.mongodb.reactivestreams.client.MongoCollection<OfflineMessageRecord> msgHistoryReactiveCollection;
+	private MongoCollection<OfflineMessageRecord> msgHistoryRecords;
 
 	private byte[] calculateHash(String user) throws TigaseDBException {
-		try {
-			MessageDigest md = MessageDigest.getInstance(JID_HASH_ALG);
-			return md.digest(user.getBytes(UTF8));
-		} catch (NoSuchAlgorithmException ex) {
-			throw new TigaseDBException("Should not happen!!", ex);
-		}
+		return JidIdCodec.calculateHash(user);
 	}
 
 	@Override
 	protected void deleteMessage(ObjectId dbId) {
 		try {
-			msgHistoryCollection.deleteOne(new Document("_id", dbId));
+			OfflineMessageRecord record = msgHistoryRecords.findOneAndDelete(new Document("_id", dbId),
+			                                                                 new FindOneAndDeleteOptions().projection(
+					                                                                 SUMMARY_PROJECTION));
+			if (record != null) {
+				inbox.removed(Collections.singletonList(record));
+			}
 		} catch (MongoException ex) {
 
 		}
@@ -118,14 +130,16 @@ public class MongoMsgRepository
 
 			if (db_ids == null || db_ids.size() == 0) {
 				msgHistoryCollection.deleteMany(crit);
-
+				inbox.clear(toHash);
 			} else {
 				crit = Filters.and(crit, Filters.in("_id", db_ids.stream()
 						.map(id -> new ObjectId(id))
 						.collect(Collectors.toList())));
 
-				DeleteResult result = msgHistoryCollection.deleteMany(crit);
-				count = (int) result.getDeletedCount();
+				List<OfflineMessageRecord> records = msgHistoryRecords.find(crit)
+						.projection(SUMMARY_PROJECTION)
+						.into(new ArrayList<>());
+				count = deleteLoaded(records);
 			}
 
 		} catch (Exception ex) {
@@ -135,8 +149,35 @@ public class MongoMsgRepository
 		return count;
 	}
 
+	int deleteLoaded(List<OfflineMessageRecord> records) {
+		if (records.isEmpty()) {
+			return 0;
+		}
+		DeleteResult result = msgHistoryCollection.deleteMany(
+				Filters.in("_id", records.stream().map(it -> it.id).collect(Collectors.toList())));
+		removedFromInbox(records, result.getDeletedCount());
+		return (int) result.getDeletedCount();
+	}
+
+	/**
+	 * Calculates summary of the recipient again after all messages of the recipient were removed, so that any drift of
+	 * the summary is corrected.
+	 */
+	void inboxDrained(byte[] toHash) {
+		inbox.recalculate(toHash);
+	}
+
+	private void removedFromInbox(List<OfflineMessageRecord> records, long deleted) {
+		if (deleted == records.size()) {
+			inbox.removed(records);
+		} else {
+			// some messages were removed concurrently
+			inbox.recalculate(records.get(0).toHash);
+		}
+	}
+
 	private byte[] generateId(BareJID user) throws TigaseDBException {
-		return calculateHash(user.toString().toLowerCase());
+		return JidIdCodec.generateId(user);
 	}
 
 	@Override
@@ -184,6 +225,17 @@ public class MongoMsgRepository
 		try {
 			byte[] toHash = generateId(to.getBareJID());
 
+			if (inbox.isReady()) {
+				for (Map.Entry<String, Long> e : inbox.getCounts(toHash).entrySet()) {
+					try {
+						result.put(MSG_TYPES.valueOf(e.getKey()), e.getValue());
+					} catch (IllegalArgumentException ex) {
+						log.log(Level.FINEST, "Unknown type of offline messages: {0}", e.getKey());
+					}
+				}
+				return result;
+			}
+
 			Document crit = new Document("to_hash", toHash);
 
 			for (MSG_TYPES type : MSG_TYPES.values()) {
@@ -207,23 +259,23 @@ public class MongoMsgRepository
 
 		try {
 			byte[] toHash = generateId(to.getBareJID());
+			if (inbox.isReady() && inbox.getCounts(toHash).isEmpty()) {
+				return result;
+			}
 
 			Document crit = new Document("to_hash", toHash);
 
-			FindIterable<Document> cursor = msgHistoryCollection.find(crit)
+			FindIterable<OfflineMessageRecord> cursor = msgHistoryRecords.find(crit)
 					.projection(Projections.include("_id", "from", "msg_type"))
 					.sort(Sorts.ascending("ts"))
 					.batchSize(batchSize);
 
-			for (Document it : cursor) {
-				String msgId = it.getObjectId("_id").toHexString();
-				String sender = null;
-				if (it.containsKey("from")) {
-					sender = (String) it.get("from");
-				}
+			for (OfflineMessageRecord it : cursor) {
+				String msgId = it.id.toHexString();
+				String sender = it.from;
 				MSG_TYPES messageType = MSG_TYPES.none;
-				if (it.containsKey("msg_type")) {
-					messageType = MSG_TYPES.valueOf((String) it.get("msg_type"));
+				if (it.msgType != null) {
+					messageType = MSG_TYPES.valueOf(it.msgType);
 				}
 
 				if (msgId != null && messageType != null && messageType != MSG_TYPES.none && sender != null) {
@@ -272,33 +324,25 @@ public class MongoMsgRepository
 	@Override
 	protected void loadExpiredQueue(int max) {
 		try {
-			FindIterable<Document> cursor = msgHistoryCollection.find(
+			FindIterable<OfflineMessageRecord> cursor = msgHistoryRecords.find(
 					new Document("expire-at", new Document("$lt", new Date())))
 					.sort(new Document("expire-at", 1))
 					.batchSize(batchSize)
 					.limit(max);
 
-			DomBuilderHandler domHandler = new DomBuilderHandler();
-
-			for (Document it : cursor) {
+			for (OfflineMessageRecord it : cursor) {
 				if (expiredQueue.size() >= MAX_QUEUE_SIZE) {
 					break;
 				}
 
-				String msg_str = (String) it.get("message");
-
-				parser.parse(domHandler, msg_str.toCharArray(), 0, msg_str.length());
-
-				Queue<Element> elems = domHandler.getParsedElements();
-				Element msg = elems.poll();
+				Element msg = it.message;
 
 				if (msg == null) {
 					log.log(Level.INFO,
 					        "Something wrong, loaded offline message from DB but parsed no " + "XML elements: {0}",
-					        msg_str);
+					        it.id);
 				} else {
-					Date ts = (Date) it.get("ts");
-					MsgDBItem item = new MsgDBItem((ObjectId) it.get("_id"), msg, ts);
+					MsgDBItem item = new MsgDBItem(it.id, msg, it.ts);
 
 					expiredQueue.offer(item);
 				}
@@ -318,33 +362,25 @@ public class MongoMsgRepository
 				awaitingInExpiredQueue.set(0);
 			}
 
-			FindIterable<Document> cursor = msgHistoryCollection.find(
+			FindIterable<OfflineMessageRecord> cursor = msgHistoryRecords.find(
 					new Document("expire-at", new Document("$lt", expired)))
 					.sort(new Document("expire-at", 1))
 					.batchSize(batchSize);
-
-			DomBuilderHandler domHandler = new DomBuilderHandler();
 			int counter = 0;
 
-			for (Document it : cursor) {
+			for (OfflineMessageRecord it : cursor) {
 				if (counter++ >= MAX_QUEUE_SIZE) {
 					break;
 				}
 
-				String msg_str = (String) it.get("message");
-
-				parser.parse(domHandler, msg_str.toCharArray(), 0, msg_str.length());
-
-				Queue<Element> elems = domHandler.getParsedElements();
-				Element msg = elems.poll();
+				Element msg = it.message;
 
 				if (msg == null) {
 					log.log(Level.INFO,
 					        "Something wrong, loaded offline message from DB but parsed no " + "XML elements: {0}",
-					        msg_str);
+					        it.id);
 				} else {
-					Date ts = (Date) it.get("ts");
-					MsgDBItem item = new MsgDBItem((ObjectId) it.get("_id"), msg, ts);
+					MsgDBItem item = new MsgDBItem(it.id, msg, it.ts);
 
 					expiredQueue.offer(item);
 				}
@@ -368,6 +404,50 @@ public class MongoMsgRepository
 
 	}
 
+	/**
+	 * Asynchronous variant of {@link #loadMessagesToJID(List, XMPPResourceConnection, boolean,
+	 * OfflineMessagesProcessor)}. If reactive data source is not used, it is executed synchronously
+	 * (blocking the calling thread).
+	 */
+	public CompletableFuture<Queue<Element>> loadMessagesToJIDAsync(List<String> db_ids,
+	                                                               XMPPResourceConnection session, boolean delete,
+	                                                               OfflineMessagesProcessor proc) {
+		if (msgHistoryReactiveCollection == null) {
+			return Publishers.blocking(() -> loadMessagesToJID(db_ids, session, delete, proc));
+		}
+		try {
+			byte[] toHash = generateId(session.getBareJID());
+
+			Bson crit = createLoadCriteria(toHash, db_ids);
+			return Publishers.toList(
+					msgHistoryReactiveCollection.find(crit).sort(Sorts.ascending("ts")).batchSize(batchSize))
+					.thenCompose(loaded -> {
+						long now = System.currentTimeMillis();
+						List<OfflineMessageRecord> list = new ArrayList<>(loaded);
+						list.removeIf(it -> it.expireAt != null && it.expireAt.getTime() < now);
+						Queue<Element> result = parseLoadedMessages(proc, list);
+						if (!delete || loaded.isEmpty()) {
+							return CompletableFuture.completedFuture(result);
+						}
+						return Publishers.first(msgHistoryReactiveCollection.deleteMany(
+								Filters.in("_id", loaded.stream().map(it -> it.id).collect(Collectors.toList()))))
+								.thenApply(deleted -> {
+									executor.execute(() -> {
+										removedFromInbox(loaded, deleted.getDeletedCount());
+										if (db_ids == null || db_ids.isEmpty()) {
+											inboxDrained(toHash);
+										}
+									});
+									return result;
+								});
+					});
+		} catch (Exception ex) {
+			CompletableFuture<Queue<Element>> future = new CompletableFuture<>();
+			future.completeExceptionally(ex);
+			return future;
+		}
+	}
+
 	@Override
 	public Queue<Element> loadMessagesToJID(List<String> db_ids, XMPPResourceConnection session, boolean delete,
 	                                        OfflineMessagesProcessor proc) throws UserNotFoundException {
@@ -378,21 +458,17 @@ public class MongoMsgRepository
 			to = session.getBareJID();
 			byte[] toHash = generateId(to);
 
-			Bson crit = Filters.eq("to_hash", toHash);
-			if (db_ids != null && !db_ids.isEmpty()) {
-				crit = Filters.and(crit, Filters.in("_id", db_ids.stream()
-						.map(id -> new ObjectId(id))
-						.collect(Collectors.toList())));
-			}
+			Bson crit = createLoadCriteria(toHash, db_ids);
 
-			FindIterable<Document> cursor = msgHistoryCollection.find(crit)
+			FindIterable<OfflineMessageRecord> cursor = msgHistoryRecords.find(crit)
 					.sort(Sorts.ascending("ts"))
 					.batchSize(batchSize);
 
-			List<Document> list = new ArrayList<Document>();
-			for (Document it : cursor) {
-				if (it.containsKey("expire-at") &&
-						((Date) it.get("expire-at")).getTime() < System.currentTimeMillis()) {
+			List<OfflineMessageRecord> loaded = new ArrayList<OfflineMessageRecord>();
+			List<OfflineMessageRecord> list = new ArrayList<OfflineMessageRecord>();
+			for (OfflineMessageRecord it : cursor) {
+				loaded.add(it);
+				if (it.expireAt != null && it.expireAt.getTime() < System.currentTimeMillis()) {
 					continue;
 				}
 
@@ -401,10 +477,12 @@ public class MongoMsgRepository
 
 			//Collections.sort(list, MSG_COMPARATOR);
 			result = parseLoadedMessages(proc, list);
-			result.stream().map(it -> it.getAttributeStaticStr("id")).forEach(it -> System.out.println(it));
 
 			if (delete) {
-				msgHistoryCollection.deleteMany(crit);
+				deleteLoaded(loaded);
+				if (!loaded.isEmpty() && (db_ids == null || db_ids.isEmpty())) {
+					inboxDrained(toHash);
+				}
 			}
 		} catch (Exception ex) {
 			log.log(Level.WARNING, "Problem adding new entry to DB: ", ex);
@@ -413,48 +491,95 @@ public class MongoMsgRepository
 
 	}
 
-	private Queue<Element> parseLoadedMessages(OfflineMessagesProcessor proc, List<Document> list) {
-		StringBuilder sb = new StringBuilder(1000);
-		Queue<Element> result = new LinkedList<Element>();
-		if (proc != null) {
-
-			for (Document it : list) {
-
-				final String msg = (String) it.get("message");
-
-				String msgId = null;
-				if (it.containsKey("ts")) {
-					msgId = dt.format((Date) it.get("ts"));
-				}
-
-				if (msg != null) {
-					DomBuilderHandler domHandler = new DomBuilderHandler();
-
-					parser.parse(domHandler, msg.toCharArray(), 0, msg.length());
-					final Queue<Element> parsedElements = domHandler.getParsedElements();
-					Element msgEl = parsedElements.poll();
-					if (msgEl != null && msgId != null) {
-
-						proc.stamp(msgEl, msgId);
+	/**
+	 * Delivers offline messages of the session owner in batches of at most <code>delivery-batch-size</code> messages,
+	 * oldest first. Each batch is removed from the repository only after consumer confirms its delivery and delivery
+	 * stops at the first batch which was not confirmed, so these messages are delivered again later. Only a single
+	 * batch is kept in memory. Returns number of delivered messages.
+	 * <p>
+	 * Consumer should return <code>true</code> only after messages were written to the session, as confirmed batch is
+	 * removed right away. Delivery through {@link #loadMessagesToJID(XMPPResourceConnection, boolean)} is not
+	 * batched, as the whole queue is returned to the caller before it is sent.
+	 */
+	public long deliverMessagesToJID(XMPPResourceConnection session, OfflineMessagesProcessor proc,
+	                                 OfflineMessagesBatchConsumer consumer) throws UserNotFoundException {
+		try {
+			return deliverMessagesToJID(generateId(session.getBareJID()), proc, consumer);
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Problem delivering offline messages: ", ex);
+			return 0;
+		}
+	}
 
-						result.add(msgEl);
+	long deliverMessagesToJID(byte[] toHash, OfflineMessagesProcessor proc, OfflineMessagesBatchConsumer consumer) {
+		int limit = Math.max(1, deliveryBatchSize);
+		long delivered = 0;
+		try {
+			boolean removed = false;
+			while (true) {
+				// delivered batches are removed, so next batch always starts with the oldest message
+				List<OfflineMessageRecord> loaded = loadOldestMessages(toHash, limit);
+				if (loaded.isEmpty()) {
+					if (removed) {
+						inboxDrained(toHash);
 					}
+					break;
 				}
 
+				long now = System.currentTimeMillis();
+				List<OfflineMessageRecord> list = new ArrayList<>(loaded);
+				list.removeIf(it -> it.expireAt != null && it.expireAt.getTime() < now);
+				Queue<Element> batch = parseLoadedMessages(proc, list);
+				if (!batch.isEmpty() && !consumer.deliver(batch)) {
+					break;
+				}
+				delivered += batch.size();
+				deleteLoaded(loaded);
+				removed = true;
+				if (loaded.size() < limit) {
+					inboxDrained(toHash);
+					break;
+				}
 			}
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Problem delivering offline messages: ", ex);
+		}
+		return delivered;
+	}
 
-		} else {
-			result = new LinkedList<Element>();
+	List<OfflineMessageRecord> loadOldestMessages(byte[] toHash, int limit) {
+		return msgHistoryRecords.find(Filters.eq("to_hash", toHash))
+				.sort(Sorts.ascending("ts", "_id"))
+				.limit(limit)
+				.batchSize(limit)
+				.into(new ArrayList<>());
+	}
 
-			for (Document it : list) {
-				sb.append(it.get("message"));
-			}
+	private Bson createLoadCriteria(byte[] toHash, List<String> db_ids) {
+		Bson crit = Filters.eq("to_hash", toHash);
+		if (db_ids != null && !db_ids.isEmpty()) {
+			crit = Filters.and(crit, Filters.in("_id", db_ids.stream()
+					.map(id -> new ObjectId(id))
+					.collect(Collectors.toList())));
+		}
+		return crit;
+	}
 
-			if (sb.length() > 0) {
-				DomBuilderHandler domHandler = new DomBuilderHandler();
-				parser.parse(domHandler, sb.toString().toCharArray(), 0, sb.length());
-				result = domHandler.getParsedElements();
+	private Queue<Element> parseLoadedMessages(OfflineMessagesProcessor proc, List<OfflineMessageRecord> list) {
+		Queue<Element> result = new LinkedList<Element>();
+		for (OfflineMessageRecord it : list) {
+			// payload is parsed while decoding record from BSON
+			Element msgEl = it.message;
+			if (msgEl == null) {
+				continue;
+			}
+			if (proc != null) {
+				if (it.ts == null) {
+					continue;
+				}
+				proc.stamp(msgEl, dt.format(it.ts));
 			}
+			result.add(msgEl);
 		}
 		return result;
 	}
@@ -463,18 +588,65 @@ public class MongoMsgRepository
 	public void setDataSource(MongoDataSource dataSource) {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, MSG_HISTORY_COLLECTION)) {
-			if (collectionExists(db, "msg_history")) {
-				db.getCollection("msg_history")
-						.renameCollection(new MongoNamespace(db.getName(), MSG_HISTORY_COLLECTION));
-			} else {
-				db.createCollection(MSG_HISTORY_COLLECTION);
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(MSG_HISTORY_COLLECTION)
+				.renamedFrom("msg_history")
+				.index(new Document("ts", 1))
+				.index(new Document("to_hash", 1).append("ts", 1).append("_id", 1));
+		manifest.collection(OfflineInbox.INBOX_COLLECTION);
+		dataSource.reconcileSchema(manifest);
+
+		msgHistoryCollection = db.getCollection(MSG_HISTORY_COLLECTION);
+		if (executor != null) {
+			executor.shutdown();
+		}
+		// second thread executes short tasks while summaries are reconciled
+		executor = Executors.newScheduledThreadPool(2, runnable -> {
+			Thread thread = new Thread(runnable, "mongodb-offline-messages");
+			thread.setDaemon(true);
+			return thread;
+		});
+		msgHistoryRecords = msgHistoryCollection.withDocumentClass(OfflineMessageRecord.class);
+		dataSource.convertPayloads(msgHistoryCollection, "message");
+
+		msgHistoryReactiveCollection = MongoReactiveDataSource.getReactiveCollection(dataSource,
+		                                                                             MSG_HISTORY_COLLECTION,
+		                                                                             OfflineMessageRecord.class,
+		                                                                             null);
+		inbox = new OfflineInbox(db.getCollection(OfflineInbox.INBOX_COLLECTION),
+		                         MongoReactiveDataSource.getReactiveCollection(dataSource,
+		                                                                       OfflineInbox.INBOX_COLLECTION, null),
+		                         msgHistoryCollection);
+		startInboxReconciliation(inbox);
+	}
+
+	private void startInboxReconciliation(OfflineInbox inbox) {
+		Runnable task = () -> {
+			if (!inboxReconciling.compareAndSet(false, true)) {
+				log.log(Level.FINE, "Summaries of offline messages are already being calculated");
+				return;
 			}
+			try {
+				inbox.backfill(batchSize);
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Calculation of summaries of offline messages failed", ex);
+			} finally {
+				inboxReconciling.set(false);
+			}
+		};
+		if (inboxReconcileInterval > 0) {
+			executor.scheduleWithFixedDelay(task, inbox.isReady() ? inboxReconcileInterval : 0,
+			                                inboxReconcileInterval, TimeUnit.SECONDS);
+		} else if (!inbox.isReady()) {
+			executor.execute(task);
 		}
-		msgHistoryCollection = db.getCollection(MSG_HISTORY_COLLECTION);
+	}
 
-		msgHistoryCollection.createIndex(new Document("ts", 1));
-		msgHistoryCollection.createIndex(new Document("to_hash", 1));
+	@Override
+	public void beforeUnregister() {
+		if (executor != null) {
+			executor.shutdown();
+		}
 	}
 
 	@Override
@@ -484,13 +656,17 @@ public class MongoMsgRepository
 			byte[] fromHash = generateId(from.getBareJID());
 			byte[] toHash = generateId(to.getBareJID());
 
-			Document crit = new Document("from_hash", fromHash).append("to_hash", toHash)
-					.append("from", from.getBareJID().toString())
-					.append("to", to.getBareJID().toString());
-
-			long count = msgHistoryCollection.countDocuments(crit);
+			OfflineMessageRecord record = createMessageRecord(fromHash, toHash, from.getBareJID(), to.getBareJID(),
+			                                                  expired, msg);
 			long msgs_store_limit = getMsgsStoreLimit(to.getBareJID(), userRepo);
-			if (msgs_store_limit <= count) {
+			boolean reserved;
+			if (inbox.isReady()) {
+				reserved = inbox.reserve(toHash, fromHash, record.msgType, msgs_store_limit);
+			} else {
+				reserved = msgHistoryCollection.countDocuments(createLimitCriteria(record)) < msgs_store_limit &&
+						inbox.reserve(toHash, fromHash, record.msgType, Long.MAX_VALUE);
+			}
+			if (!reserved) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "Message store limit ({0}) exceeded for message: {1}",
 					        new Object[]{msgs_store_limit, Packet.elemToString(msg)});
@@ -498,43 +674,135 @@ public class MongoMsgRepository
 				return false;
 			}
 
-			Document dto = crit;
-			if (expired != null) {
-				dto = new Document(crit);
-				dto.append("expire-at", expired);
-				crit.append("expire-at", new Document("$lt", new Date()));
-			}
-			dto.append("ts", new Date());
-
-			MSG_TYPES valueOf;
 			try {
-				final String name = msg.getName();
-				valueOf = MSG_TYPES.valueOf(name);
-			} catch (IllegalArgumentException e) {
-				valueOf = MSG_TYPES.none;
+				msgHistoryRecords.insertOne(record);
+			} catch (MongoException ex) {
+				inbox.release(toHash, fromHash, record.msgType);
+				throw ex;
 			}
 
-			dto.append("msg_type", valueOf.toString());
-			dto.append("message", msg.toString());
-			msgHistoryCollection.insertOne(dto);
+			messageStored(expired);
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Problem adding new entry to DB: ", ex);
+		}
+		return true;
+	}
 
-			if (expired != null) {
-				if (expired.getTime() < earliestOffline) {
-					earliestOffline = expired.getTime();
-				}
+	/**
+	 * Asynchronous variant of {@link #storeMessage(JID, JID, Date, Element, NonAuthUserRepository)}. If reactive data
+	 * source is not used, it is executed synchronously (blocking the calling thread).
+	 */
+	public CompletableFuture<Boolean> storeMessageAsync(JID from, JID to, Date expired, Element msg,
+	                                                    NonAuthUserRepository userRepo) {
+		if (msgHistoryReactiveCollection == null) {
+			return Publishers.blocking(() -> storeMessage(from, to, expired, msg, userRepo));
+		}
+		try {
+			byte[] fromHash = generateId(from.getBareJID());
+			byte[] toHash = generateId(to.getBareJID());
 
-				if (awaitingInExpiredQueue.get() == 0) {
-					loadExpiredQueue(1);
-				}
+			OfflineMessageRecord record = createMessageRecord(fromHash, toHash, from.getBareJID(), to.getBareJID(),
+			                                                  expired, msg);
+			long msgs_store_limit = getMsgsStoreLimit(to.getBareJID(), userRepo);
+			CompletableFuture<Boolean> reservation;
+			if (inbox.isReady()) {
+				reservation = inbox.reserveAsync(toHash, fromHash, record.msgType, msgs_store_limit);
+			} else {
+				reservation = Publishers.first(
+						msgHistoryReactiveCollection.countDocuments(createLimitCriteria(record)))
+						.thenCompose(count -> count < msgs_store_limit
+						                      ? inbox.reserveAsync(toHash, fromHash, record.msgType,
+						                                           Long.MAX_VALUE)
+						                      : CompletableFuture.completedFuture(false));
 			}
+			return reservation.thenCompose(reserved -> {
+				if (!reserved) {
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "Message store limit ({0}) exceeded for message: {1}",
+						        new Object[]{msgs_store_limit, Packet.elemToString(msg)});
+					}
+					return CompletableFuture.completedFuture(false);
+				}
+				return Publishers.completion(msgHistoryReactiveCollection.insertOne(record)).handle((v, ex) -> {
+					if (ex != null) {
+						executor.execute(() -> inbox.release(toHash, fromHash, record.msgType));
+						throw ex instanceof CompletionException
+						      ? (CompletionException) ex
+						      : new CompletionException(ex);
+					}
+					if (expired != null) {
+						// loading of expired queue is blocking, so it cannot be done by driver thread
+						executor.execute(() -> messageStored(expired));
+					}
+					return true;
+				});
+			}).exceptionally(ex -> {
+				log.log(Level.WARNING, "Problem adding new entry to DB: ", ex);
+				return true;
+			});
 		} catch (Exception ex) {
 			log.log(Level.WARNING, "Problem adding new entry to DB: ", ex);
+			return CompletableFuture.completedFuture(true);
 		}
-		return true;
+	}
+
+	private Bson createLimitCriteria(OfflineMessageRecord record) {
+		return Filters.and(Filters.eq("from_hash", record.fromHash), Filters.eq("to_hash", record.toHash),
+		                   Filters.eq("from", record.from), Filters.eq("to", record.to));
+	}
+
+	private void messageStored(Date expired) {
+		if (expired != null) {
+			if (expired.getTime() < earliestOffline) {
+				earliestOffline = expired.getTime();
+			}
+
+			if (awaitingInExpiredQueue.get() == 0) {
+				loadExpiredQueue(1);
+			}
+		}
+	}
+
+	/**
+	 * Consumer of batches of offline messages delivered by {@link #deliverMessagesToJID(XMPPResourceConnection,
+	 * OfflineMessagesProcessor, OfflineMessagesBatchConsumer)}.
+	 */
+	@FunctionalInterface
+	public interface OfflineMessagesBatchConsumer {
+
+		/**
+		 * Delivers messages and returns <code>true</code> if delivery was confirmed and messages may be removed.
+		 */
+		boolean deliver(Queue<Element> messages);
+
+	}
+
+	OfflineMessageRecord createMessageRecord(byte[] fromHash, byte[] toHash, BareJID from, BareJID to, Date expired,
+	                                         Element msg) {
+		OfflineMessageRecord record = new OfflineMessageRecord();
+		record.fromHash = fromHash;
+		record.toHash = toHash;
+		record.from = from.toString();
+		record.to = to.toString();
+		record.expireAt = expired;
+		record.ts = new Date();
+
+		MSG_TYPES valueOf;
+		try {
+			final String name = msg.getName();
+			valueOf = MSG_TYPES.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			valueOf = MSG_TYPES.none;
+		}
+
+		record.msgType = valueOf.toString();
+		record.message = msg;
+		return record;
 	}
 
 	@Override
 	public SchemaLoader.Result updateSchema(Optional<Version> oldVersion, Version newVersion) throws TigaseDBException {
+		boolean changed = false;
 		for (Document doc : msgHistoryCollection.find()
 				.batchSize(1000)
 				.projection(fields(include("_id", "from", "from_hash", "to", "to_hash")))) {
@@ -554,6 +822,12 @@ public class MongoMsgRepository
 			Document update = new Document("from_hash", newFromHash).append("to_hash", newToHash);
 
 			msgHistoryCollection.updateOne(new Document("_id", doc.get("_id")), new Document("$set", update));
+			changed = true;
+		}
+		if (changed) {
+			// summaries are stored by hash of the recipient
+			inbox.reset();
+			inbox.backfill(batchSize);
 		}
 		return SchemaLoader.Result.ok;
 	}
@@ -0,0 +1,103 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.bson.Document;
+import tigase.annotations.TigaseDeprecated;
+import tigase.db.DBInitException;
+import tigase.db.Repository;
+
+/**
+ * Variant of {@link MongoDataSource} which additionally creates a client using MongoDB reactive streams driver.
+ * <p>
+ * Repositories use reactive database to implement asynchronous variants of their methods (ie.
+ * {@link MongoMsgRepository#storeMessageAsync}), which do not block calling thread until response is received. If
+ * repository is using {@link MongoDataSource}, those methods execute blocking operations and return completed
+ * futures.
+ * <br>
+ * Requires {@code mongodb-driver-reactivestreams} to be available in the classpath.
+ *
+ * @author andrzej
+ */
+@Deprecated
+@TigaseDeprecated(since = "2.5.0", note = "MongoDB support in Tigase is depracated and will be removed in Tigase XMPP Server 9.0.0")
+@Repository.Meta(supportedUris = {"mongodb:.*"})
+public class MongoReactiveDataSource
+		extends MongoDataSource {
+
+	private MongoClient reactiveClient;
+	private MongoDatabase reactiveDb;
+
+	/**
+	 * Returns reactive collection if data source is {@link MongoReactiveDataSource} or {@code null} otherwise.
+	 *
+	 * @param readRouting read preference and read concern of this routing will be used for returned collection
+	 * (may be {@code null})
+	 */
+	public static MongoCollection<Document> getReactiveCollection(MongoDataSource dataSource, String name,
+	                                                              ReadRouting readRouting) {
+		return getReactiveCollection(dataSource, name, Document.class, readRouting);
+	}
+
+	/**
+	 * Returns reactive collection of typed records if data source is {@link MongoReactiveDataSource} or {@code null}
+	 * otherwise.
+	 */
+	public static <T> MongoCollection<T> getReactiveCollection(MongoDataSource dataSource, String name,
+	                                                           Class<T> documentClass, ReadRouting readRouting) {
+		if (!(dataSource instanceof MongoReactiveDataSource)) {
+			return null;
+		}
+		MongoCollection<T> collection = ((MongoReactiveDataSource) dataSource).getReactiveDatabase()
+				.getCollection(name, documentClass);
+		if (readRouting != null) {
+			if (readRouting.getReadPreference() != null) {
+				collection = collection.withReadPreference(readRouting.getReadPreference());
+			}
+			if (readRouting.getReadConcern() != null) {
+				collection = collection.withReadConcern(readRouting.getReadConcern());
+			}
+		}
+		return collection;
+	}
+
+	@Override
+	public void beforeUnregister() {
+		if (reactiveClient != null) {
+			reactiveClient.close();
+		}
+		super.beforeUnregister();
+	}
+
+	public MongoDatabase getReactiveDatabase() {
+		return reactiveDb;
+	}
+
+	@Override
+	public void initialize(String resource_uri) throws DBInitException {
+		super.initialize(resource_uri);
+		ConnectionString connectionString = new ConnectionString(resource_uri);
+		reactiveClient = MongoClients.create(createClientSettings(connectionString));
+		reactiveDb = reactiveClient.getDatabase(connectionString.getDatabase());
+	}
+}
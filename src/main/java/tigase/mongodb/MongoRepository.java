@@ -25,6 +25,7 @@ import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.*;
+import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.Binary;
@@ -34,24 +35,34 @@ import tigase.auth.credentials.entries.PlainCredentialsEntry;
 import tigase.db.*;
 import tigase.db.util.RepositoryVersionAware;
 import tigase.db.util.SchemaLoader;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
 import tigase.util.StringUtilities;
 import tigase.util.Version;
 import tigase.xmpp.jid.BareJID;
 
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import static tigase.db.AuthRepositoryImpl.ACCOUNT_STATUS_KEY;
-import static tigase.mongodb.Helper.collectionExists;
 
 /**
  * MongoRepository is implementation of UserRepository and AuthRepository which supports MongoDB data store.
@@ -65,29 +76,94 @@ import static tigase.mongodb.Helper.collectionExists;
 @TigaseDeprecated(since = "2.5.0", note = "MongoDB support in Tigase is depracated and will be removed in Tigase XMPP Server 9.0.0")
 public class MongoRepository
 		extends AbstractAuthRepositoryWithCredentials
-		implements UserRepository, DataSourceAware<MongoDataSource>, MongoRepositoryVersionAware {
+		implements UserRepository, DataSourceAware<MongoDataSource>, MongoRepositoryVersionAware, StatisticHolder,
+		           Initializable, UnregisterAware {
 
 	protected static final String USERS_COLLECTION = "tig_users";
+	protected static final String USERS_COUNT_COLLECTION = "tig_users_count";
 	protected static final String USER_CREDENTIALS_COLLECTION = "tig_user_credentials";
 	protected static final String NODES_COLLECTION = "tig_nodes";
+	protected static final String USER_DATA_COLLECTION = "tig_user_data";
 	protected static final String ID_KEY = "user_id";
 	protected static final String DOMAIN_KEY = "domain";
 	private static final Logger log = Logger.getLogger(MongoRepository.class.getCanonicalName());
-	private static final String JID_HASH_ALG = "SHA-256";
 	private static final int DEF_BATCH_SIZE = 100;
 	private static final String AUTO_CREATE_USER_KEY = "autoCreateUser=";
-	private static final Charset UTF8 = Charset.forName("UTF-8");
 	@ConfigField(desc = "Auto create user", alias = AUTO_CREATE_USER_KEY)
 	protected boolean autoCreateUser = false;
 	private AuthRepositoryImpl auth;
 	@ConfigField(desc = "Batch size", alias = "batch-size")
 	private int batchSize = DEF_BATCH_SIZE;
+	private CredentialsCache credentialsCache;
+	@ConfigField(desc = "Time (in seconds) for which unknown credentials are cached", alias = "credentials-cache-negative-ttl")
+	private long credentialsCacheNegativeTtl = 5;
+	@ConfigField(desc = "Max number of users which credentials are cached (0 disables cache)", alias = "credentials-cache-size")
+	private int credentialsCacheSize = 0;
+	@ConfigField(desc = "Time (in seconds) for which credentials are cached", alias = "credentials-cache-ttl")
+	private long credentialsCacheTtl = 30;
 	private MongoDataSource dataSource;
 	private MongoDatabase db;
+	@ConfigField(desc = "Store all data of a user in a single document", alias = "embedded-user-data")
+	private boolean embeddedUserData = false;
+	@ConfigField(desc = "Migrate data of all users to single documents in background", alias = "embedded-user-data-migration")
+	private boolean embeddedUserDataMigration = true;
+	@ConfigField(desc = "Number of users imported in a single batch", alias = "import-batch-size")
+	private int importBatchSize = 1000;
+	@ConfigField(desc = "Number of threads encoding credentials of imported users (0 - number of CPUs)", alias = "import-parallelism")
+	private int importParallelism = 0;
+	private KnownUsers knownUsers;
+	@ConfigField(desc = "Interval (in seconds) after which set of users known to exist is cleared", alias = "known-users-reset-interval")
+	private long knownUsersResetInterval = 3600;
+	@ConfigField(desc = "Max number of users known to exist kept in memory to skip creation of user entries on writes (0 disables)", alias = "known-users-size")
+	private int knownUsersSize = 1000000;
+	@ConfigField(desc = "Interval (in seconds) of writes of last activity of users", alias = "last-activity-flush-interval")
+	private long lastActivityFlushInterval = 60;
+	private LastActivityTracker lastActivityTracker;
+	@ConfigField(desc = "Compression level of large values of user data", alias = "large-value-compression-level")
+	private int largeValueCompressionLevel = 6;
+	@ConfigField(desc = "Min length of user data value stored compressed (0 disables compression)", alias = "large-value-compression-threshold")
+	private int largeValueCompressionThreshold = 0;
+	@ConfigField(desc = "Min size of user data value stored in a separate collection (0 disables)", alias = "large-value-offload-threshold")
+	private int largeValueOffloadThreshold = 0;
+	private LargeValues largeValues;
+	@ConfigField(desc = "Track time of last login or logout of users", alias = "last-activity-tracking")
+	private boolean lastActivityTracking = true;
+	@ConfigField(desc = "Migrate passwords stored in tig_users to tig_user_credentials in background", alias = "legacy-password-migration")
+	private boolean legacyPasswordMigration = true;
+	private LegacyPasswordMigrator legacyPasswordMigrator;
+	private volatile boolean nodePathsComplete = false;
 	private MongoCollection<Document> nodesCollection;
-	private boolean passwordInUsersCollection = false;
+	private volatile boolean passwordInUsersCollection = false;
+	@ConfigField(desc = "Number of users removed in a single chunk while removing users in bulk", alias = "purge-chunk-size")
+	private int purgeChunkSize = 1000;
+	@ConfigField(desc = "Number of chunks of users removed in parallel", alias = "purge-parallelism")
+	private int purgeParallelism = 4;
+	@ConfigField(desc = "Max number of users removed per second while removing users in bulk (0 - unlimited)", alias = "purge-rate-limit")
+	private long purgeRateLimit = 0;
+	@ConfigField(desc = "Read concern used for statistics queries", alias = "read-concern")
+	private String readConcern = null;
+	@ConfigField(desc = "Max staleness (in seconds) of secondary used for statistics queries", alias = "read-max-staleness")
+	private long readMaxStaleness = -1;
+	@ConfigField(desc = "Read preference used for statistics queries", alias = "read-preference")
+	private String readPreference = null;
+	// names of background jobs (ie. migrations) which are running, so they are not started again on reload
+	private final Set<String> runningJobs = ConcurrentHashMap.newKeySet();
+	// executes periodic tasks and background jobs, replaced when data source is set
+	private ScheduledExecutorService scheduler;
 	private MongoCollection<Document> userCredentialsCollection;
+	private UserDataCache userDataCache;
+	@ConfigField(desc = "Subnodes which data should not be cached", alias = "user-data-cache-excluded-subnodes")
+	private String[] userDataCacheExcludedSubnodes = new String[0];
+	@ConfigField(desc = "Max number of users which data is cached (0 disables cache)", alias = "user-data-cache-size")
+	private int userDataCacheSize = 0;
+	private EmbeddedUserDataStore userDataStore;
 	private MongoCollection<Document> usersCollection;
+	@ConfigField(desc = "Interval (in seconds) of reconciliation of per-domain counters of users", alias = "users-count-reconcile-interval")
+	private long usersCountReconcileInterval = 3600;
+	private UsersCounter usersCounter;
+	@ConfigField(desc = "Number of users loaded in a single page while iterating over users", alias = "users-page-size")
+	private int usersPageSize = 1000;
+	private MongoCollection<Document> usersStatsCollection;
 
 	@Override
 	public void addDataList(BareJID user, String subnode, String key, String[] list)
@@ -95,10 +171,18 @@ public class MongoRepository
 		subnode = normalizeSubnode(subnode);
 		try {
 			byte[] uid = generateId(user);
-			Document dto = new Document("uid", uid).append("node", subnode)
-					.append("key", key)
-					.append("values", Arrays.asList(list));
-			nodesCollection.insertOne(dto);
+			if (userDataStore != null) {
+				userDataStore.addValues(uid, subnode, key, Arrays.asList(list));
+			} else {
+				Document dto = new Document("uid", uid).append("node", subnode)
+						.append("key", key)
+						.append("values", Arrays.asList(list));
+				if (subnode != null) {
+					dto.append(NodePaths.PATH_KEY, NodePaths.of(subnode));
+				}
+				nodesCollection.insertOne(dto);
+			}
+			invalidateUserData(uid);
 			if (autoCreateUser) {
 				ensureUserExists(user, uid);
 			}
@@ -127,6 +211,11 @@ public class MongoRepository
 			userDto.append(DOMAIN_KEY, user.getDomain());
 			userDto.append("_id", id);
 			usersCollection.insertOne(userDto);
+			invalidateCredentials(user);
+			usersCounter.increment(user.getDomain(), 1);
+			if (knownUsers != null) {
+				knownUsers.add(id);
+			}
 			return id;
 		} catch (MongoWriteException ex) {
 			if (ex.getError() != null) {
@@ -141,12 +230,7 @@ public class MongoRepository
 	}
 
 	protected byte[] calculateHash(String user) throws TigaseDBException {
-		try {
-			MessageDigest md = MessageDigest.getInstance(JID_HASH_ALG);
-			return md.digest(user.getBytes(UTF8));
-		} catch (NoSuchAlgorithmException ex) {
-			throw new TigaseDBException("Should not happen!!", ex);
-		}
+		return JidIdCodec.calculateHash(user);
 	}
 
 	private Document createCrit(BareJID user, String subnode, String key) throws TigaseDBException {
@@ -166,22 +250,30 @@ public class MongoRepository
 
 	private void ensureUserExists(BareJID user, byte[] id) throws TigaseDBException {
 		try {
-			BasicDBObject userDto = new BasicDBObject();
-			userDto.append(DOMAIN_KEY, user.getDomain());
 			if (id == null) {
 				id = generateId(user);
 			}
+			if (knownUsers != null && knownUsers.contains(id)) {
+				return;
+			}
+			BasicDBObject userDto = new BasicDBObject();
+			userDto.append(DOMAIN_KEY, user.getDomain());
 			userDto.append("_id", id);
-			usersCollection.updateOne(userDto,
-			                          new Document("$set", new Document(userDto).append(ID_KEY, user.toString())),
-			                          new UpdateOptions().upsert(true));
+			Document update = new Document("$set", new Document(userDto).append(ID_KEY, user.toString()));
+			UpdateResult result = usersCollection.updateOne(userDto, update, new UpdateOptions().upsert(true));
+			if (result.getUpsertedId() != null) {
+				usersCounter.increment(user.getDomain(), 1);
+			}
+			if (knownUsers != null) {
+				knownUsers.add(id);
+			}
 		} catch (MongoException ex) {
 			throw new TigaseDBException("Error adding user to repository: ", ex);
 		}
 	}
 
 	protected byte[] generateId(BareJID user) throws TigaseDBException {
-		return calculateHash(user.toString().toLowerCase());
+		return JidIdCodec.generateId(user);
 	}
 
 	@Override
@@ -192,6 +284,13 @@ public class MongoRepository
 
 	@Override
 	public Credentials getCredentials(BareJID user, String credentialId) throws TigaseDBException {
+		if (credentialsCache != null) {
+			return credentialsCache.get(user, credentialId, () -> loadCredentials(user, credentialId));
+		}
+		return loadCredentials(user, credentialId);
+	}
+
+	private Credentials loadCredentials(BareJID user, String credentialId) throws TigaseDBException {
 		byte[] uid = generateId(user);
 
 		List<String> mechanisms = getCredentialsDecoder().getSupportedMechanisms();
@@ -243,9 +342,20 @@ public class MongoRepository
 
 	@Override
 	public String getData(BareJID user, String subnode, String key) throws UserNotFoundException, TigaseDBException {
+		if (userDataCache != null) {
+			return userDataCache.get(generateId(user), UserDataCache.DATA, normalizeSubnode(subnode), key,
+			                         () -> loadData(user, subnode, key));
+		}
+		return loadData(user, subnode, key);
+	}
+
+	private String loadData(BareJID user, String subnode, String key) throws TigaseDBException {
 		try {
+			if (userDataStore != null) {
+				return largeValues.decode(userDataStore.getValue(generateId(user), normalizeSubnode(subnode), key));
+			}
 			Document result = getDataInt(user, subnode, key);
-			return (result != null) ? result.getString("value") : null;
+			return (result != null) ? largeValues.decode(result.get("value")) : null;
 		} catch (MongoException ex) {
 			throw new TigaseDBException("Problem retrieving data from repository", ex);
 		}
@@ -253,12 +363,7 @@ public class MongoRepository
 
 	@Override
 	public String getData(BareJID user, String key) throws UserNotFoundException, TigaseDBException {
-		try {
-			Document result = getDataInt(user, null, key);
-			return (result != null) ? result.getString("value") : null;
-		} catch (MongoException ex) {
-			throw new TigaseDBException("Problem retrieving data from repository", ex);
-		}
+		return getData(user, null, key);
 	}
 
 	@Override
@@ -270,15 +375,75 @@ public class MongoRepository
 	@Override
 	public <T> Map<String, T> getDataMap(BareJID user, String subnode, Function<String, T> converter)
 			throws TigaseDBException {
+		Map<String, String> data;
+		if (userDataCache != null) {
+			data = userDataCache.get(generateId(user), UserDataCache.MAP, normalizeSubnode(subnode), null,
+			                         () -> loadDataMap(user, subnode));
+		} else {
+			data = loadDataMap(user, subnode);
+		}
+		Map<String, T> result = new HashMap<>(data.size());
+		for (Map.Entry<String, String> e : data.entrySet()) {
+			result.put(e.getKey(), e.getValue() != null ? converter.apply(e.getValue()) : null);
+		}
+		return result;
+	}
+
+	private Map<String, String> loadDataMap(BareJID user, String subnode) throws TigaseDBException {
 		try {
+			if (userDataStore != null) {
+				return largeValues.decodeAll(userDataStore.getNode(generateId(user), normalizeSubnode(subnode)));
+			}
+			Map<String, Object> result = new HashMap<>();
 			Bson crit = createCrit(user, subnode, null);
-			Map<String, T> result = new HashMap<>();
 			for (Document doc : nodesCollection.find(crit).projection(Projections.include("key", "value"))) {
-				String value = doc.getString("value");
-				if (value != null) {
-					result.put(doc.getString("key"), converter.apply(value));
-				} else {
-					result.put(doc.getString("key"), null);
+				result.put(doc.getString("key"), doc.get("value"));
+			}
+			return largeValues.decodeAll(result);
+		} catch (MongoException ex) {
+			throw new TigaseDBException("Problem retrieving data from repository", ex);
+		}
+	}
+
+	/**
+	 * Returns values of the key in the subnode for multiple users (users without value are not included). Data of
+	 * users is loaded in batches using a single query per batch.
+	 */
+	public Map<BareJID, String> getData(Collection<BareJID> users, String subnode, String key)
+			throws TigaseDBException {
+		Map<BareJID, String> result = new HashMap<>(users.size());
+		for (Map.Entry<BareJID, Map<String, String>> e : loadDataMaps(users, subnode, key).entrySet()) {
+			String value = e.getValue().get(key);
+			if (value != null) {
+				result.put(e.getKey(), value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns keys and values stored in the subnode for each of the users. Data of users is loaded in batches using a
+	 * single query per batch.
+	 */
+	public Map<BareJID, Map<String, String>> getDataMaps(Collection<BareJID> users, String subnode)
+			throws TigaseDBException {
+		return loadDataMaps(users, subnode, null);
+	}
+
+	private Map<BareJID, Map<String, String>> loadDataMaps(Collection<BareJID> users, String subnode, String key)
+			throws TigaseDBException {
+		subnode = normalizeSubnode(subnode);
+		Map<BareJID, Map<String, String>> result = new HashMap<>(users.size());
+		Map<ByteBuffer, BareJID> batch = new HashMap<>();
+		try {
+			Iterator<BareJID> it = users.iterator();
+			while (it.hasNext()) {
+				BareJID user = it.next();
+				result.put(user, new HashMap<>());
+				batch.put(ByteBuffer.wrap(generateId(user)), user);
+				if (batch.size() >= batchSize || !it.hasNext()) {
+					loadDataMaps(batch, subnode, key, result);
+					batch.clear();
 				}
 			}
 			return result;
@@ -287,6 +452,43 @@ public class MongoRepository
 		}
 	}
 
+	private void loadDataMaps(Map<ByteBuffer, BareJID> batch, String subnode, String key,
+	                          Map<BareJID, Map<String, String>> result) {
+		List<byte[]> uids = new ArrayList<>(batch.size());
+		for (ByteBuffer uid : batch.keySet()) {
+			uids.add(uid.array());
+		}
+		if (userDataStore != null) {
+			for (Map.Entry<ByteBuffer, Map<String, Object>> e : userDataStore.getNodes(uids, subnode).entrySet()) {
+				Map<String, Object> values = e.getValue();
+				if (key != null) {
+					values = values.containsKey(key)
+					         ? Collections.singletonMap(key, values.get(key))
+					         : Collections.emptyMap();
+				}
+				result.get(batch.get(e.getKey())).putAll(largeValues.decodeAll(values));
+			}
+			return;
+		}
+		Bson crit = Filters.and(Filters.in("uid", uids),
+		                        subnode == null ? Filters.exists("node", false) : Filters.eq("node", subnode));
+		if (key != null) {
+			crit = Filters.and(crit, Filters.eq("key", key));
+		}
+		Map<BareJID, Map<String, Object>> values = new HashMap<>(batch.size());
+		for (Document doc : nodesCollection.find(crit)
+				.projection(Projections.include("uid", "key", "value"))
+				.batchSize(batchSize)) {
+			BareJID user = batch.get(ByteBuffer.wrap(((Binary) doc.get("uid")).getData()));
+			if (user != null) {
+				values.computeIfAbsent(user, u -> new HashMap<>()).put(doc.getString("key"), doc.get("value"));
+			}
+		}
+		for (Map.Entry<BareJID, Map<String, Object>> e : values.entrySet()) {
+			result.get(e.getKey()).putAll(largeValues.decodeAll(e.getValue()));
+		}
+	}
+
 	private Document getDataInt(BareJID user, String subnode, String key) throws TigaseDBException {
 		Bson crit = createCrit(user, subnode, key);
 		return nodesCollection.find(crit).first();
@@ -295,7 +497,22 @@ public class MongoRepository
 	@Override
 	public String[] getDataList(BareJID user, String subnode, String key)
 			throws UserNotFoundException, TigaseDBException {
+		if (userDataCache != null) {
+			return userDataCache.get(generateId(user), UserDataCache.LIST, normalizeSubnode(subnode), key,
+			                         () -> loadDataList(user, subnode, key)).clone();
+		}
+		return loadDataList(user, subnode, key);
+	}
+
+	private String[] loadDataList(BareJID user, String subnode, String key) throws TigaseDBException {
 		try {
+			if (userDataStore != null) {
+				Object value = userDataStore.getValue(generateId(user), normalizeSubnode(subnode), key);
+				if (value instanceof List) {
+					return ((List<String>) value).toArray(new String[0]);
+				}
+				return value == null ? new String[0] : new String[]{largeValues.decode(value)};
+			}
 			List<String> values = new ArrayList<>();
 			Document crit = createCrit(user, subnode, key);
 			FindIterable<Document> cursor = nodesCollection.find(crit).batchSize(batchSize);
@@ -303,7 +520,7 @@ public class MongoRepository
 				if (it.containsKey("values")) {
 					values.addAll((List<String>) it.get("values"));
 				} else if (it.containsKey("value")) {
-					values.add((String) it.get("value"));
+					values.add(largeValues.decode(it.get("value")));
 				}
 			}
 			return values.toArray(new String[values.size()]);
@@ -314,10 +531,20 @@ public class MongoRepository
 
 	@Override
 	public String[] getKeys(BareJID user, String subnode) throws UserNotFoundException, TigaseDBException {
+		if (userDataCache != null) {
+			return userDataCache.get(generateId(user), UserDataCache.KEYS, normalizeSubnode(subnode), null,
+			                         () -> loadKeys(user, subnode)).clone();
+		}
+		return loadKeys(user, subnode);
+	}
+
+	private String[] loadKeys(BareJID user, String subnode) throws TigaseDBException {
 		try {
+			if (userDataStore != null) {
+				return userDataStore.getNode(generateId(user), normalizeSubnode(subnode)).keySet().toArray(new String[0]);
+			}
 			Document crit = createCrit(user, subnode, null);
-			//List<String> result = db.getCollection(NODES_COLLECTION).distinct("key", crit);
-			List<String> result = readAllDistinctValuesForField(nodesCollection, "key", crit);
+			List<String> result = nodesCollection.distinct("key", crit, String.class).into(new ArrayList<>());
 			return result.toArray(new String[result.size()]);
 		} catch (MongoException ex) {
 			throw new TigaseDBException(
@@ -335,6 +562,34 @@ public class MongoRepository
 		return dataSource.getResourceUri();
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		UserDataCache userDataCache = this.userDataCache;
+		if (userDataCache != null) {
+			userDataCache.getStatistics(compName, list);
+		}
+		CredentialsCache credentialsCache = this.credentialsCache;
+		if (credentialsCache != null) {
+			credentialsCache.getStatistics(compName, list);
+		}
+		KnownUsers knownUsers = this.knownUsers;
+		if (knownUsers != null) {
+			knownUsers.getStatistics(compName, list);
+		}
+		LargeValues largeValues = this.largeValues;
+		if (largeValues != null) {
+			largeValues.getStatistics(compName, list);
+		}
+		LastActivityTracker lastActivityTracker = this.lastActivityTracker;
+		if (lastActivityTracker != null) {
+			lastActivityTracker.getStatistics(compName, list);
+		}
+		LegacyPasswordMigrator legacyPasswordMigrator = this.legacyPasswordMigrator;
+		if (legacyPasswordMigrator != null) {
+			legacyPasswordMigrator.getStatistics(compName, list);
+		}
+	}
+
 	@Override
 	public String[] getSubnodes(BareJID user) throws UserNotFoundException, TigaseDBException {
 		return getSubnodes(user, null);
@@ -345,13 +600,19 @@ public class MongoRepository
 		subnode = normalizeSubnode(subnode);
 		try {
 			byte[] uid = generateId(user);
+			if (userDataStore != null) {
+				List<String> res = userDataStore.getSubnodes(uid, subnode);
+				return res.isEmpty() ? null : res.toArray(new String[res.size()]);
+			}
+			if (nodePathsComplete) {
+				List<String> res = getSubnodesByPath(uid, subnode);
+				return res.isEmpty() ? null : res.toArray(new String[res.size()]);
+			}
 			Document crit = new Document("uid", uid);
 			Pattern regex = Pattern.compile("^" + (subnode != null ? subnode + "/" : "") + "[^/]*");
 			crit.append("node", regex);
-			//List<String> result = (List<String>) db.getCollection(NODES_COLLECTION).distinct("node", crit);
-			List<String> result = readAllDistinctValuesForField(nodesCollection, "node", crit);
-			List<String> res = new ArrayList<>();
-			for (String node : result) {
+			Set<String> res = new LinkedHashSet<>();
+			for (String node : nodesCollection.distinct("node", crit, String.class)) {
 				if (subnode != null) {
 					node = node.substring(subnode.length() + 1);
 				}
@@ -359,9 +620,7 @@ public class MongoRepository
 				if (idx > 0) {
 					node = node.substring(0, idx);
 				}
-				if (!res.contains(node)) {
-					res.add(node);
-				}
+				res.add(node);
 			}
 			return res.isEmpty() ? null : res.toArray(new String[res.size()]);
 		} catch (MongoException ex) {
@@ -369,6 +628,23 @@ public class MongoRepository
 		}
 	}
 
+	private List<String> getSubnodesByPath(byte[] uid, String subnode) {
+		// names of children are elements of paths of descendants at depth of the subnode
+		Bson match = subnode == null
+		             ? Filters.and(Filters.eq("uid", uid), Filters.exists(NodePaths.PATH_KEY))
+		             : Filters.and(Filters.eq("uid", uid), Filters.eq(NodePaths.PATH_KEY, subnode));
+		Document child = new Document("$arrayElemAt", Arrays.asList("$" + NodePaths.PATH_KEY, NodePaths.depth(subnode)));
+		List<Bson> pipeline = Arrays.asList(Aggregates.match(match),
+		                                    Aggregates.project(Projections.computed("child", child)),
+		                                    Aggregates.match(Filters.type("child", "string")),
+		                                    Aggregates.group("$child"));
+		List<String> result = new ArrayList<>();
+		for (Document doc : nodesCollection.aggregate(pipeline)) {
+			result.add(NodePaths.name(doc.getString("_id")));
+		}
+		return result;
+	}
+
 	@Override
 	public Collection<String> getCredentialIds(BareJID user) throws TigaseDBException {
 		try {
@@ -387,8 +663,15 @@ public class MongoRepository
 
 	@Override
 	public long getActiveUsersCountIn(Duration duration) {
-		// we don't update last-activity when we log-in user in MongoDB repository so it's impossible to get the info
-		return -1;
+		if (lastActivityTracker == null) {
+			return -1;
+		}
+		try {
+			Date since = new Date(System.currentTimeMillis() - duration.toMillis());
+			return usersStatsCollection.countDocuments(Filters.gte(LastActivityTracker.LAST_ACTIVITY_KEY, since));
+		} catch (MongoException ex) {
+			return -1;
+		}
 	}
 
 	/**
@@ -405,23 +688,44 @@ public class MongoRepository
 	@Override
 	public List<BareJID> getUsers() throws TigaseDBException {
 		List<BareJID> users = new ArrayList<>(1000);
+		forEachUser(null, users::add);
+		return users;
+	}
+
+	/**
+	 * Calls consumer for every user (of the domain, if not <code>null</code>) loading users in pages, so it may be
+	 * used to process all users in constant memory.
+	 */
+	public void forEachUser(String domain, Consumer<BareJID> consumer) throws TigaseDBException {
 		try {
-			FindIterable<Document> cursor = usersCollection.find()
-					.projection(new Document(ID_KEY, 1))
-					.batchSize(batchSize);
-			for (Document entry : cursor) {
-				users.add(BareJID.bareJIDInstanceNS((String) entry.get(ID_KEY)));
-			}
+			usersIterator(domain).forEachRemaining(consumer);
 		} catch (MongoException ex) {
 			throw new TigaseDBException("Problem loading user list from repository", ex);
 		}
-		return users;
+	}
+
+	/**
+	 * Returns lazily populated stream of users (of the domain, if not <code>null</code>). Stream may throw
+	 * <code>MongoException</code> while it is consumed.
+	 */
+	public Stream<BareJID> streamUsers(String domain) {
+		Spliterator<BareJID> spliterator = Spliterators.spliteratorUnknownSize(usersIterator(domain),
+		                                                                      Spliterator.ORDERED |
+				                                                                      Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false);
+	}
+
+	private Iterator<BareJID> usersIterator(String domain) {
+		return new UsersIterator(usersCollection, domain == null ? null : domain.toLowerCase(), usersPageSize);
 	}
 
 	@Override
 	public long getUsersCount() {
 		try {
-			return usersCollection.countDocuments();
+			if (usersCounter.isReady()) {
+				return usersCounter.getCount();
+			}
+			return usersStatsCollection.countDocuments();
 		} catch (MongoException ex) {
 			return -1;
 		}
@@ -430,15 +734,48 @@ public class MongoRepository
 	@Override
 	public long getUsersCount(String domain) {
 		try {
+			if (usersCounter.isReady()) {
+				return usersCounter.getCount(domain.toLowerCase());
+			}
 			Document crit = new Document();
 			// we can check domain field if we would use it or USER_ID field
 			crit.append(DOMAIN_KEY, domain.toLowerCase());
-			return usersCollection.countDocuments(crit);
+			return usersStatsCollection.countDocuments(crit);
 		} catch (MongoException ex) {
 			return -1;
 		}
 	}
 
+	/**
+	 * Imports users with their credentials and data in batches (see {@link BulkUserImporter}). If checkpoint is not
+	 * <code>null</code>, import may be resumed by calling this method with the same checkpoint and sequence of users.
+	 */
+	public long importUsers(Iterator<BulkUserImporter.ImportedUser> users, String checkpoint, LongConsumer progress)
+			throws TigaseDBException {
+		ForkJoinPool pool = new ForkJoinPool(
+				importParallelism > 0 ? importParallelism : Runtime.getRuntime().availableProcessors());
+		try {
+			boolean embedded = userDataStore != null;
+			MongoCollection<Document> dataCollection = embedded ? db.getCollection(USER_DATA_COLLECTION) : nodesCollection;
+			BulkUserImporter importer = new BulkUserImporter(usersCollection, usersCounter, userCredentialsCollection,
+			                                                 dataCollection, embedded,
+			                                                 db.getCollection(BulkUserImporter.CHECKPOINTS_COLLECTION),
+			                                                 (user, password) -> getCredentialsEncoder()
+					                                                 .encodeForAllMechanisms(user, password),
+			                                                 getCredentialsDecoder().getSupportedMechanisms(),
+			                                                 largeValues, this::usersImported, pool,
+			                                                 importBatchSize);
+			return importer.importUsers(users, checkpoint, progress);
+		} finally {
+			pool.shutdown();
+			try {
+				usersCounter.reconcile();
+			} catch (MongoException ex) {
+				log.log(Level.WARNING, "Reconciliation of counters of users failed", ex);
+			}
+		}
+	}
+
 	@Override
 	@Deprecated
 	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
@@ -455,10 +792,12 @@ public class MongoRepository
 
 	@Override
 	public void loggedIn(BareJID jid) throws TigaseDBException {
+		recordActivity(jid);
 	}
 
 	@Override
 	public void logout(BareJID user) throws UserNotFoundException, TigaseDBException {
+		recordActivity(user);
 	}
 
 	private String normalizeSubnode(String subnode) {
@@ -481,27 +820,44 @@ public class MongoRepository
 		auth.queryAuth(authProps);
 	}
 
+	private void recordActivity(BareJID user) throws TigaseDBException {
+		LastActivityTracker lastActivityTracker = this.lastActivityTracker;
+		if (lastActivityTracker != null) {
+			lastActivityTracker.record(generateId(user), System.currentTimeMillis());
+		}
+	}
+
+	private void invalidateCredentials(BareJID user) {
+		if (credentialsCache != null) {
+			credentialsCache.invalidate(user);
+		}
+	}
+
+	private void invalidateUserData(byte[] uid) {
+		if (userDataCache != null) {
+			userDataCache.invalidate(uid);
+		}
+	}
+
 	protected <T> List<T> readAllDistinctValuesForField(MongoCollection<Document> collection, String field,
 	                                                    Document crit) throws MongoException {
 		FindIterable<Document> cursor = collection.find(crit)
 				.projection(new BasicDBObject(field, 1))
 				.batchSize(batchSize);
 
-		List<T> result = new ArrayList<>();
+		Set<T> result = new LinkedHashSet<>();
 		for (Document item : cursor) {
-			T val = (T) item.get(field);
-			if (!result.contains(val)) {
-				result.add(val);
-			}
+			result.add((T) item.get(field));
 		}
 
-		return result;
+		return new ArrayList<>(result);
 	}
 
 	@Override
 	public void removeCredential(BareJID user, String credentialId) throws TigaseDBException {
 		byte[] uid = generateId(user);
 		userCredentialsCollection.deleteMany(Filters.and(Filters.eq("uid", uid), Filters.eq("username", credentialId)));
+		invalidateCredentials(user);
 	}
 
 	@Override
@@ -512,8 +868,15 @@ public class MongoRepository
 	@Override
 	public void removeData(BareJID user, String subnode, String key) throws UserNotFoundException, TigaseDBException {
 		try {
-			Document crit = createCrit(user, subnode, key);
-			db.getCollection(NODES_COLLECTION).deleteMany(crit);
+			byte[] uid = generateId(user);
+			if (userDataStore != null) {
+				userDataStore.removeValue(uid, normalizeSubnode(subnode), key);
+			} else {
+				Document crit = createCrit(user, subnode, key);
+				db.getCollection(NODES_COLLECTION).deleteMany(crit);
+			}
+			largeValues.remove(uid, normalizeSubnode(subnode), key);
+			invalidateUserData(uid);
 		} catch (MongoException ex) {
 			throw new TigaseDBException("Error data from repository: ", ex);
 		}
@@ -525,10 +888,21 @@ public class MongoRepository
 
 		try {
 			byte[] uid = generateId(user);
-			Document crit = new Document("uid", uid);
-			Pattern regex = Pattern.compile("^" + (subnode != null ? subnode : "") + "[^/]*");
-			crit.append("node", regex);
-			nodesCollection.deleteMany(crit);
+			if (userDataStore != null) {
+				userDataStore.removeSubnode(uid, subnode);
+			} else if (nodePathsComplete && subnode != null) {
+				nodesCollection.deleteMany(
+						Filters.and(Filters.eq("uid", uid), Filters.eq(NodePaths.PATH_KEY, subnode)));
+			} else {
+				Document crit = new Document("uid", uid);
+				Pattern regex = Pattern.compile("^" + (subnode != null ? subnode : "") + "[^/]*");
+				crit.append("node", regex);
+				nodesCollection.deleteMany(crit);
+			}
+			if (subnode != null) {
+				largeValues.remove(uid, subnode, null);
+			}
+			invalidateUserData(uid);
 		} catch (MongoException ex) {
 			throw new TigaseDBException("Error removing subnode from repository: ", ex);
 		}
@@ -540,14 +914,88 @@ public class MongoRepository
 			Document userDto = new Document();
 			byte[] id = generateId(user);
 			userDto.append("_id", id);
-			usersCollection.deleteOne(userDto);
+			if (usersCollection.deleteOne(userDto).getDeletedCount() > 0) {
+				usersCounter.increment(user.getDomain(), -1);
+			}
+			// removed after deletion, so concurrent check could not mark user as known again
+			if (knownUsers != null) {
+				knownUsers.remove(id);
+			}
+			userCredentialsCollection.deleteMany(Filters.eq("uid", id));
+			invalidateCredentials(user);
 
 			removeSubnode(user, null);
+			largeValues.remove(id, null, null);
 		} catch (MongoException e) {
 			throw new TigaseDBException("Error removing user from repository: ", e);
 		}
 	}
 
+	/**
+	 * Removes all users of the domain with their credentials and data (see {@link UsersPurger}). If interrupted, it
+	 * may be called again to remove remaining users. Progress listener may be called from multiple threads.
+	 */
+	public long removeDomainUsers(String domain, LongConsumer progress) throws TigaseDBException {
+		return purgeUsers(new UsersIterator(usersCollection, domain, purgeChunkSize), "purge:" + domain, progress);
+	}
+
+	/**
+	 * Removes users with their credentials and data in chunks (see {@link UsersPurger}). Progress listener may be
+	 * called from multiple threads.
+	 */
+	public long removeUsers(Collection<BareJID> users, LongConsumer progress) throws TigaseDBException {
+		return purgeUsers(users.iterator(), null, progress);
+	}
+
+	private long purgeUsers(Iterator<BareJID> users, String checkpoint, LongConsumer progress)
+			throws TigaseDBException {
+		List<MongoCollection<Document>> dataCollections = new ArrayList<>();
+		dataCollections.add(userCredentialsCollection);
+		dataCollections.add(nodesCollection);
+		if (userDataStore != null) {
+			dataCollections.add(db.getCollection(USER_DATA_COLLECTION));
+		}
+		if (largeValues.isOffloading()) {
+			dataCollections.add(db.getCollection(LargeValues.BLOBS_COLLECTION));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, purgeParallelism), runnable -> {
+			Thread thread = new Thread(runnable, "mongodb-users-purge");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			UsersPurger purger = new UsersPurger(usersCollection, dataCollections, usersCounter,
+			                                     db.getCollection(BulkUserImporter.CHECKPOINTS_COLLECTION),
+			                                     this::usersRemoved, executor, purgeParallelism, purgeChunkSize,
+			                                     purgeRateLimit);
+			return purger.purge(users, checkpoint, progress);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void usersImported(List<BareJID> users) {
+		for (BareJID user : users) {
+			byte[] uid = JidIdCodec.generateId(user);
+			if (knownUsers != null) {
+				knownUsers.add(uid);
+			}
+			invalidateUserData(uid);
+			invalidateCredentials(user);
+		}
+	}
+
+	private void usersRemoved(List<BareJID> users) {
+		for (BareJID user : users) {
+			byte[] uid = JidIdCodec.generateId(user);
+			if (knownUsers != null) {
+				knownUsers.remove(uid);
+			}
+			invalidateUserData(uid);
+			invalidateCredentials(user);
+		}
+	}
+
 	@Override
 	public void setAccountStatus(BareJID user, AccountStatus status) throws TigaseDBException {
 		if (status == null) {
@@ -558,6 +1006,7 @@ public class MongoRepository
 
 		byte[] uid = generateId(user);
 		userCredentialsCollection.updateMany(Filters.eq("uid", uid), Updates.set(ACCOUNT_STATUS_KEY, status.name()));
+		invalidateCredentials(user);
 	}
 
 	@Override
@@ -569,12 +1018,21 @@ public class MongoRepository
 	public void setData(BareJID user, String subnode, String key, String value)
 			throws UserNotFoundException, TigaseDBException {
 		try {
-			Document crit = createCrit(user, subnode, key);
-			Document dto = new Document(crit).append("value", value);
-			if (subnode == null) {
-				dto.remove("node");
+			byte[] uid = generateId(user);
+			Object stored = largeValues.encode(uid, normalizeSubnode(subnode), key, value);
+			if (userDataStore != null) {
+				userDataStore.setValue(uid, normalizeSubnode(subnode), key, stored);
+			} else {
+				Document crit = createCrit(user, subnode, key);
+				Document dto = new Document(crit).append("value", stored);
+				if (subnode == null) {
+					dto.remove("node");
+				} else {
+					dto.append(NodePaths.PATH_KEY, NodePaths.of(dto.getString("node")));
+				}
+				nodesCollection.updateOne(crit, new Document("$set", dto), new UpdateOptions().upsert(true));
 			}
-			nodesCollection.updateOne(crit, new Document("$set", dto), new UpdateOptions().upsert(true));
+			invalidateUserData(uid);
 			if (autoCreateUser) {
 				ensureUserExists(user, null);
 			}
@@ -587,16 +1045,23 @@ public class MongoRepository
 	public void setDataList(BareJID user, String subnode, String key, String[] list)
 			throws UserNotFoundException, TigaseDBException {
 		try {
-			Document crit = createCrit(user, subnode, key);
-			Document dto = new Document(crit).append("values", Arrays.asList(list));
-			if (subnode == null) {
-				dto.remove("node");
-			}
+			if (userDataStore != null) {
+				userDataStore.setValue(generateId(user), normalizeSubnode(subnode), key, Arrays.asList(list));
+			} else {
+				Document crit = createCrit(user, subnode, key);
+				Document dto = new Document(crit).append("values", Arrays.asList(list));
+				if (subnode == null) {
+					dto.remove("node");
+				} else {
+					dto.append(NodePaths.PATH_KEY, NodePaths.of(dto.getString("node")));
+				}
 
-			List<WriteModel<Document>> operation = new ArrayList<>();
-			operation.add(new DeleteManyModel<>(crit));
-			operation.add(new InsertOneModel<>(dto));
-			nodesCollection.bulkWrite(operation);
+				List<WriteModel<Document>> operation = new ArrayList<>();
+				operation.add(new DeleteManyModel<>(crit));
+				operation.add(new InsertOneModel<>(dto));
+				nodesCollection.bulkWrite(operation);
+			}
+			invalidateUserData(generateId(user));
 
 			if (autoCreateUser) {
 				ensureUserExists(user, null);
@@ -612,28 +1077,106 @@ public class MongoRepository
 		this.dataSource = dataSource;
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, USERS_COLLECTION)) {
-			db.createCollection(USERS_COLLECTION);
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(USERS_COLLECTION)
+				.index(new Document(DOMAIN_KEY, 1).append("_id", 1))
+				.index(new Document(LastActivityTracker.LAST_ACTIVITY_KEY, 1));
+		manifest.collection(USERS_COUNT_COLLECTION);
+		manifest.collection(USER_CREDENTIALS_COLLECTION)
+				.index(new Document("uid", 1).append("username", 1), new IndexOptions().unique(true));
+		manifest.collection(NODES_COLLECTION)
+				.index(new Document("uid", 1))
+				.index(new Document("node", 1))
+				.index(new Document("key", 1))
+				.index(new Document("uid", 1).append("node", 1).append("key", 1))
+				.index(new Document("uid", 1).append(NodePaths.PATH_KEY, 1));
+		if (embeddedUserData) {
+			manifest.collection(USER_DATA_COLLECTION);
 		}
-		usersCollection = db.getCollection(USERS_COLLECTION);
-
-		if (!collectionExists(db, USER_CREDENTIALS_COLLECTION)) {
-			db.createCollection(USER_CREDENTIALS_COLLECTION);
+		if (largeValueOffloadThreshold > 0) {
+			manifest.collection(LargeValues.BLOBS_COLLECTION).index(new Document("uid", 1).append("node", 1));
 		}
-		userCredentialsCollection = db.getCollection(USER_CREDENTIALS_COLLECTION);
-		userCredentialsCollection.createIndex(new BasicDBObject("uid", 1).append("username", 1),
-		                                      new IndexOptions().unique(true));
+		dataSource.reconcileSchema(manifest);
 
-		if (!collectionExists(db, NODES_COLLECTION)) {
-			db.createCollection(NODES_COLLECTION);
+		usersCollection = db.getCollection(USERS_COLLECTION);
+		usersStatsCollection = new ReadRouting(null, readPreference, readMaxStaleness, readConcern, false).forReads(
+				usersCollection);
+		userCredentialsCollection = db.getCollection(USER_CREDENTIALS_COLLECTION);
+		MongoCollection<Document> usersCountCollection = db.getCollection(USERS_COUNT_COLLECTION);
+		usersCounter = new UsersCounter(usersCountCollection,
+		                                new ReadRouting(null, readPreference, readMaxStaleness, readConcern,
+		                                                false).forReads(usersCountCollection), usersCollection);
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		// periodic tasks are short, other threads are used by background jobs
+		scheduler = Executors.newScheduledThreadPool(4, runnable -> {
+			Thread thread = new Thread(runnable, "mongodb-user-repository");
+			thread.setDaemon(true);
+			return thread;
+		});
+		startUsersCountReconciliation(usersCounter);
+		if (knownUsersSize > 0) {
+			KnownUsers knownUsers = new KnownUsers(knownUsersSize);
+			if (knownUsersResetInterval > 0) {
+				scheduler.scheduleWithFixedDelay(knownUsers::clear, knownUsersResetInterval, knownUsersResetInterval,
+				                                 TimeUnit.SECONDS);
+			}
+			this.knownUsers = knownUsers;
+		} else {
+			knownUsers = null;
+		}
+		if (lastActivityTracker != null) {
+			lastActivityTracker.flush();
+		}
+		if (lastActivityTracking) {
+			lastActivityTracker = new LastActivityTracker(usersCollection, dataSource.getBulkWriter());
+			startLastActivityFlush(lastActivityTracker);
+		} else {
+			lastActivityTracker = null;
 		}
 		nodesCollection = db.getCollection(NODES_COLLECTION);
-		nodesCollection.createIndex(new BasicDBObject("uid", 1));
-		nodesCollection.createIndex(new BasicDBObject("node", 1));
-		nodesCollection.createIndex(new BasicDBObject("key", 1));
-		nodesCollection.createIndex(new BasicDBObject("uid", 1).append("node", 1).append("key", 1));
+		largeValues = new LargeValues(db.getCollection(LargeValues.BLOBS_COLLECTION), largeValueCompressionThreshold,
+		                              largeValueCompressionLevel, largeValueOffloadThreshold);
+		nodePathsComplete = NodePaths.isComplete(nodesCollection,
+		                                         db.getCollection(BulkUserImporter.CHECKPOINTS_COLLECTION));
+		if (!nodePathsComplete) {
+			startNodePathsBackfill();
+		}
+		if (embeddedUserData) {
+			userDataStore = new EmbeddedUserDataStore(db.getCollection(USER_DATA_COLLECTION), nodesCollection);
+			if (embeddedUserDataMigration && !userDataStore.isMigrationCompleted()) {
+				startUserDataMigration(userDataStore);
+			}
+		} else {
+			userDataStore = null;
+		}
+		if (userDataCache != null) {
+			userDataCache.stop();
+			userDataCache = null;
+		}
+		credentialsCache = credentialsCacheSize > 0
+		                   ? new CredentialsCache(credentialsCacheSize, credentialsCacheTtl, credentialsCacheNegativeTtl)
+		                   : null;
+		if (userDataCacheSize > 0) {
+			if (userDataStore == null) {
+				enablePreImages(NODES_COLLECTION);
+			}
+			userDataCache = new UserDataCache(userDataCacheSize, userDataCacheExcludedSubnodes);
+			userDataCache.start(userDataStore != null ? db.getCollection(USER_DATA_COLLECTION) : nodesCollection,
+			                    userDataStore != null);
+		}
 
 		passwordInUsersCollection = usersCollection.countDocuments(Filters.exists(PASSWORD_KEY)) > 0;
+		if (passwordInUsersCollection && legacyPasswordMigration) {
+			legacyPasswordMigrator = new LegacyPasswordMigrator(usersCollection, userCredentialsCollection,
+			                                                    (user, password) -> getCredentialsEncoder()
+					                                                    .encodeForAllMechanisms(user, password),
+			                                                    batchSize);
+			startLegacyPasswordMigration();
+		} else {
+			legacyPasswordMigrator = null;
+		}
 
 		// let's override AuthRepositoryImpl to store password inside objects in tig_users
 		auth = new AuthRepositoryImpl(this) {
@@ -648,22 +1191,153 @@ public class MongoRepository
 		};
 	}
 
+	@Override
+	public void initialize() {
+		// credentials encoder is injected before initialization, data source may be set before or after
+		startLegacyPasswordMigration();
+	}
+
+	@Override
+	public void beforeUnregister() {
+		if (lastActivityTracker != null) {
+			lastActivityTracker.flush();
+		}
+		if (userDataCache != null) {
+			userDataCache.stop();
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Starts background job unless job with the same name is still running (ie. started before data source was set
+	 * again).
+	 */
+	private void startJob(String name, Runnable job) {
+		if (!runningJobs.add(name)) {
+			log.log(Level.FINE, "Background job {0} is already running", name);
+			return;
+		}
+		try {
+			scheduler.execute(() -> {
+				try {
+					job.run();
+				} finally {
+					runningJobs.remove(name);
+				}
+			});
+		} catch (RuntimeException ex) {
+			runningJobs.remove(name);
+			throw ex;
+		}
+	}
+
+	private void startLegacyPasswordMigration() {
+		LegacyPasswordMigrator migrator = legacyPasswordMigrator;
+		if (migrator == null || getCredentialsEncoder() == null) {
+			return;
+		}
+		startJob("password-migration", () -> {
+			try {
+				if (migrator.migrateAll()) {
+					// from now on credentials are only in tig_user_credentials
+					passwordInUsersCollection = false;
+				}
+			} catch (MongoException ex) {
+				log.log(Level.WARNING, "Migration of passwords failed, passwords will be migrated on login", ex);
+			}
+		});
+	}
+
+	private void startNodePathsBackfill() {
+		MongoCollection<Document> nodesCollection = this.nodesCollection;
+		MongoCollection<Document> checkpoints = db.getCollection(BulkUserImporter.CHECKPOINTS_COLLECTION);
+		startJob("node-paths", () -> {
+			try {
+				if (NodePaths.backfill(nodesCollection, checkpoints, batchSize)) {
+					nodePathsComplete = true;
+				}
+			} catch (MongoException ex) {
+				log.log(Level.WARNING, "Setting paths of subnodes failed", ex);
+			}
+		});
+	}
+
+	private void startLastActivityFlush(LastActivityTracker tracker) {
+		Runnable task = () -> {
+			try {
+				tracker.flush();
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Writing last activity of users failed", ex);
+			}
+		};
+		long interval = Math.max(1, lastActivityFlushInterval);
+		scheduler.scheduleWithFixedDelay(task, interval, interval, TimeUnit.SECONDS);
+	}
+
+	private void startUsersCountReconciliation(UsersCounter counter) {
+		Runnable task = () -> {
+			try {
+				counter.reconcile();
+			} catch (MongoException ex) {
+				log.log(Level.WARNING, "Reconciliation of counters of users failed", ex);
+			}
+		};
+		if (usersCountReconcileInterval > 0) {
+			scheduler.scheduleWithFixedDelay(task, counter.isReady() ? usersCountReconcileInterval : 0,
+			                                 usersCountReconcileInterval, TimeUnit.SECONDS);
+		} else if (!counter.isReady()) {
+			scheduler.execute(task);
+		}
+	}
+
+	/**
+	 * Enables pre-images of documents in change events of the collection, so user data cache is able to find out
+	 * which user data was removed. Requires MongoDB 6.0 or newer.
+	 */
+	private void enablePreImages(String collection) {
+		try {
+			db.runCommand(new Document("collMod", collection).append("changeStreamPreAndPostImages",
+			                                                         new Document("enabled", true)));
+		} catch (MongoException ex) {
+			log.log(Level.FINE, "Could not enable pre-images for " + collection +
+					", removal of user data will invalidate whole user data cache", ex);
+		}
+	}
+
+	private void startUserDataMigration(EmbeddedUserDataStore store) {
+		startJob("user-data-migration", () -> {
+			try {
+				store.migrateAll();
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Migration of user data failed, data will be migrated on access", ex);
+			}
+		});
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
 	@Override
 	public void updateCredential(BareJID user, String credentialId, String password) throws TigaseDBException {
 		List<String[]> credentials = getCredentialsEncoder().encodeForAllMechanisms(user, password);
 
 		byte[] uid = generateId(user);
-		AccountStatus accountStatus = Optional.ofNullable(getAccountStatus(user)).orElse(AccountStatus.active);
-		Document doc = new Document().append("uid", uid)
-				.append("username", credentialId)
-				.append(ACCOUNT_STATUS_KEY, accountStatus.name());
-		for (String[] pair : credentials) {
-			doc.append(pair[0], pair[1]);
-		}
-
-		userCredentialsCollection.findOneAndReplace(
-				Filters.and(Filters.eq("uid", uid), Filters.eq("username", credentialId)), doc,
-				new FindOneAndReplaceOptions().upsert(true));
+		// account status of an existing credential is kept, status of a new one is read bypassing caches
+		String status = loadData(user, null, ACCOUNT_STATUS_KEY);
+		AccountStatus accountStatus = status == null ? AccountStatus.active : AccountStatus.valueOf(status);
+		Bson update = BulkUserImporter.credentialsUpdate(credentials, getCredentialsDecoder().getSupportedMechanisms(),
+		                                                 accountStatus);
+
+		userCredentialsCollection.updateOne(Filters.and(Filters.eq("uid", uid), Filters.eq("username", credentialId)),
+		                                    update, new UpdateOptions().upsert(true));
+		invalidateCredentials(user);
 	}
 
 	@Override
@@ -673,9 +1347,6 @@ public class MongoRepository
 
 	@Override
 	public SchemaLoader.Result updateSchema(Optional<Version> oldVersion, Version newVersion) throws TigaseDBException {
-		long usersCount = getUsersCount();
-		List<BareJID> users = getUsers();
-
 		for (Document doc : usersCollection.find().batchSize(1000)) {
 			try {
 				byte[] oldUid = ((Binary) doc.get("_id")).getData();
@@ -688,6 +1359,9 @@ public class MongoRepository
 
 				nodesCollection.updateMany(new Document("uid", oldUid),
 				                           new Document("$set", new Document("uid", newUid)));
+				if (userDataStore != null) {
+					userDataStore.changeId(oldUid, newUid);
+				}
 
 				Document oldUserFilter = new Document("_id", oldUid).append(ID_KEY, user);
 				Document oldUserDocument = usersCollection.find(oldUserFilter).first();
@@ -700,6 +1374,12 @@ public class MongoRepository
 			}
 		}
 		;
+		if (userDataCache != null) {
+			userDataCache.invalidateAll();
+		}
+		if (knownUsers != null) {
+			knownUsers.clear();
+		}
 
 		return SchemaLoader.Result.ok;
 	}
@@ -709,8 +1389,13 @@ public class MongoRepository
 		try {
 			BasicDBObject userDto = new BasicDBObject();
 			byte[] id = generateId(user);
+			// set of known users is not used here, as user may have been removed by other cluster node
 			userDto.append("_id", id);
-			return usersCollection.countDocuments(userDto) > 0;
+			boolean exists = usersCollection.countDocuments(userDto) > 0;
+			if (exists && knownUsers != null) {
+				knownUsers.add(id);
+			}
+			return exists;
 		} catch (Exception e) {
 			return false;
 		}
@@ -600,9 +600,6 @@ public class MongoRepositoryOld
 
 	@Override
 	public SchemaLoader.Result updateSchema(Optional<Version> oldVersion, Version newVersion) throws TigaseDBException {
-		long usersCount = getUsersCount();
-		List<BareJID> users = getUsers();
-
 		for (Document doc : usersCollection.find().batchSize(1000)) {
 			try {
 				byte[] oldUid = ((Binary) doc.get("_id")).getData();
@@ -45,8 +45,6 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static tigase.mongodb.Helper.collectionExists;
-
 /**
  * Created by andrzej on 05.05.2017.
  */
@@ -356,9 +354,9 @@ public class MongoSchemaLoader
 		try {
 			MongoDatabase db = dataSource.getDatabase();
 			if (db != null) {
-				if (!collectionExists(db, SCHEMA_VERSION)) {
-					db.createCollection(SCHEMA_VERSION);
-				}
+				SchemaManifest manifest = new SchemaManifest();
+				manifest.collection(SCHEMA_VERSION);
+				dataSource.reconcileSchema(manifest);
 
 				Document crit = new Document("_id", component);
 				Document dto = new Document("version", version);
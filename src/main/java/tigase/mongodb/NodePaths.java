@@ -0,0 +1,148 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Materialized paths of subnodes stored in <code>tig_nodes</code>.
+ * <p>
+ * Each document of a subnode has a <code>path</code> field containing paths of the subnode and all its ancestors,
+ * starting from the top level subnode, ie. for subnode <code>a/b/c</code> it is <code>["a", "a/b", "a/b/c"]</code>.
+ * This allows to find all descendants of a subnode and names of its children using an index.
+ * <p>
+ * Documents stored before paths were introduced are updated in background. Completion is marked by a
+ * <code>{ _id: "node-paths" }</code> document in the collection of checkpoints, so that the collection is not scanned
+ * for documents without paths on every start.
+ *
+ * @author andrzej
+ */
+public class NodePaths {
+
+	public static final String COMPLETED_MARKER_ID = "node-paths";
+	public static final String PATH_KEY = "path";
+	private static final Logger log = Logger.getLogger(NodePaths.class.getCanonicalName());
+
+	/**
+	 * Returns paths of the subnode and all its ancestors.
+	 */
+	public static List<String> of(String subnode) {
+		if (subnode == null) {
+			return Collections.emptyList();
+		}
+		List<String> path = new ArrayList<>();
+		int idx = subnode.indexOf('/');
+		while (idx >= 0) {
+			path.add(subnode.substring(0, idx));
+			idx = subnode.indexOf('/', idx + 1);
+		}
+		path.add(subnode);
+		return path;
+	}
+
+	/**
+	 * Returns number of elements of the path of the subnode (0 for the root node).
+	 */
+	public static int depth(String subnode) {
+		if (subnode == null) {
+			return 0;
+		}
+		int depth = 1;
+		for (int i = 0; i < subnode.length(); i++) {
+			if (subnode.charAt(i) == '/') {
+				depth++;
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns name of the subnode (last element of its path).
+	 */
+	public static String name(String subnode) {
+		return subnode.substring(subnode.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Checks if all documents of subnodes in the collection have materialized paths. Collection is checked only if
+	 * completion was not marked yet.
+	 */
+	public static boolean isComplete(MongoCollection<Document> collection, MongoCollection<Document> checkpoints) {
+		if (checkpoints.find(Filters.eq("_id", COMPLETED_MARKER_ID)).first() != null) {
+			return true;
+		}
+		if (collection.find(missingPath()).projection(Projections.include("_id")).first() != null) {
+			return false;
+		}
+		checkpoints.replaceOne(Filters.eq("_id", COMPLETED_MARKER_ID),
+		                       new Document("_id", COMPLETED_MARKER_ID).append("completed", new Date()),
+		                       new ReplaceOptions().upsert(true));
+		return true;
+	}
+
+	/**
+	 * Sets paths of all documents of subnodes without materialized paths. Returns <code>true</code> if all documents
+	 * have paths set.
+	 */
+	public static boolean backfill(MongoCollection<Document> collection, MongoCollection<Document> checkpoints,
+	                               int batchSize) {
+		log.log(Level.FINE, "Setting paths of subnodes in {0}", collection.getNamespace());
+		List<WriteModel<Document>> batch = new ArrayList<>(batchSize);
+		for (Document doc : collection.find(missingPath())
+				.projection(Projections.include("_id", "node"))
+				.batchSize(batchSize)) {
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			String node = doc.getString("node");
+			batch.add(new UpdateOneModel<>(Filters.and(Filters.eq("_id", doc.get("_id")), Filters.eq("node", node)),
+			                               Updates.set(PATH_KEY, of(node))));
+			if (batch.size() >= batchSize) {
+				collection.bulkWrite(batch, new BulkWriteOptions().ordered(false));
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			collection.bulkWrite(batch, new BulkWriteOptions().ordered(false));
+		}
+		return isComplete(collection, checkpoints);
+	}
+
+	private static Bson missingPath() {
+		return Filters.and(Filters.type("node", "string"), Filters.exists(PATH_KEY, false));
+	}
+
+	private NodePaths() {
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maintains summary of offline messages of each recipient in <code>tig_offline_inbox</code>.
+ * <p>
+ * Summary document (<code>{ _id: to_hash, total: n, senders: { sender: n }, types: { msg_type: n } }</code>) is
+ * updated with <code>$inc</code> when a message is stored or removed. Message is counted before it is stored and only
+ * if number of messages from the sender is below the limit, so the store limit is checked and reserved by a single
+ * atomic update. Summaries of recipients with messages stored before the summaries were introduced are calculated in
+ * background and until that is completed (which is marked by a <code>{ _id: "backfill" }</code> document) summaries
+ * are not used for checking limits and counting. Interrupted calculation is started again by any node.
+ * <p>
+ * Summary may drift from stored messages, ie. if it was modified while being calculated or if a node crashed after
+ * a reservation was made but before the message was stored. Because of that summaries should be periodically
+ * calculated again with {@link #backfill(int)}, which also removes summaries of recipients without messages (summary
+ * not calculated since the calculation started, as the time of calculation or creation is kept in
+ * <code>calculated</code>).
+ *
+ * @author andrzej
+ */
+public class OfflineInbox {
+
+	public static final String BACKFILL_MARKER_ID = "backfill";
+	public static final String CALCULATED_KEY = "calculated";
+	public static final String INBOX_COLLECTION = "tig_offline_inbox";
+	public static final String SENDERS_KEY = "senders";
+	public static final String TOTAL_KEY = "total";
+	public static final String TYPES_KEY = "types";
+	private static final Logger log = Logger.getLogger(OfflineInbox.class.getCanonicalName());
+
+	private final MongoCollection<Document> collection;
+	private final MongoCollection<Document> messagesCollection;
+	private final com.mongodb.reactivestreams.client.MongoCollection<Document> reactiveCollection;
+	private volatile boolean ready;
+
+	protected static String senderKey(byte[] fromHash) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(fromHash);
+	}
+
+	private static Object add(Object value, Object delta) {
+		return ((Number) value).longValue() + ((Number) delta).longValue();
+	}
+
+	/**
+	 * Groups decrements of counters of removed messages by recipient.
+	 */
+	static Map<ByteBuffer, Document> decrements(Collection<OfflineMessageRecord> records) {
+		Map<ByteBuffer, Document> decrements = new HashMap<>();
+		for (OfflineMessageRecord record : records) {
+			if (record.toHash == null) {
+				continue;
+			}
+			Document inc = decrements.computeIfAbsent(ByteBuffer.wrap(record.toHash), k -> new Document());
+			inc.merge(TOTAL_KEY, -1L, OfflineInbox::add);
+			if (record.fromHash != null) {
+				inc.merge(SENDERS_KEY + "." + senderKey(record.fromHash), -1L, OfflineInbox::add);
+			}
+			if (record.msgType != null) {
+				inc.merge(TYPES_KEY + "." + record.msgType, -1L, OfflineInbox::add);
+			}
+		}
+		return decrements;
+	}
+
+	static Bson reserveFilter(byte[] toHash, byte[] fromHash, long limit) {
+		return Filters.and(Filters.eq("_id", toHash),
+		                   Filters.not(Filters.gte(SENDERS_KEY + "." + senderKey(fromHash), limit)));
+	}
+
+	static Bson reserveUpdate(byte[] fromHash, String msgType, long delta) {
+		return Updates.combine(Updates.inc(TOTAL_KEY, delta),
+		                       Updates.inc(SENDERS_KEY + "." + senderKey(fromHash), delta),
+		                       Updates.inc(TYPES_KEY + "." + msgType, delta),
+		                       Updates.setOnInsert(CALCULATED_KEY, new Date()));
+	}
+
+	private static boolean isDuplicateKey(Throwable ex) {
+		return ex instanceof MongoWriteException &&
+				((MongoWriteException) ex).getError().getCategory() == ErrorCategory.DUPLICATE_KEY;
+	}
+
+	public OfflineInbox(MongoCollection<Document> collection,
+	                    com.mongodb.reactivestreams.client.MongoCollection<Document> reactiveCollection,
+	                    MongoCollection<Document> messagesCollection) {
+		this.collection = collection;
+		this.reactiveCollection = reactiveCollection;
+		this.messagesCollection = messagesCollection;
+		this.ready = collection.find(Filters.eq("_id", BACKFILL_MARKER_ID)).first() != null;
+	}
+
+	/**
+	 * Calculates summaries of all recipients from stored messages and removes summaries of recipients without
+	 * messages. Used to calculate summaries for the first time and to correct them periodically.
+	 */
+	public void backfill(int batchSize) {
+		Date start = new Date();
+		int recipients = calculate(null, batchSize, start);
+		long removed = collection.deleteMany(Filters.lt(CALCULATED_KEY, start)).getDeletedCount();
+		collection.replaceOne(Filters.eq("_id", BACKFILL_MARKER_ID),
+		                      new Document("_id", BACKFILL_MARKER_ID).append("completed", new Date()),
+		                      new ReplaceOptions().upsert(true));
+		ready = true;
+		log.log(Level.FINE, "Calculated summaries of offline messages of {0} recipients, removed {1} outdated " +
+				"summaries", new Object[]{recipients, removed});
+	}
+
+	/**
+	 * Calculates summary of the recipient from stored messages (ie. if it could not be updated correctly).
+	 */
+	public void recalculate(byte[] toHash) {
+		try {
+			if (calculate(Filters.eq("to_hash", toHash), 100, new Date()) == 0) {
+				collection.deleteOne(Filters.eq("_id", toHash));
+			}
+		} catch (MongoException ex) {
+			log.log(Level.WARNING, "Could not calculate summary of offline messages", ex);
+		}
+	}
+
+	private int calculate(Bson filter, int batchSize, Date calculated) {
+		List<Bson> pipeline = new ArrayList<>();
+		if (filter != null) {
+			pipeline.add(Aggregates.match(filter));
+		}
+		pipeline.add(Aggregates.group(
+				new Document("to", "$to_hash").append("from", "$from_hash").append("type", "$msg_type"),
+				Accumulators.sum("count", 1L)));
+		pipeline.add(Aggregates.sort(Sorts.ascending("_id.to")));
+		List<WriteModel<Document>> updates = new ArrayList<>();
+		Document summary = null;
+		int recipients = 0;
+		for (Document doc : messagesCollection.aggregate(pipeline).allowDiskUse(true).batchSize(batchSize)) {
+			Document id = (Document) doc.get("_id");
+			if (id.get("to") == null) {
+				continue;
+			}
+			if (summary == null || !summary.get("_id").equals(id.get("to"))) {
+				if (summary != null) {
+					updates.add(new ReplaceOneModel<>(Filters.eq("_id", summary.get("_id")), summary,
+					                                  new ReplaceOptions().upsert(true)));
+					if (updates.size() >= batchSize) {
+						collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+						updates.clear();
+					}
+				}
+				recipients++;
+				summary = new Document("_id", id.get("to")).append(TOTAL_KEY, 0L)
+						.append(SENDERS_KEY, new Document())
+						.append(TYPES_KEY, new Document())
+						.append(CALCULATED_KEY, calculated);
+			}
+			long count = doc.get("count", Number.class).longValue();
+			summary.put(TOTAL_KEY, summary.getLong(TOTAL_KEY) + count);
+			if (id.get("from") != null) {
+				summary.get(SENDERS_KEY, Document.class)
+						.merge(senderKey(((Binary) id.get("from")).getData()), count, OfflineInbox::add);
+			}
+			if (id.get("type") != null) {
+				summary.get(TYPES_KEY, Document.class).merge(id.getString("type"), count, OfflineInbox::add);
+			}
+		}
+		if (summary != null) {
+			updates.add(new ReplaceOneModel<>(Filters.eq("_id", summary.get("_id")), summary,
+			                                  new ReplaceOptions().upsert(true)));
+		}
+		if (!updates.isEmpty()) {
+			collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		}
+		return recipients;
+	}
+
+	/**
+	 * Removes summary of the recipient (when all messages of the recipient are removed).
+	 */
+	public void clear(byte[] toHash) {
+		try {
+			collection.deleteOne(Filters.eq("_id", toHash));
+		} catch (MongoException ex) {
+			log.log(Level.WARNING, "Could not remove summary of offline messages", ex);
+		}
+	}
+
+	/**
+	 * Returns number of messages of the recipient per type of messages.
+	 */
+	public Map<String, Long> getCounts(byte[] toHash) {
+		Document doc = collection.find(Filters.eq("_id", toHash)).projection(Projections.include(TYPES_KEY)).first();
+		Map<String, Long> result = new HashMap<>();
+		if (doc != null && doc.get(TYPES_KEY) instanceof Document) {
+			for (Map.Entry<String, Object> e : doc.get(TYPES_KEY, Document.class).entrySet()) {
+				long count = ((Number) e.getValue()).longValue();
+				if (count > 0) {
+					result.put(e.getKey(), count);
+				}
+			}
+		}
+		return result;
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Updates summaries after removal of messages.
+	 */
+	public void removed(Collection<OfflineMessageRecord> records) {
+		try {
+			for (Map.Entry<ByteBuffer, Document> e : decrements(records).entrySet()) {
+				byte[] toHash = e.getKey().array();
+				collection.updateOne(Filters.eq("_id", toHash), new Document("$inc", e.getValue()));
+				collection.deleteOne(Filters.and(Filters.eq("_id", toHash), Filters.lte(TOTAL_KEY, 0)));
+			}
+		} catch (MongoException ex) {
+			log.log(Level.WARNING, "Could not update summary of offline messages", ex);
+		}
+	}
+
+	/**
+	 * Removes all summaries (and the marker of completed calculation), so they are not used until calculated again.
+	 */
+	public void reset() {
+		ready = false;
+		collection.deleteMany(new Document());
+	}
+
+	/**
+	 * Counts message in the summary of the recipient if number of messages from the sender is below the limit.
+	 * Returns <code>false</code> if limit is exceeded.
+	 */
+	public boolean reserve(byte[] toHash, byte[] fromHash, String msgType, long limit) {
+		Bson filter = reserveFilter(toHash, fromHash, limit);
+		Bson update = reserveUpdate(fromHash, msgType, 1);
+		try {
+			collection.updateOne(filter, update, new UpdateOptions().upsert(true));
+			return true;
+		} catch (MongoWriteException ex) {
+			if (!isDuplicateKey(ex)) {
+				throw ex;
+			}
+			// summary exists, so the limit was reached (or it was created concurrently)
+			return collection.updateOne(filter, update).getModifiedCount() > 0;
+		}
+	}
+
+	/**
+	 * Asynchronous variant of {@link #reserve(byte[], byte[], String, long)}. If reactive collection is not
+	 * available, it is executed synchronously (blocking the calling thread).
+	 */
+	public CompletableFuture<Boolean> reserveAsync(byte[] toHash, byte[] fromHash, String msgType, long limit) {
+		if (reactiveCollection == null) {
+			return Publishers.blocking(() -> reserve(toHash, fromHash, msgType, limit));
+		}
+		Bson filter = reserveFilter(toHash, fromHash, limit);
+		Bson update = reserveUpdate(fromHash, msgType, 1);
+		return Publishers.first(reactiveCollection.updateOne(filter, update, new UpdateOptions().upsert(true)))
+				.handle((result, ex) -> {
+					Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+					if (cause == null) {
+						return CompletableFuture.completedFuture(true);
+					}
+					if (!isDuplicateKey(cause)) {
+						CompletableFuture<Boolean> future = new CompletableFuture<>();
+						future.completeExceptionally(cause);
+						return future;
+					}
+					return Publishers.first(reactiveCollection.updateOne(filter, update))
+							.thenApply(r -> r.getModifiedCount() > 0);
+				})
+				.thenCompose(future -> future);
+	}
+
+	/**
+	 * Reverts reservation made for a message which was not stored.
+	 */
+	public void release(byte[] toHash, byte[] fromHash, String msgType) {
+		try {
+			collection.updateOne(Filters.eq("_id", toHash), reserveUpdate(fromHash, msgType, -1));
+		} catch (MongoException ex) {
+			log.log(Level.WARNING, "Could not update summary of offline messages", ex);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import tigase.xml.Element;
+
+import java.util.Date;
+
+/**
+ * Offline message stored in {@code tig_offline_messages} collection.
+ *
+ * @author andrzej
+ */
+public final class OfflineMessageRecord {
+
+	Date expireAt;
+	String from;
+	byte[] fromHash;
+	ObjectId id;
+	Element message;
+	String msgType;
+	String to;
+	byte[] toHash;
+	Date ts;
+
+	public static final class BsonCodec
+			extends RecordCodec<OfflineMessageRecord> {
+
+		public BsonCodec(CodecRegistry registry, PayloadFormat payloadFormat) {
+			super(OfflineMessageRecord.class, registry, payloadFormat);
+		}
+
+		@Override
+		protected OfflineMessageRecord newRecord() {
+			return new OfflineMessageRecord();
+		}
+
+		@Override
+		protected boolean decodeField(BsonReader reader, DecoderContext decoderContext, String name,
+		                              OfflineMessageRecord record) {
+			switch (name) {
+				case "_id":
+					record.id = reader.readObjectId();
+					return true;
+				case "from_hash":
+					record.fromHash = readBinary(reader);
+					return true;
+				case "to_hash":
+					record.toHash = readBinary(reader);
+					return true;
+				case "from":
+					record.from = reader.readString();
+					return true;
+				case "to":
+					record.to = reader.readString();
+					return true;
+				case "expire-at":
+					record.expireAt = readDate(reader);
+					return true;
+				case "ts":
+					record.ts = readDate(reader);
+					return true;
+				case "msg_type":
+					record.msgType = reader.readString();
+					return true;
+				case "message":
+					record.message = readElement(reader);
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		@Override
+		protected void encodeFields(BsonWriter writer, EncoderContext encoderContext, OfflineMessageRecord record) {
+			writeObjectId(writer, "_id", record.id);
+			writeBinary(writer, "from_hash", record.fromHash);
+			writeBinary(writer, "to_hash", record.toHash);
+			writeString(writer, "from", record.from);
+			writeString(writer, "to", record.to);
+			writeDate(writer, "expire-at", record.expireAt);
+			writeDate(writer, "ts", record.ts);
+			writeString(writer, "msg_type", record.msgType);
+			writePayload(writer, "message", record.message);
+		}
+	}
+}
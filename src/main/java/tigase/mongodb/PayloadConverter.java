@@ -0,0 +1,127 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.types.Binary;
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts payloads stored as strings to the compressed format of {@link PayloadFormat} in background.
+ * <p>
+ * Each document is updated only if its payload was not modified in the meantime, so conversion is safe to run while
+ * repositories are in use. Collections are processed one at a time.
+ *
+ * @author andrzej
+ */
+public class PayloadConverter {
+
+	private static final Logger log = Logger.getLogger(PayloadConverter.class.getCanonicalName());
+
+	private final int batchSize;
+	private final LongAdder convertedPayloads = new LongAdder();
+	private final ExecutorService executor;
+	private final PayloadFormat payloadFormat;
+	private final AtomicInteger pendingConversions = new AtomicInteger();
+	private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+
+	public PayloadConverter(ExecutorService executor, PayloadFormat payloadFormat, int batchSize) {
+		this.executor = executor;
+		this.payloadFormat = payloadFormat;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Schedules conversion of payloads stored in the field of the collection (if not scheduled already).
+	 */
+	public void convert(MongoCollection<Document> collection, String field) {
+		if (!scheduled.add(collection.getNamespace().getFullName() + "." + field)) {
+			return;
+		}
+		pendingConversions.incrementAndGet();
+		executor.execute(() -> {
+			try {
+				convertCollection(collection, field);
+			} catch (MongoException ex) {
+				log.log(Level.WARNING, "Conversion of payloads in " + collection.getNamespace() + " failed", ex);
+			} finally {
+				pendingConversions.decrementAndGet();
+			}
+		});
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Payload conversion pending collections", pendingConversions.get(), Level.FINE);
+		list.add(compName, "Payload conversion converted payloads", convertedPayloads.sum(), Level.FINER);
+	}
+
+	private void convertCollection(MongoCollection<Document> collection, String field) {
+		log.log(Level.FINE, "Converting payloads in {0}.{1}", new Object[]{collection.getNamespace(), field});
+		List<WriteModel<Document>> batch = new ArrayList<>(batchSize);
+		for (Document doc : collection.find(Filters.type(field, BsonType.STRING))
+				.projection(Projections.include("_id", field))
+				.sort(Sorts.ascending("_id"))
+				.batchSize(batchSize)) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			String value = doc.getString(field);
+			Object encoded = payloadFormat.encode(value);
+			if (!(encoded instanceof Binary)) {
+				// payload is too small to be compressed
+				continue;
+			}
+			batch.add(new UpdateOneModel<>(Filters.and(Filters.eq("_id", doc.get("_id")), Filters.eq(field, value)),
+			                               Updates.set(field, encoded)));
+			if (batch.size() >= batchSize) {
+				write(collection, batch);
+			}
+		}
+		write(collection, batch);
+		log.log(Level.FINE, "Converted payloads in {0}.{1}", new Object[]{collection.getNamespace(), field});
+	}
+
+	private void write(MongoCollection<Document> collection, List<WriteModel<Document>> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		convertedPayloads.add(
+				collection.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount());
+		batch.clear();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.bson.types.Binary;
+import tigase.xml.Element;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage format of XML payloads (ie. {@code msg}, {@code message}, {@code item} and {@code data} fields).
+ * <p>
+ * Payloads are stored as a string or, if compression is enabled and payload is not too small, as binary value
+ * consisting of the format byte, length of uncompressed UTF-8 data (4 bytes, big endian) and data compressed with
+ * deflate. Readers have to accept both forms, as older documents are not converted until
+ * {@link PayloadConverter} processes them.
+ *
+ * @author andrzej
+ */
+public class PayloadFormat {
+
+	public static final byte FORMAT_DEFLATE = 1;
+
+	public static final PayloadFormat PLAIN = new PayloadFormat(false, 0, Deflater.DEFAULT_COMPRESSION);
+
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<>();
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+	private static final int HEADER_SIZE = 5;
+
+	private final boolean compression;
+	private final int level;
+	private final int minSize;
+
+	/**
+	 * Returns length of uncompressed payload stored in the compressed value.
+	 */
+	public static int getUncompressedLength(byte[] value) {
+		if (value.length < HEADER_SIZE || value[0] != FORMAT_DEFLATE) {
+			throw new IllegalArgumentException("Unsupported payload format: " + (value.length == 0 ? -1 : value[0]));
+		}
+		return ((value[1] & 0xFF) << 24) | ((value[2] & 0xFF) << 16) | ((value[3] & 0xFF) << 8) | (value[4] & 0xFF);
+	}
+
+	/**
+	 * Decompresses value into the buffer (which has to have at least {@link #getUncompressedLength(byte[])} bytes)
+	 * and returns number of bytes written.
+	 */
+	public static int decompress(byte[] value, byte[] out) {
+		int length = getUncompressedLength(value);
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(value, HEADER_SIZE, value.length - HEADER_SIZE);
+		try {
+			int read = 0;
+			while (read < length && !inflater.finished()) {
+				int count = inflater.inflate(out, read, length - read);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += count;
+			}
+			if (read != length) {
+				throw new IllegalArgumentException("Compressed payload is truncated");
+			}
+			return read;
+		} catch (DataFormatException ex) {
+			throw new IllegalArgumentException("Compressed payload is corrupted", ex);
+		}
+	}
+
+	/**
+	 * Converts stored value (string or compressed binary) to string.
+	 */
+	public static String toString(Object value) {
+		if (value == null || value instanceof String) {
+			return (String) value;
+		}
+		return decompressToString(((Binary) value).getData());
+	}
+
+	public static String decompressToString(byte[] value) {
+		byte[] out = new byte[getUncompressedLength(value)];
+		int length = decompress(value, out);
+		return new String(out, 0, length, StandardCharsets.UTF_8);
+	}
+
+	public PayloadFormat(boolean compression, int minSize, int level) {
+		this.compression = compression;
+		this.minSize = minSize;
+		this.level = level;
+	}
+
+	public Object encode(Element payload) {
+		return payload == null ? null : encode(payload.toString());
+	}
+
+	/**
+	 * Returns value which should be stored in the database for the payload ({@link String} or {@link Binary}).
+	 */
+	public Object encode(String payload) {
+		if (!compression || payload == null || payload.length() < minSize) {
+			return payload;
+		}
+		return new Binary(compress(payload.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	private byte[] compress(byte[] data) {
+		Deflater deflater = DEFLATERS.get();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+			DEFLATERS.set(deflater);
+		} else {
+			deflater.reset();
+			deflater.setLevel(level);
+		}
+		deflater.setInput(data);
+		deflater.finish();
+
+		// compressed XML is usually much smaller, buffer is enlarged if needed
+		byte[] out = new byte[HEADER_SIZE + Math.max(64, data.length / 2)];
+		int length = HEADER_SIZE;
+		while (!deflater.finished()) {
+			if (length == out.length) {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		out[0] = FORMAT_DEFLATE;
+		out[1] = (byte) (data.length >>> 24);
+		out[2] = (byte) (data.length >>> 16);
+		out[3] = (byte) (data.length >>> 8);
+		out[4] = (byte) data.length;
+		return length == out.length ? out : Arrays.copyOf(out, length);
+	}
+}
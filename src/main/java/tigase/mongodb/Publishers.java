@@ -0,0 +1,129 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Adapters of reactive streams {@link Publisher} returned by MongoDB reactive driver to {@link CompletableFuture}.
+ * <br>
+ * Futures are completed by driver threads, so dependent stages should not block.
+ *
+ * @author andrzej
+ */
+public final class Publishers {
+
+	/**
+	 * Returns future completed with the first item published (or {@code null} if nothing was published).
+	 */
+	public static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		publisher.subscribe(new Subscriber<T>() {
+			private Subscription subscription;
+
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(T item) {
+				if (future.complete(item)) {
+					subscription.cancel();
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				future.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				future.complete(null);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Returns future completed with list of all published items.
+	 */
+	public static <T> CompletableFuture<List<T>> toList(Publisher<T> publisher) {
+		CompletableFuture<List<T>> future = new CompletableFuture<>();
+		publisher.subscribe(new Subscriber<T>() {
+			private final List<T> items = new ArrayList<>();
+
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(T item) {
+				items.add(item);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				future.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				future.complete(items);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Returns future completed when publisher completes (ie. when write is acknowledged).
+	 */
+	public static CompletableFuture<Void> completion(Publisher<?> publisher) {
+		return toList(publisher).thenApply(items -> null);
+	}
+
+	/**
+	 * Executes blocking operation and wraps its result (or exception) in a completed future. Used by repositories
+	 * when reactive database is not available.
+	 * <p>
+	 * Operation is executed in the calling thread, so returned future is already completed and the caller is blocked
+	 * until the database responds. Callers which must not block should configure reactive data source.
+	 */
+	public static <T> CompletableFuture<T> blocking(Callable<T> operation) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			future.complete(operation.call());
+		} catch (Exception ex) {
+			future.completeExceptionally(ex);
+		}
+		return future;
+	}
+
+	private Publishers() {
+	}
+}
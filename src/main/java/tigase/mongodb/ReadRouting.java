@@ -0,0 +1,201 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.*;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.conversions.Bson;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing of reads executed by a repository.
+ * <p>
+ * Reads may be executed using different read preference (ie. {@code secondaryPreferred} with max staleness) and read
+ * concern than writes. If causal consistency is enabled, writes executed on behalf of a key (ie. owner of the archive)
+ * are done in causally consistent session and times of the last operation are remembered, so that following reads for
+ * the same key are executed in a session which will see those writes even if they are routed to a secondary.
+ * <br>
+ * Times are kept in a bounded cache, so for keys evicted from the cache reads are not guaranteed to see own writes.
+ *
+ * @author andrzej
+ */
+public class ReadRouting {
+
+	public static final int DEF_CAUSAL_CACHE_SIZE = 10000;
+
+	private static final ClientSessionOptions CAUSAL_SESSION_OPTIONS = ClientSessionOptions.builder()
+			.causallyConsistent(true)
+			.build();
+
+	private final boolean causalConsistency;
+	private final MongoClient client;
+	private final ReadConcern readConcern;
+	private final ReadPreference readPreference;
+	private final BoundedCache<Object, SessionTimes> times;
+
+	public static <T> FindIterable<T> find(MongoCollection<T> collection, ClientSession session, Bson filter) {
+		return session == null ? collection.find(filter) : collection.find(session, filter);
+	}
+
+	public static <T> long countDocuments(MongoCollection<T> collection, ClientSession session, Bson filter) {
+		return session == null ? collection.countDocuments(filter) : collection.countDocuments(session, filter);
+	}
+
+	public static <T> AggregateIterable<T> aggregate(MongoCollection<T> collection, ClientSession session,
+	                                                 List<? extends Bson> pipeline) {
+		return session == null ? collection.aggregate(pipeline) : collection.aggregate(session, pipeline);
+	}
+
+	public static <T> UpdateResult updateOne(MongoCollection<T> collection, ClientSession session, Bson filter,
+	                                         Bson update, UpdateOptions options) {
+		return session == null
+		       ? collection.updateOne(filter, update, options)
+		       : collection.updateOne(session, filter, update, options);
+	}
+
+	public static <T> void insertOne(MongoCollection<T> collection, ClientSession session, T document) {
+		if (session == null) {
+			collection.insertOne(document);
+		} else {
+			collection.insertOne(session, document);
+		}
+	}
+
+	/**
+	 * @param client client used to start sessions
+	 * @param readPreference name of read preference or {@code null} to use the one of the database
+	 * @param maxStalenessSeconds max staleness of secondaries in seconds (MongoDB requires at least 90 seconds) or
+	 * {@code -1} to not limit staleness
+	 * @param readConcern level of read concern or {@code null} to use the one of the database
+	 * @param causalConsistency if reads should see writes done earlier for the same key
+	 */
+	public ReadRouting(MongoClient client, String readPreference, long maxStalenessSeconds, String readConcern,
+	                   boolean causalConsistency) {
+		this.client = client;
+		this.readPreference = parseReadPreference(readPreference, maxStalenessSeconds);
+		this.readConcern = (readConcern == null || readConcern.isEmpty())
+		                   ? null
+		                   : new ReadConcern(ReadConcernLevel.fromString(readConcern));
+		this.causalConsistency = causalConsistency && client != null;
+		this.times = new BoundedCache<>(this.causalConsistency ? DEF_CAUSAL_CACHE_SIZE : 0);
+	}
+
+	/**
+	 * Returns collection which should be used for reads.
+	 */
+	public <T> MongoCollection<T> forReads(MongoCollection<T> collection) {
+		MongoCollection<T> result = collection;
+		if (readPreference != null) {
+			result = result.withReadPreference(readPreference);
+		}
+		if (readConcern != null) {
+			result = result.withReadConcern(readConcern);
+		}
+		return result;
+	}
+
+	public ReadConcern getReadConcern() {
+		return readConcern;
+	}
+
+	public ReadPreference getReadPreference() {
+		return readPreference;
+	}
+
+	public boolean isCausalConsistency() {
+		return causalConsistency;
+	}
+
+	/**
+	 * Starts session for reads for the key. Returned session will see all writes done for this key in sessions
+	 * passed to {@link #afterWrite(Object, ClientSession)}.
+	 *
+	 * @return session or {@code null} if causal consistency is disabled or there were no writes for the key
+	 */
+	public ClientSession startReadSession(Object key) {
+		if (!causalConsistency) {
+			return null;
+		}
+		SessionTimes last = times.get(key);
+		if (last == null) {
+			return null;
+		}
+		ClientSession session = client.startSession(CAUSAL_SESSION_OPTIONS);
+		if (last.clusterTime != null) {
+			session.advanceClusterTime(last.clusterTime);
+		}
+		session.advanceOperationTime(last.operationTime);
+		return session;
+	}
+
+	/**
+	 * Starts session for writes.
+	 *
+	 * @return session or {@code null} if causal consistency is disabled
+	 */
+	public ClientSession startWriteSession() {
+		if (!causalConsistency) {
+			return null;
+		}
+		return client.startSession(CAUSAL_SESSION_OPTIONS);
+	}
+
+	/**
+	 * Records times of the last write done in the session for the key.
+	 */
+	public void afterWrite(Object key, ClientSession session) {
+		if (session == null || session.getOperationTime() == null) {
+			return;
+		}
+		SessionTimes last = times.get(key);
+		if (last == null || last.operationTime.compareTo(session.getOperationTime()) < 0) {
+			times.put(key, new SessionTimes(session.getOperationTime(), session.getClusterTime()));
+		}
+	}
+
+	private static ReadPreference parseReadPreference(String name, long maxStalenessSeconds) {
+		if (name == null || name.isEmpty()) {
+			return null;
+		}
+		if (maxStalenessSeconds > 0 && !ReadPreference.primary().getName().equals(name)) {
+			return ReadPreference.valueOf(name, Collections.emptyList(), maxStalenessSeconds, TimeUnit.SECONDS);
+		}
+		return ReadPreference.valueOf(name);
+	}
+
+	private static class SessionTimes {
+
+		private final BsonDocument clusterTime;
+		private final BsonTimestamp operationTime;
+
+		private SessionTimes(BsonTimestamp operationTime, BsonDocument clusterTime) {
+			this.operationTime = operationTime;
+			this.clusterTime = clusterTime;
+		}
+	}
+}
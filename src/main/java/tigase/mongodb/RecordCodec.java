@@ -0,0 +1,203 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.bson.BsonBinary;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import tigase.xml.Element;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Base class for codecs of typed repository records.
+ * <p>
+ * Fields are decoded directly from the BSON stream into the record. Unknown fields (ie. added by newer versions of
+ * the schema) are skipped and fields with {@code null} value are not written.
+ * <br>
+ * {@link UUID} values are encoded using codec from the registry, so that configured UUID representation is used.
+ * XML payloads are decoded to {@link Element}s using {@link XmlPayloads} and encoded using {@link PayloadFormat}.
+ *
+ * @author andrzej
+ */
+public abstract class RecordCodec<T>
+		implements Codec<T> {
+
+	private final Class<T> encoderClass;
+	private final PayloadFormat payloadFormat;
+	private final CodecRegistry registry;
+	private Codec<UUID> uuidCodec;
+
+	protected RecordCodec(Class<T> encoderClass, CodecRegistry registry, PayloadFormat payloadFormat) {
+		this.encoderClass = encoderClass;
+		this.registry = registry;
+		this.payloadFormat = payloadFormat;
+	}
+
+	@Override
+	public T decode(BsonReader reader, DecoderContext decoderContext) {
+		T record = newRecord();
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			if (reader.getCurrentBsonType() == BsonType.NULL) {
+				reader.readNull();
+			} else if (!decodeField(reader, decoderContext, name, record)) {
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+		return record;
+	}
+
+	@Override
+	public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		encodeFields(writer, encoderContext, value);
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public Class<T> getEncoderClass() {
+		return encoderClass;
+	}
+
+	protected abstract T newRecord();
+
+	/**
+	 * Decodes value of the field. Returns {@code false} if field is not known, so its value will be skipped.
+	 */
+	protected abstract boolean decodeField(BsonReader reader, DecoderContext decoderContext, String name, T record);
+
+	protected abstract void encodeFields(BsonWriter writer, EncoderContext encoderContext, T record);
+
+	protected static byte[] readBinary(BsonReader reader) {
+		return reader.readBinaryData().getData();
+	}
+
+	protected static Date readDate(BsonReader reader) {
+		return new Date(reader.readDateTime());
+	}
+
+	protected static Element readElement(BsonReader reader) {
+		return XmlPayloads.readElement(reader);
+	}
+
+	protected static String readPayloadString(BsonReader reader) {
+		return XmlPayloads.readString(reader);
+	}
+
+	protected static List<String> readStringArray(BsonReader reader) {
+		List<String> values = new ArrayList<>();
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			values.add(reader.readString());
+		}
+		reader.readEndArray();
+		return values;
+	}
+
+	protected UUID readUUID(BsonReader reader, DecoderContext decoderContext) {
+		return getUuidCodec().decode(reader, decoderContext);
+	}
+
+	protected static void writeBinary(BsonWriter writer, String name, byte[] value) {
+		if (value != null) {
+			writer.writeBinaryData(name, new BsonBinary(value));
+		}
+	}
+
+	protected static void writeBoolean(BsonWriter writer, String name, Boolean value) {
+		if (value != null) {
+			writer.writeBoolean(name, value);
+		}
+	}
+
+	protected static void writeDate(BsonWriter writer, String name, Date value) {
+		if (value != null) {
+			writer.writeDateTime(name, value.getTime());
+		}
+	}
+
+	protected void writePayload(BsonWriter writer, String name, Element value) {
+		if (value != null) {
+			writePayload(writer, name, value.toString());
+		}
+	}
+
+	protected void writePayload(BsonWriter writer, String name, String value) {
+		Object encoded = payloadFormat.encode(value);
+		if (encoded instanceof Binary) {
+			writer.writeBinaryData(name, new BsonBinary(((Binary) encoded).getData()));
+		} else if (encoded != null) {
+			writer.writeString(name, (String) encoded);
+		}
+	}
+
+	protected static void writeInt(BsonWriter writer, String name, Integer value) {
+		if (value != null) {
+			writer.writeInt32(name, value);
+		}
+	}
+
+	protected static void writeObjectId(BsonWriter writer, String name, ObjectId value) {
+		if (value != null) {
+			writer.writeObjectId(name, value);
+		}
+	}
+
+	protected static void writeString(BsonWriter writer, String name, String value) {
+		if (value != null) {
+			writer.writeString(name, value);
+		}
+	}
+
+	protected static void writeStringArray(BsonWriter writer, String name, List<String> values) {
+		if (values != null) {
+			writer.writeStartArray(name);
+			for (String value : values) {
+				writer.writeString(value);
+			}
+			writer.writeEndArray();
+		}
+	}
+
+	protected void writeUUID(BsonWriter writer, EncoderContext encoderContext, String name, UUID value) {
+		if (value != null) {
+			writer.writeName(name);
+			getUuidCodec().encode(writer, value, encoderContext);
+		}
+	}
+
+	private Codec<UUID> getUuidCodec() {
+		if (uuidCodec == null) {
+			uuidCodec = registry.get(UUID.class);
+		}
+		return uuidCodec;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+import tigase.mongodb.archive.ArchivedMessageRecord;
+import tigase.mongodb.muc.HistoryMessageRecord;
+import tigase.mongodb.pubsub.ItemRecord;
+import tigase.mongodb.pubsub.MAMItemRecord;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Provider of codecs for typed records of repositories, registered in codec registry of {@link MongoDataSource}.
+ *
+ * @author andrzej
+ */
+public class RecordCodecProvider
+		implements CodecProvider {
+
+	private final Map<Class<?>, BiFunction<CodecRegistry, PayloadFormat, Codec<?>>> factories = new HashMap<>();
+	private final PayloadFormat payloadFormat;
+
+	public RecordCodecProvider() {
+		this(PayloadFormat.PLAIN);
+	}
+
+	public RecordCodecProvider(PayloadFormat payloadFormat) {
+		this.payloadFormat = payloadFormat;
+		factories.put(OfflineMessageRecord.class, OfflineMessageRecord.BsonCodec::new);
+		factories.put(ArchivedMessageRecord.class, ArchivedMessageRecord.BsonCodec::new);
+		factories.put(HistoryMessageRecord.class, HistoryMessageRecord.BsonCodec::new);
+		factories.put(ItemRecord.class, ItemRecord.BsonCodec::new);
+		factories.put(MAMItemRecord.class, MAMItemRecord.BsonCodec::new);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+		BiFunction<CodecRegistry, PayloadFormat, Codec<?>> factory = factories.get(clazz);
+		return factory == null ? null : (Codec<T>) factory.apply(registry, payloadFormat);
+	}
+}
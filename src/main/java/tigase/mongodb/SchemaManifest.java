@@ -0,0 +1,129 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.client.model.IndexOptions;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declaration of collections and indexes required by a repository.
+ * <p>
+ * Manifest is passed to {@link MongoDataSource#reconcileSchema(SchemaManifest)} which compares it with the current
+ * state of the database and creates only missing collections and indexes.
+ *
+ * @author andrzej
+ */
+public class SchemaManifest {
+
+	private final Map<String, CollectionSpec> collections = new LinkedHashMap<>();
+
+	public CollectionSpec collection(String name) {
+		return collections.computeIfAbsent(name, CollectionSpec::new);
+	}
+
+	public List<CollectionSpec> getCollections() {
+		return Collections.unmodifiableList(new ArrayList<>(collections.values()));
+	}
+
+	public static class CollectionSpec {
+
+		private final List<IndexSpec> indexes = new ArrayList<>();
+		private final String name;
+		private final List<String> oldNames = new ArrayList<>();
+
+		private CollectionSpec(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public List<IndexSpec> getIndexes() {
+			return Collections.unmodifiableList(indexes);
+		}
+
+		public List<String> getOldNames() {
+			return Collections.unmodifiableList(oldNames);
+		}
+
+		public CollectionSpec index(Document keys) {
+			return index(keys, new IndexOptions());
+		}
+
+		public CollectionSpec index(Document keys, IndexOptions options) {
+			indexes.add(new IndexSpec(keys, options, false));
+			return this;
+		}
+
+		/**
+		 * Index which is always recreated if existing index has different options (ie. unique index required for
+		 * correctness, which was not unique in older versions).
+		 */
+		public CollectionSpec replacedIndex(Document keys, IndexOptions options) {
+			indexes.add(new IndexSpec(keys, options, true));
+			return this;
+		}
+
+		/**
+		 * Name under which collection was created by older versions. If collection does not exist, but collection
+		 * with old name exists, it will be renamed.
+		 */
+		public CollectionSpec renamedFrom(String oldName) {
+			oldNames.add(oldName);
+			return this;
+		}
+	}
+
+	public static class IndexSpec {
+
+		private final Document keys;
+		private final String name;
+		private final IndexOptions options;
+		private final boolean replaced;
+
+		private IndexSpec(Document keys, IndexOptions options, boolean replaced) {
+			this.keys = keys;
+			this.options = options;
+			this.replaced = replaced;
+			this.name = options.getName() != null ? options.getName() : Helper.createIndexName(keys);
+		}
+
+		public Document getKeys() {
+			return keys;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public IndexOptions getOptions() {
+			return options;
+		}
+
+		public boolean isReplaced() {
+			return replaced;
+		}
+	}
+}
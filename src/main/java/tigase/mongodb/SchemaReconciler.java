@@ -0,0 +1,214 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import org.bson.Document;
+import tigase.stats.StatisticsList;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reconciles collections and indexes declared by repositories in {@link SchemaManifest} with the database.
+ * <p>
+ * Names of collections are retrieved only once and indexes of each collection are listed once per manifest. Only
+ * missing indexes are created (with a single command per collection). Indexes with different options are only
+ * reported, unless recreation of indexes is enabled or index is declared as replaced, as dropping an index (ie.
+ * unique or TTL) may change behaviour of the database and rebuilding it may take a long time. Collections are
+ * processed in parallel using passed executor.
+ *
+ * @author andrzej
+ */
+public class SchemaReconciler {
+
+	private static final int NAMESPACE_EXISTS = 48;
+
+	private static final Logger log = Logger.getLogger(SchemaReconciler.class.getCanonicalName());
+
+	private final LongAdder createdCollections = new LongAdder();
+	private final LongAdder createdIndexes = new LongAdder();
+	private final MongoDatabase db;
+	private final LongAdder droppedIndexes = new LongAdder();
+	private final Executor executor;
+	private final LongAdder mismatchedIndexes = new LongAdder();
+	private final AtomicInteger pendingCollections = new AtomicInteger();
+	private final boolean recreateIndexes;
+	private Set<String> collectionNames;
+
+	public SchemaReconciler(MongoDatabase db, Executor executor) {
+		this(db, executor, false);
+	}
+
+	public SchemaReconciler(MongoDatabase db, Executor executor, boolean recreateIndexes) {
+		this.db = db;
+		this.executor = executor;
+		this.recreateIndexes = recreateIndexes;
+	}
+
+	public int getPendingCollections() {
+		return pendingCollections.get();
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Schema reconciliation pending collections", pendingCollections.get(), Level.FINE);
+		list.add(compName, "Schema reconciliation created collections", createdCollections.sum(), Level.FINER);
+		list.add(compName, "Schema reconciliation created indexes", createdIndexes.sum(), Level.FINER);
+		list.add(compName, "Schema reconciliation recreated indexes", droppedIndexes.sum(), Level.FINER);
+		list.add(compName, "Schema reconciliation mismatched indexes", mismatchedIndexes.sum(), Level.FINER);
+	}
+
+	/**
+	 * Renames collections (if needed) and starts creation of missing collections and indexes.
+	 *
+	 * @return future completed when all collections and indexes are created
+	 */
+	public CompletableFuture<Void> reconcile(SchemaManifest manifest) {
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (SchemaManifest.CollectionSpec spec : manifest.getCollections()) {
+			// renaming is done synchronously as repository will use new name right away
+			boolean exists = ensureRenamed(spec);
+			pendingCollections.incrementAndGet();
+			futures.add(CompletableFuture.runAsync(() -> reconcileCollection(spec, exists), executor)
+								.whenComplete((result, ex) -> {
+									int remaining = pendingCollections.decrementAndGet();
+									if (ex != null) {
+										log.log(Level.WARNING, "Schema reconciliation of collection " +
+												spec.getName() + " failed", ex);
+									} else if (log.isLoggable(Level.FINE)) {
+										log.log(Level.FINE, "Schema reconciliation of collection {0} finished, {1} " +
+												"collections remaining", new Object[]{spec.getName(), remaining});
+									}
+								}));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+	}
+
+	private synchronized Set<String> getCollectionNames() {
+		if (collectionNames == null) {
+			Set<String> names = ConcurrentHashMap.newKeySet();
+			for (String name : db.listCollectionNames()) {
+				names.add(name);
+			}
+			collectionNames = names;
+		}
+		return collectionNames;
+	}
+
+	private synchronized boolean ensureRenamed(SchemaManifest.CollectionSpec spec) {
+		Set<String> names = getCollectionNames();
+		if (names.contains(spec.getName())) {
+			return true;
+		}
+		for (String oldName : spec.getOldNames()) {
+			if (names.contains(oldName)) {
+				log.log(Level.INFO, "Renaming collection {0} to {1}", new Object[]{oldName, spec.getName()});
+				db.getCollection(oldName).renameCollection(new MongoNamespace(db.getName(), spec.getName()));
+				names.remove(oldName);
+				names.add(spec.getName());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void reconcileCollection(SchemaManifest.CollectionSpec spec, boolean exists) {
+		MongoCollection<Document> collection = db.getCollection(spec.getName());
+		if (!exists && spec.getIndexes().isEmpty()) {
+			// collection will be created by createIndexes() if there are indexes to create
+			try {
+				db.createCollection(spec.getName());
+				createdCollections.increment();
+			} catch (MongoCommandException ex) {
+				// collection could be created by other cluster node in the meantime
+				if (ex.getErrorCode() != NAMESPACE_EXISTS) {
+					throw ex;
+				}
+			}
+			getCollectionNames().add(spec.getName());
+			return;
+		}
+
+		Map<String, Document> existing = new HashMap<>();
+		if (exists) {
+			for (Document index : collection.listIndexes()) {
+				existing.put(index.getString("name"), index);
+				Document keys = index.get("key", Document.class);
+				if (keys != null) {
+					existing.putIfAbsent(Helper.createIndexName(keys), index);
+				}
+			}
+		}
+
+		List<IndexModel> missing = new ArrayList<>();
+		for (SchemaManifest.IndexSpec index : spec.getIndexes()) {
+			Document current = existing.get(index.getName());
+			if (current != null) {
+				if (hasSameOptions(current, index.getOptions())) {
+					continue;
+				}
+				if (!recreateIndexes && !index.isReplaced()) {
+					log.log(Level.WARNING, "Index {0} of collection {1} has different options than expected {2}, " +
+							        "it needs to be recreated manually (or enable recreation of indexes)",
+					        new Object[]{current.getString("name"), spec.getName(), index.getOptions()});
+					mismatchedIndexes.increment();
+					continue;
+				}
+				log.log(Level.INFO, "Index {0} of collection {1} has different options, recreating..",
+				        new Object[]{current.getString("name"), spec.getName()});
+				collection.dropIndex(current.getString("name"));
+				droppedIndexes.increment();
+			}
+			missing.add(new IndexModel(index.getKeys(), index.getOptions()));
+		}
+
+		if (!missing.isEmpty()) {
+			log.log(Level.INFO, "Creating {0} indexes for collection {1}", new Object[]{missing.size(), spec.getName()});
+			collection.createIndexes(missing);
+			createdIndexes.add(missing.size());
+			if (!exists) {
+				createdCollections.increment();
+			}
+		}
+		getCollectionNames().add(spec.getName());
+	}
+
+	private static boolean hasSameOptions(Document current, IndexOptions options) {
+		if (current.getBoolean("unique", false) != options.isUnique()) {
+			return false;
+		}
+		Long expireAfter = options.getExpireAfter(TimeUnit.SECONDS);
+		Number currentExpireAfter = current.get("expireAfterSeconds", Number.class);
+		if (expireAfter == null) {
+			return currentExpireAfter == null;
+		}
+		return currentExpireAfter != null && currentExpireAfter.longValue() == expireAfter;
+	}
+}
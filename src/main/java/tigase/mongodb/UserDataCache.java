@@ -0,0 +1,273 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.FullDocumentBeforeChange;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.Binary;
+import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-through cache of user data.
+ * <p>
+ * Values are grouped by user, so all cached values of a user are dropped when any data of the user is modified. Cache
+ * is kept coherent between cluster nodes by watching a change stream of the collection with user data. Change events
+ * of <code>tig_nodes</code> contain id of the user of a removed document only if pre-images are enabled for the
+ * collection (MongoDB 6.0+), otherwise removal of any data from this collection invalidates whole cache. With embedded
+ * user data only cached data of the modified user is dropped. If change stream is not available (ie. standalone
+ * MongoDB server) cache is not used until it is (re)opened.
+ *
+ * @author andrzej
+ */
+public class UserDataCache {
+
+	public static final char DATA = 'd';
+	public static final char KEYS = 'k';
+	public static final char LIST = 'l';
+	public static final char MAP = 'm';
+	private static final Logger log = Logger.getLogger(UserDataCache.class.getCanonicalName());
+	private static final Object NULL = new Object();
+	private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+	private final BoundedCache<ByteBuffer, ConcurrentHashMap<String, Object>> cache;
+	private final Set<String> excludedSubnodes;
+	private final LongAdder fullInvalidations = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final int maxSize;
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder remoteInvalidations = new LongAdder();
+	private boolean preImages = true;
+	private volatile boolean running;
+	private Thread watcher;
+
+	public UserDataCache(int maxSize, String[] excludedSubnodes) {
+		this.maxSize = maxSize;
+		this.excludedSubnodes = excludedSubnodes == null
+		                        ? Collections.emptySet()
+		                        : new HashSet<>(Arrays.asList(excludedSubnodes));
+		// cache is enabled after change stream is opened
+		this.cache = new BoundedCache<>(0);
+	}
+
+	/**
+	 * Returns cached value or loads it using the loader (and caches it). Subnode should be normalized.
+	 */
+	public <T> T get(byte[] uid, char kind, String subnode, String key, Loader<T> loader) throws TigaseDBException {
+		if (!isCacheable(subnode)) {
+			return loader.load();
+		}
+		ByteBuffer userKey = ByteBuffer.wrap(uid);
+		String valueKey = kind + (subnode == null ? "/" : subnode) + "\u0000" + (key == null ? "" : key);
+		ConcurrentHashMap<String, Object> values = cache.peek(userKey);
+		Object value = values == null ? null : values.get(valueKey);
+		if (value != null) {
+			hits.increment();
+			return value == NULL ? null : (T) value;
+		}
+		misses.increment();
+		if (values == null) {
+			values = new ConcurrentHashMap<>();
+			ConcurrentHashMap<String, Object> existing = cache.putIfAbsent(userKey, values);
+			if (existing != null) {
+				values = existing;
+			}
+		}
+		T loaded = loader.load();
+		// if data of the user was invalidated in the meantime, value is stored in a map which is no longer cached
+		values.put(valueKey, loaded == null ? NULL : loaded);
+		return loaded;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "User data cache size", cache.size(), Level.FINE);
+		list.add(compName, "User data cache hits", hits.sum(), Level.FINE);
+		list.add(compName, "User data cache misses", misses.sum(), Level.FINE);
+		list.add(compName, "User data cache evictions", cache.getEvictions(), Level.FINER);
+		list.add(compName, "User data cache remote invalidations", remoteInvalidations.sum(), Level.FINER);
+		list.add(compName, "User data cache full invalidations", fullInvalidations.sum(), Level.FINER);
+	}
+
+	public void invalidate(byte[] uid) {
+		cache.remove(ByteBuffer.wrap(uid));
+	}
+
+	public void invalidateAll() {
+		fullInvalidations.increment();
+		cache.clear();
+	}
+
+	/**
+	 * Starts watching changes of the collection. Documents of the collection are identified by the user id if
+	 * <code>embedded</code> is set, otherwise user id is stored in the <code>uid</code> field.
+	 */
+	public synchronized void start(MongoCollection<Document> collection, boolean embedded) {
+		if (running) {
+			return;
+		}
+		running = true;
+		watcher = new Thread(() -> watch(collection, embedded), "mongodb-user-data-cache");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (watcher != null) {
+			watcher.interrupt();
+			watcher = null;
+		}
+		cache.setMaxSize(0);
+	}
+
+	/**
+	 * Drops all cached values (as changes made before change stream was opened could be missed) and enables cache.
+	 */
+	void enable() {
+		cache.clear();
+		cache.setMaxSize(maxSize);
+	}
+
+	private boolean isCacheable(String subnode) {
+		if (excludedSubnodes.isEmpty()) {
+			return true;
+		}
+		if (subnode == null) {
+			return !excludedSubnodes.contains("/");
+		}
+		int idx = subnode.length();
+		while (idx > 0) {
+			if (excludedSubnodes.contains(subnode.substring(0, idx))) {
+				return false;
+			}
+			idx = subnode.lastIndexOf('/', idx - 1);
+		}
+		return true;
+	}
+
+	void handleChange(ChangeStreamDocument<Document> change, boolean embedded) {
+		byte[] uid = null;
+		switch (change.getOperationType()) {
+			case INSERT:
+			case UPDATE:
+			case REPLACE:
+			case DELETE:
+				if (embedded) {
+					BsonValue id = change.getDocumentKey() == null ? null : change.getDocumentKey().get("_id");
+					uid = (id != null && id.isBinary()) ? id.asBinary().getData() : null;
+				} else {
+					Document doc = change.getFullDocument() != null
+					               ? change.getFullDocument()
+					               : change.getFullDocumentBeforeChange();
+					uid = (doc != null && doc.get("uid") instanceof Binary) ? ((Binary) doc.get("uid")).getData() : null;
+				}
+				break;
+			default:
+				break;
+		}
+		if (uid != null) {
+			remoteInvalidations.increment();
+			invalidate(uid);
+		} else {
+			invalidateAll();
+		}
+	}
+
+	private void watch(MongoCollection<Document> collection, boolean embedded) {
+		try {
+			watchChanges(collection, embedded);
+		} catch (RuntimeException ex) {
+			log.log(Level.SEVERE, "Watching changes of " + collection.getNamespace() + " failed, user data cache disabled",
+			        ex);
+		} finally {
+			cache.setMaxSize(0);
+		}
+	}
+
+	private void watchChanges(MongoCollection<Document> collection, boolean embedded) {
+		while (running) {
+			boolean withPreImages = preImages && !embedded;
+			ChangeStreamIterable<Document> stream = collection.watch(Collections.singletonList(Aggregates.project(
+					Projections.include("operationType", "ns", "documentKey", "fullDocument.uid",
+					                    "fullDocumentBeforeChange.uid"))))
+					.fullDocument(embedded ? FullDocument.DEFAULT : FullDocument.UPDATE_LOOKUP)
+					.maxAwaitTime(1, TimeUnit.SECONDS);
+			if (withPreImages) {
+				stream = stream.fullDocumentBeforeChange(FullDocumentBeforeChange.WHEN_AVAILABLE);
+			}
+			try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor()) {
+				enable();
+				log.log(Level.FINE, "Watching changes of {0}", collection.getNamespace());
+				while (running) {
+					ChangeStreamDocument<Document> change = cursor.tryNext();
+					if (change != null) {
+						handleChange(change, embedded);
+					}
+				}
+			} catch (MongoException ex) {
+				cache.setMaxSize(0);
+				if (!running) {
+					return;
+				}
+				if (withPreImages) {
+					// server may not support pre-images (before MongoDB 6.0)
+					log.log(Level.FINE, "Could not watch changes of " + collection.getNamespace() +
+							" with pre-images, retrying without them", ex);
+					preImages = false;
+					continue;
+				}
+				log.log(Level.WARNING, "Could not watch changes of " + collection.getNamespace() +
+						", user data cache disabled for " + RETRY_INTERVAL + "ms", ex);
+				try {
+					Thread.sleep(RETRY_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads value from the database.
+	 */
+	@FunctionalInterface
+	public interface Loader<T> {
+
+		T load() throws TigaseDBException;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maintains number of users per domain in <code>tig_users_count</code>.
+ * <p>
+ * Counters are updated when users are added or removed and periodically reconciled with the content of
+ * <code>tig_users</code>, which corrects drift caused by concurrent modifications during reconciliation or by users
+ * added by other tools. Until the first reconciliation is completed counters are not used.
+ *
+ * @author andrzej
+ */
+public class UsersCounter {
+
+	public static final String COUNT_KEY = "count";
+	private static final Logger log = Logger.getLogger(UsersCounter.class.getCanonicalName());
+
+	private final MongoCollection<Document> collection;
+	private final MongoCollection<Document> readCollection;
+	private final MongoCollection<Document> usersCollection;
+	private volatile boolean ready;
+
+	/**
+	 * Creates replacements of counters with numbers of users per domain (calculated by aggregation) and collects
+	 * domains which have users.
+	 */
+	static List<WriteModel<Document>> createReplacements(Iterable<Document> counts, List<Object> domains) {
+		List<WriteModel<Document>> updates = new ArrayList<>();
+		for (Document doc : counts) {
+			domains.add(doc.get("_id"));
+			updates.add(new ReplaceOneModel<>(Filters.eq("_id", doc.get("_id")), doc,
+			                                  new ReplaceOptions().upsert(true)));
+		}
+		return updates;
+	}
+
+	static long sum(Iterable<Document> counters) {
+		long count = 0;
+		for (Document doc : counters) {
+			Number value = doc.get(COUNT_KEY, Number.class);
+			if (value != null) {
+				count += value.longValue();
+			}
+		}
+		return count;
+	}
+
+	public UsersCounter(MongoCollection<Document> collection, MongoCollection<Document> readCollection,
+	                    MongoCollection<Document> usersCollection) {
+		this.collection = collection;
+		this.readCollection = readCollection;
+		this.usersCollection = usersCollection;
+		this.ready = collection.find().first() != null;
+	}
+
+	/**
+	 * Returns number of all users.
+	 */
+	public long getCount() {
+		return sum(readCollection.find());
+	}
+
+	/**
+	 * Returns number of users of the domain.
+	 */
+	public long getCount(String domain) {
+		Document doc = readCollection.find(Filters.eq("_id", domain)).first();
+		return doc == null ? 0 : doc.get(COUNT_KEY, Number.class).longValue();
+	}
+
+	/**
+	 * Changes counter of the domain. Failure is only logged as counter will be corrected by reconciliation.
+	 */
+	public void increment(String domain, long delta) {
+		try {
+			collection.updateOne(Filters.eq("_id", domain), Updates.inc(COUNT_KEY, delta),
+			                     new UpdateOptions().upsert(true));
+		} catch (MongoException ex) {
+			log.log(Level.WARNING, "Could not update counter of users of " + domain, ex);
+		}
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Recalculates counters of all domains.
+	 */
+	public void reconcile() {
+		Iterable<Document> counts = usersCollection.aggregate(
+				Arrays.asList(Aggregates.group("$" + MongoRepository.DOMAIN_KEY, Accumulators.sum(COUNT_KEY, 1L))))
+				.allowDiskUse(true);
+		List<Object> domains = new ArrayList<>();
+		List<WriteModel<Document>> updates = createReplacements(counts, domains);
+		if (!updates.isEmpty()) {
+			collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		}
+		collection.deleteMany(Filters.nin("_id", domains));
+		ready = true;
+		log.log(Level.FINE, "Reconciled counters of users of {0} domains", domains.size());
+	}
+}
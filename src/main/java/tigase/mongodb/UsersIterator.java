@@ -0,0 +1,92 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over users stored in <code>tig_users</code> loading them in pages.
+ * <p>
+ * Pages are fetched using keyset pagination on <code>_id</code> (within the domain, if set), so no server side cursor
+ * is kept open between pages and only a single page is kept in memory.
+ *
+ * @author andrzej
+ */
+class UsersIterator
+		implements Iterator<BareJID> {
+
+	private final MongoCollection<Document> collection;
+	private final String domain;
+	private final int pageSize;
+	private final ArrayDeque<BareJID> page;
+	private boolean completed = false;
+	private Object lastId = null;
+
+	UsersIterator(MongoCollection<Document> collection, String domain, int pageSize) {
+		this.collection = collection;
+		this.domain = domain;
+		this.pageSize = Math.max(1, pageSize);
+		this.page = new ArrayDeque<>(this.pageSize);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (page.isEmpty() && !completed) {
+			loadPage();
+		}
+		return !page.isEmpty();
+	}
+
+	@Override
+	public BareJID next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.poll();
+	}
+
+	private void loadPage() {
+		Bson filter = domain == null ? null : Filters.eq(MongoRepository.DOMAIN_KEY, domain);
+		if (lastId != null) {
+			filter = filter == null
+			         ? Filters.gt("_id", lastId)
+			         : Filters.and(filter, Filters.gt("_id", lastId));
+		}
+		int count = 0;
+		for (Document doc : (filter == null ? collection.find() : collection.find(filter)).projection(
+				Projections.include(MongoRepository.ID_KEY)).sort(Sorts.ascending("_id")).limit(pageSize)) {
+			count++;
+			lastId = doc.get("_id");
+			String jid = doc.getString(MongoRepository.ID_KEY);
+			if (jid != null) {
+				page.add(BareJID.bareJIDInstanceNS(jid));
+			}
+		}
+		completed = count < pageSize;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes users with their credentials and data in chunks.
+ * <p>
+ * Each chunk is removed with a single <code>deleteMany</code> per collection, starting with credentials and data, so
+ * that the user entry (removed last) is still present if removal of a chunk is interrupted. Because of that purge of a
+ * domain started again continues with users which were not removed yet. Chunks are removed in parallel (at most
+ * <code>parallelism</code> chunks at once) and, if rate limit is set, no more than <code>rateLimit</code> users are
+ * removed per second. If name of a checkpoint is passed, number of removed users is stored after each chunk, so
+ * progress reported after restart includes users removed before.
+ *
+ * @author andrzej
+ */
+public class UsersPurger {
+
+	private static final Logger log = Logger.getLogger(UsersPurger.class.getCanonicalName());
+
+	private final MongoCollection<Document> checkpointsCollection;
+	private final int chunkSize;
+	private final List<MongoCollection<Document>> dataCollections;
+	private final ExecutorService executor;
+	private final int parallelism;
+	private final long rateLimit;
+	private final Consumer<List<BareJID>> removedListener;
+	private final UsersCounter usersCounter;
+	private final MongoCollection<Document> usersCollection;
+	private long nextPermitTime = 0;
+
+	/**
+	 * Creates purger removing documents of users from <code>tig_users</code> (by <code>_id</code>) and from data
+	 * collections (by <code>uid</code> or <code>_id</code> for <code>tig_user_data</code>). Listener is called (from
+	 * a thread of the executor) with users of each removed chunk.
+	 */
+	public UsersPurger(MongoCollection<Document> usersCollection, List<MongoCollection<Document>> dataCollections,
+	                   UsersCounter usersCounter, MongoCollection<Document> checkpointsCollection,
+	                   Consumer<List<BareJID>> removedListener, ExecutorService executor, int parallelism,
+	                   int chunkSize, long rateLimit) {
+		this.usersCollection = usersCollection;
+		this.dataCollections = dataCollections;
+		this.usersCounter = usersCounter;
+		this.checkpointsCollection = checkpointsCollection;
+		this.removedListener = removedListener;
+		this.executor = executor;
+		this.parallelism = Math.max(1, parallelism);
+		this.chunkSize = Math.max(1, chunkSize);
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * Removes users and returns number of removed users (including users removed before, if checkpoint is set).
+	 * Progress listener (if not <code>null</code>) is called with number of removed users after each chunk.
+	 */
+	public long purge(Iterator<BareJID> users, String checkpoint, LongConsumer progress) throws TigaseDBException {
+		Semaphore inProgress = new Semaphore(parallelism);
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+		try {
+			AtomicLong removed = new AtomicLong(checkpoint == null ? 0 : loadCheckpoint(checkpoint));
+			while (users.hasNext()) {
+				List<BareJID> chunk = new ArrayList<>(chunkSize);
+				while (chunk.size() < chunkSize && users.hasNext()) {
+					chunk.add(users.next());
+				}
+				throttle(chunk.size());
+				inProgress.acquire();
+				// failure of any chunk stops the purge (checked before completed chunks are forgotten)
+				pending.stream().filter(CompletableFuture::isCompletedExceptionally).findFirst().ifPresent(
+						CompletableFuture::join);
+				pending.removeIf(CompletableFuture::isDone);
+				pending.add(CompletableFuture.runAsync(() -> {
+					long count = remove(chunk);
+					long total = removed.addAndGet(count);
+					if (checkpoint != null) {
+						saveCheckpoint(checkpoint, count);
+					}
+					if (progress != null) {
+						progress.accept(total);
+					}
+				}, executor).whenComplete((result, ex) -> inProgress.release()));
+			}
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+			if (checkpoint != null) {
+				checkpointsCollection.deleteOne(Filters.eq("_id", checkpoint));
+			}
+			log.log(Level.INFO, "Removed {0} users", removed.get());
+			return removed.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new TigaseDBException("Removal of users interrupted", ex);
+		} catch (CompletionException ex) {
+			throw new TigaseDBException("Problem removing users", ex.getCause() == null ? ex : ex.getCause());
+		} catch (MongoException ex) {
+			throw new TigaseDBException("Problem removing users", ex);
+		}
+	}
+
+	private long loadCheckpoint(String checkpoint) {
+		Document doc = checkpointsCollection.find(Filters.eq("_id", checkpoint)).first();
+		return doc == null ? 0 : doc.get("position", Number.class).longValue();
+	}
+
+	long remove(List<BareJID> chunk) {
+		Map<String, List<byte[]>> uidsByDomain = new HashMap<>();
+		List<byte[]> uids = new ArrayList<>(chunk.size());
+		for (BareJID user : chunk) {
+			byte[] uid = JidIdCodec.generateId(user);
+			uids.add(uid);
+			uidsByDomain.computeIfAbsent(user.getDomain(), domain -> new ArrayList<>()).add(uid);
+		}
+		for (MongoCollection<Document> collection : dataCollections) {
+			String field = MongoRepository.USER_DATA_COLLECTION.equals(collection.getNamespace().getCollectionName())
+			               ? "_id"
+			               : "uid";
+			collection.deleteMany(Filters.in(field, uids));
+		}
+		long removed = 0;
+		for (Map.Entry<String, List<byte[]>> e : uidsByDomain.entrySet()) {
+			long count = usersCollection.deleteMany(Filters.in("_id", e.getValue())).getDeletedCount();
+			if (count > 0) {
+				usersCounter.increment(e.getKey(), -count);
+			}
+			removed += count;
+		}
+		removedListener.accept(chunk);
+		return removed;
+	}
+
+	private void saveCheckpoint(String checkpoint, long removed) {
+		checkpointsCollection.updateOne(Filters.eq("_id", checkpoint),
+		                                Updates.combine(Updates.inc("position", removed),
+		                                                Updates.currentDate("updated")),
+		                                new UpdateOptions().upsert(true));
+	}
+
+	private void throttle(int users) throws InterruptedException {
+		if (rateLimit <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (nextPermitTime - now > 0) {
+			TimeUnit.NANOSECONDS.sleep(nextPermitTime - now);
+			now = nextPermitTime;
+		}
+		nextPermitTime = now + TimeUnit.SECONDS.toNanos(users) / rateLimit;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.io.BsonInput;
+import org.bson.io.BsonInputMark;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+
+/**
+ * Decoding of XML payloads stored as BSON strings (or compressed as described in {@link PayloadFormat}) into
+ * {@link Element}s.
+ * <p>
+ * If value is read by {@link BsonBinaryReader}, UTF-8 bytes of the value are copied from the BSON buffer to a per
+ * thread buffer, decoded to a per thread {@code char[]} and passed to the parser, so no {@link String} and no
+ * {@code char[]} of the size of payload is created for each value. Per thread {@link DomBuilderHandler} is reused as
+ * long as parsing succeeds.
+ *
+ * @author andrzej
+ */
+public final class XmlPayloads {
+
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+	// buffers larger than that are not kept for reuse
+	private static final int MAX_KEPT_BUFFER_SIZE = 256 * 1024;
+
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	/**
+	 * Parses XML payload and returns first parsed element or {@code null} if payload was not valid.
+	 */
+	public static Element parseElement(String data) {
+		Buffers buffers = BUFFERS.get();
+		char[] chars = buffers.chars(data.length());
+		data.getChars(0, data.length(), chars, 0);
+		return buffers.parse(chars, data.length());
+	}
+
+	/**
+	 * Reads current string value of the reader and returns first parsed element or {@code null} if payload was not
+	 * valid.
+	 */
+	public static Element readElement(BsonReader reader) {
+		if (reader.getCurrentBsonType() == BsonType.BINARY) {
+			byte[] value = reader.readBinaryData().getData();
+			Buffers buffers = BUFFERS.get();
+			byte[] bytes = buffers.bytes(PayloadFormat.getUncompressedLength(value));
+			return buffers.parse(bytes, PayloadFormat.decompress(value, bytes));
+		}
+		if (!(reader instanceof BsonBinaryReader)) {
+			return parseElement(reader.readString());
+		}
+
+		Buffers buffers = BUFFERS.get();
+		BsonInput input = ((BsonBinaryReader) reader).getBsonInput();
+		BsonInputMark mark = input.getMark(Integer.MAX_VALUE);
+		// length includes trailing null byte
+		int length = input.readInt32() - 1;
+		byte[] bytes = buffers.bytes(length);
+		input.readBytes(bytes, 0, length);
+		mark.reset();
+		reader.skipValue();
+
+		return buffers.parse(bytes, length);
+	}
+
+	/**
+	 * Reads current value of the reader (string or compressed payload) as a string.
+	 */
+	public static String readString(BsonReader reader) {
+		if (reader.getCurrentBsonType() == BsonType.BINARY) {
+			return PayloadFormat.decompressToString(reader.readBinaryData().getData());
+		}
+		return reader.readString();
+	}
+
+	private XmlPayloads() {
+	}
+
+	private static class Buffers {
+
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private byte[] bytes = new byte[4096];
+		private char[] chars = new char[4096];
+		private DomBuilderHandler handler = new DomBuilderHandler();
+
+		byte[] bytes(int length) {
+			if (bytes.length >= length) {
+				return bytes;
+			}
+			byte[] result = new byte[length];
+			if (length <= MAX_KEPT_BUFFER_SIZE) {
+				bytes = result;
+			}
+			return result;
+		}
+
+		char[] chars(int length) {
+			if (chars.length >= length) {
+				return chars;
+			}
+			char[] result = new char[length];
+			if (length <= MAX_KEPT_BUFFER_SIZE) {
+				chars = result;
+			}
+			return result;
+		}
+
+		Element parse(byte[] data, int length) {
+			// UTF-8 never decodes to more chars than it has bytes
+			CharBuffer out = CharBuffer.wrap(chars(length));
+			decoder.reset();
+			decoder.decode(ByteBuffer.wrap(data, 0, length), out, true);
+			decoder.flush(out);
+			return parse(out.array(), out.position());
+		}
+
+		Element parse(char[] data, int length) {
+			parser.parse(handler, data, 0, length);
+			Queue<Element> elems = handler.getParsedElements();
+			Element result = elems.poll();
+			if (result == null || !elems.isEmpty()) {
+				// payload was not a single complete element, so state of the handler cannot be trusted
+				handler = new DomBuilderHandler();
+			}
+			return result;
+		}
+	}
+}
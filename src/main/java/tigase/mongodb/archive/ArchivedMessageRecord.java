@@ -0,0 +1,131 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb.archive;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import tigase.mongodb.PayloadFormat;
+import tigase.mongodb.RecordCodec;
+import tigase.xml.Element;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Message stored in {@code tig_ma_msgs} collection.
+ *
+ * @author andrzej
+ */
+public final class ArchivedMessageRecord {
+
+	String body;
+	String buddy;
+	byte[] buddyId;
+	Date date;
+	Element msg;
+	String owner;
+	byte[] ownerDomainId;
+	byte[] ownerId;
+	String refStableId;
+	UUID stableId;
+	UUID stanzaId;
+	List<String> tags;
+	Date ts;
+
+	public static final class BsonCodec
+			extends RecordCodec<ArchivedMessageRecord> {
+
+		public BsonCodec(CodecRegistry registry, PayloadFormat payloadFormat) {
+			super(ArchivedMessageRecord.class, registry, payloadFormat);
+		}
+
+		@Override
+		protected ArchivedMessageRecord newRecord() {
+			return new ArchivedMessageRecord();
+		}
+
+		@Override
+		protected boolean decodeField(BsonReader reader, DecoderContext decoderContext, String name,
+		                              ArchivedMessageRecord record) {
+			switch (name) {
+				case "owner":
+					record.owner = reader.readString();
+					return true;
+				case "owner_id":
+					record.ownerId = readBinary(reader);
+					return true;
+				case "owner_domain_id":
+					record.ownerDomainId = readBinary(reader);
+					return true;
+				case "stable_id":
+					record.stableId = readUUID(reader, decoderContext);
+					return true;
+				case "buddy":
+					record.buddy = reader.readString();
+					return true;
+				case "buddy_id":
+					record.buddyId = readBinary(reader);
+					return true;
+				case "date":
+					record.date = readDate(reader);
+					return true;
+				case "ts":
+					record.ts = readDate(reader);
+					return true;
+				case "msg":
+					record.msg = readElement(reader);
+					return true;
+				case "stanza_id":
+					record.stanzaId = readUUID(reader, decoderContext);
+					return true;
+				case "ref_stable_id":
+					record.refStableId = reader.readString();
+					return true;
+				case "body":
+					record.body = reader.readString();
+					return true;
+				case "tags":
+					record.tags = readStringArray(reader);
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		@Override
+		protected void encodeFields(BsonWriter writer, EncoderContext encoderContext, ArchivedMessageRecord record) {
+			writeString(writer, "owner", record.owner);
+			writeBinary(writer, "owner_id", record.ownerId);
+			writeBinary(writer, "owner_domain_id", record.ownerDomainId);
+			writeUUID(writer, encoderContext, "stable_id", record.stableId);
+			writeString(writer, "buddy", record.buddy);
+			writeBinary(writer, "buddy_id", record.buddyId);
+			writeDate(writer, "date", record.date);
+			writeDate(writer, "ts", record.ts);
+			writePayload(writer, "msg", record.msg);
+			writeUUID(writer, encoderContext, "stanza_id", record.stanzaId);
+			writeString(writer, "ref_stable_id", record.refStableId);
+			writeString(writer, "body", record.body);
+			writeStringArray(writer, "tags", record.tags);
+		}
+	}
+}
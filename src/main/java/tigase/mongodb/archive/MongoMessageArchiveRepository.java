@@ -18,12 +18,15 @@
 package tigase.mongodb.archive;
 
 import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.reactivestreams.client.FindPublisher;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.Binary;
@@ -38,13 +41,17 @@ import tigase.db.TigaseDBException;
 import tigase.db.util.RepositoryVersionAware;
 import tigase.db.util.SchemaLoader;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.mongodb.BulkWriter;
+import tigase.mongodb.JidIdCodec;
 import tigase.mongodb.MongoDataSource;
+import tigase.mongodb.MongoReactiveDataSource;
 import tigase.mongodb.MongoRepositoryVersionAware;
+import tigase.mongodb.PayloadFormat;
+import tigase.mongodb.Publishers;
+import tigase.mongodb.ReadRouting;
+import tigase.mongodb.SchemaManifest;
 import tigase.util.Version;
-import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
-import tigase.xml.SimpleParser;
-import tigase.xml.SingletonFactory;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
@@ -53,12 +60,11 @@ import tigase.xmpp.mam.util.MAMUtil;
 import tigase.xmpp.mam.util.Range;
 import tigase.xmpp.rsm.RSM;
 
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -68,7 +74,6 @@ import static com.mongodb.client.model.Accumulators.*;
 import static com.mongodb.client.model.Aggregates.*;
 import static com.mongodb.client.model.Sorts.ascending;
 import static com.mongodb.client.model.Sorts.orderBy;
-import static tigase.mongodb.Helper.collectionExists;
 
 /**
  * @author andrzej
@@ -86,31 +91,39 @@ public class MongoMessageArchiveRepository
 
 	private static final int DEF_BATCH_SIZE = 100;
 
-	private static final String HASH_ALG = "SHA-256";
 	private static final String[] MSG_BODY_PATH = {"message", "body"};
 	private static final String MSGS_COLLECTION = "tig_ma_msgs";
 	private static final String STORE_PLAINTEXT_BODY_KEY = "store-plaintext-body";
-	private static final Charset UTF8 = Charset.forName("UTF-8");
 
-	private static final SimpleParser parser = SingletonFactory.getParserInstance();
 	@ConfigField(desc = "Batch size", alias = "batch-size")
 	private int batchSize = DEF_BATCH_SIZE;
+	private BulkWriter bulkWriter;
+	@ConfigField(desc = "Use causally consistent sessions to read own writes", alias = "causal-consistency")
+	private boolean causalConsistency = false;
 	private MongoDatabase db;
 	private MongoCollection<Document> msgsCollection;
+	private MongoCollection<Document> msgsReadCollection;
+	private MongoCollection<ArchivedMessageRecord> msgsReadRecords;
+	private com.mongodb.reactivestreams.client.MongoCollection<ArchivedMessageRecord> msgsReactiveCollection;
+	@ConfigField(desc = "Read concern used for queries", alias = "read-concern")
+	private String readConcern = null;
+	@ConfigField(desc = "Max staleness (in seconds) of secondary used for queries", alias = "read-max-staleness")
+	private long readMaxStaleness = -1;
+	@ConfigField(desc = "Read preference used for queries", alias = "read-preference")
+	private String readPreference = null;
+	private PayloadFormat payloadFormat = PayloadFormat.PLAIN;
+	private ReadRouting readRouting;
 	@ConfigField(desc = "Store plaintext body in database", alias = STORE_PLAINTEXT_BODY_KEY)
 	private boolean storePlaintextBody = true;
+	@ConfigField(desc = "Queue writes and execute them in bulk (queued writes may be lost on crash)", alias = "write-behind")
+	private boolean writeBehind = false;
 
 	private static byte[] calculateHash(String user) throws TigaseDBException {
-		try {
-			MessageDigest md = MessageDigest.getInstance(HASH_ALG);
-			return md.digest(user.getBytes(UTF8));
-		} catch (NoSuchAlgorithmException ex) {
-			throw new TigaseDBException("Should not happen!!", ex);
-		}
+		return JidIdCodec.calculateHash(user);
 	}
 
 	private static byte[] generateId(BareJID user) throws TigaseDBException {
-		return calculateHash(user.toString().toLowerCase());
+		return JidIdCodec.generateId(user);
 	}
 
 	@Override
@@ -118,48 +131,87 @@ public class MongoMessageArchiveRepository
 								  String stanzaId, String refStableId, Set<String> tags,
 								  MongoDBAddMessageAdditionalDataProvider additionParametersProvider) {
 		try {
-			byte[] oid = generateId(ownerJid);
-			byte[] bid = generateId(buddyJid);
-			byte[] odid = calculateHash(ownerJid.getDomain());
-
-			String type = msg.getAttributeStaticStr("type");
-			Date date = new Date(timestamp.getTime() - (timestamp.getTime() % (24 * 60 * 60 * 1000)));
-
 			UUID stableId = UUID.fromString(stableIdStr);
+			Document dto = createMessageDocument(ownerJid, buddyJid, timestamp, msg, stableId, refStableId, tags);
+			Document crit = new Document("owner_id", dto.get("owner_id")).append("stable_id", stableId);
 
-			Document crit = new Document("owner_id", oid).append("stable_id", stableId);
-
-			Document dto = new Document("owner", ownerJid.toString()).append("owner_id", oid)
-					.append("owner_domain_id", odid)
-					.append("stable_id", stableId)
-					.append("buddy", buddyJid.toString())
-					.append("buddy_id", bid)
-					// adding date for aggregation
-					.append("date", date)
-					.append("ts", timestamp)
-					.append("msg", msg.toString());
-			if (stableId != null) {
-				dto.append("stanza_id", stableId);
+			if (bulkWriter != null) {
+				bulkWriter.submit(msgsCollection, new UpdateOneModel<>(crit, new Document("$set", dto),
+				                                                       new UpdateOptions().upsert(true)));
+				return;
 			}
-			if (refStableId != null) {
-				dto.append("ref_stable_id", refStableId);
+			try (ClientSession session = readRouting.startWriteSession()) {
+				ReadRouting.updateOne(msgsCollection, session, crit, new Document("$set", dto),
+				                      new UpdateOptions().upsert(true));
+				readRouting.afterWrite(ownerJid, session);
 			}
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Problem adding new entry to DB: " + msg, ex);
+		}
+	}
 
-			if (storePlaintextBody) {
-				String body = msg.getChildCData(MSG_BODY_PATH);
-				if (body != null) {
-					dto.append("body", body);
-				}
+	/**
+	 * Asynchronous variant of archiving of a message. If reactive data source is not used, message is stored
+	 * synchronously (blocking the calling thread).
+	 */
+	public CompletableFuture<Void> archiveMessageAsync(BareJID ownerJid, BareJID buddyJid, Date timestamp, Element msg,
+	                                                   String stableIdStr, String refStableId, Set<String> tags) {
+		try {
+			UUID stableId = UUID.fromString(stableIdStr);
+			Document dto = createMessageDocument(ownerJid, buddyJid, timestamp, msg, stableId, refStableId, tags);
+			Document crit = new Document("owner_id", dto.get("owner_id")).append("stable_id", stableId);
+			Document update = new Document("$set", dto);
+
+			if (msgsReactiveCollection == null) {
+				return Publishers.blocking(() -> {
+					msgsCollection.updateOne(crit, update, new UpdateOptions().upsert(true));
+					return null;
+				});
 			}
+			return Publishers.completion(
+					msgsReactiveCollection.updateOne(crit, update, new UpdateOptions().upsert(true)));
+		} catch (Exception ex) {
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(ex);
+			return future;
+		}
+	}
 
-			if (tags != null && !tags.isEmpty()) {
-				dto.append("tags", new ArrayList<String>(tags));
+	Document createMessageDocument(BareJID ownerJid, BareJID buddyJid, Date timestamp, Element msg, UUID stableId,
+	                               String refStableId, Set<String> tags) throws TigaseDBException {
+		byte[] oid = generateId(ownerJid);
+		byte[] bid = generateId(buddyJid);
+		byte[] odid = calculateHash(ownerJid.getDomain());
+
+		Date date = new Date(timestamp.getTime() - (timestamp.getTime() % (24 * 60 * 60 * 1000)));
+
+		Document dto = new Document("owner", ownerJid.toString()).append("owner_id", oid)
+				.append("owner_domain_id", odid)
+				.append("stable_id", stableId)
+				.append("buddy", buddyJid.toString())
+				.append("buddy_id", bid)
+				// adding date for aggregation
+				.append("date", date)
+				.append("ts", timestamp)
+				.append("msg", payloadFormat.encode(msg));
+		if (stableId != null) {
+			dto.append("stanza_id", stableId);
+		}
+		if (refStableId != null) {
+			dto.append("ref_stable_id", refStableId);
+		}
+
+		if (storePlaintextBody) {
+			String body = msg.getChildCData(MSG_BODY_PATH);
+			if (body != null) {
+				dto.append("body", body);
 			}
+		}
 
-			msgsCollection.updateOne(crit, new Document("$set", dto), new UpdateOptions().upsert(true));
-		} catch (Exception ex) {
-			log.log(Level.WARNING, "Problem adding new entry to DB: " + msg, ex);
+		if (tags != null && !tags.isEmpty()) {
+			dto.append("tags", new ArrayList<String>(tags));
 		}
+		return dto;
 	}
 
 	public Document createCriteriaDocument(QueryCriteria query) throws TigaseDBException {
@@ -245,13 +297,13 @@ public class MongoMessageArchiveRepository
 		return Integer.parseInt(uid);
 	}
 
-	private Integer getItemPosition(String uid, QueryCriteria query, Document crit)
+	private Integer getItemPosition(ClientSession session, String uid, QueryCriteria query, Document crit)
 			throws TigaseDBException, ComponentException {
 		if (uid == null || uid.isEmpty()) {
 			return null;
 		}
 
-		System.out.println("getting position for " + uid);
+		log.log(Level.FINEST, "Getting position for {0}", uid);
 		if (!query.getUseMessageIdInRsm()) {
 			return Integer.parseInt(uid);
 		}
@@ -259,21 +311,22 @@ public class MongoMessageArchiveRepository
 		byte[] ownerId = generateId(query.getQuestionerJID().getBareJID());
 		Bson idCrit = Filters.and(Filters.eq("owner_id", ownerId), Filters.eq("stable_id", UUID.fromString(uid)));
 
-		FindIterable<Document> cursor = msgsCollection.find(idCrit).projection(Projections.include("ts"));
-		Document doc = cursor.first();
+		FindIterable<ArchivedMessageRecord> cursor = ReadRouting.find(msgsReadRecords, session, idCrit)
+				.projection(Projections.include("ts"));
+		ArchivedMessageRecord doc = cursor.first();
 		if (doc == null) {
-			System.out.println("item with " + uid + " not found");
+			log.log(Level.FINEST, "Item with {0} not found", uid);
 			return null;
 		}
 		
-		Date ts = doc.getDate("ts");
+		Date ts = doc.ts;
 
 		Document positionCrit = new Document(crit);
 		positionCrit.append("ts", new Document("$lt", ts));
 
-		long position = msgsCollection.countDocuments(positionCrit);
+		long position = ReadRouting.countDocuments(msgsReadCollection, session, positionCrit);
 
-		System.out.println("got position " + position + " for " + uid);
+		log.log(Level.FINEST, "Got position {0} for {1}", new Object[]{position, uid});
 
 		if (position < 0) {
 			throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Item with " + uid + " not found");
@@ -285,7 +338,7 @@ public class MongoMessageArchiveRepository
 	@Override
 	public List<String> getTags(BareJID owner, String startsWith, QueryCriteria criteria) throws TigaseDBException {
 		List<String> results = new ArrayList<String>();
-		try {
+		try (ClientSession session = readRouting.startReadSession(owner)) {
 			byte[] oid = generateId(owner);
 			Pattern tagPattern = Pattern.compile(startsWith + ".*");
 			List<Document> pipeline = new ArrayList<Document>();
@@ -297,7 +350,8 @@ public class MongoMessageArchiveRepository
 			pipeline.add(new Document("$group", new Document("_id", "$tags")));
 			pipeline.add(new Document("$group", new Document("_id", 1).append("count", new Document("$sum", 1))));
 
-			AggregateIterable<Document> cursor = msgsCollection.aggregate(pipeline).allowDiskUse(true);
+			AggregateIterable<Document> cursor = ReadRouting.aggregate(msgsReadCollection, session, pipeline)
+					.allowDiskUse(true);
 			Document countDoc = cursor.first();
 			int count = countDoc != null ? countDoc.getInteger("count") : null;
 
@@ -313,7 +367,9 @@ public class MongoMessageArchiveRepository
 					pipeline.add(new Document("$skip", criteria.getRsm().getIndex()));
 				}
 				pipeline.add(new Document("$limit", criteria.getRsm().getMax()));
-				cursor = msgsCollection.aggregate(pipeline).allowDiskUse(true).batchSize(batchSize);
+				cursor = ReadRouting.aggregate(msgsReadCollection, session, pipeline)
+						.allowDiskUse(true)
+						.batchSize(batchSize);
 				for (Document dto : cursor) {
 					results.add((String) dto.get("_id"));
 				}
@@ -339,7 +395,7 @@ public class MongoMessageArchiveRepository
 	@Override
 	public void queryCollections(QueryCriteria query, CollectionHandler<QueryCriteria, Collection> collectionHandler)
 			throws TigaseDBException {
-		try {
+		try (ClientSession session = readRouting.startReadSession(query.getQuestionerJID().getBareJID())) {
 			Bson crit = createCriteriaDocument(query);
 			List<Element> results = new ArrayList<Element>();
 
@@ -352,7 +408,8 @@ public class MongoMessageArchiveRepository
 			Bson countCrit = group(1, sum("count", 1));
 			pipeline.add(countCrit);
 
-			AggregateIterable<Document> cursor = msgsCollection.aggregate(pipeline).allowDiskUse(true);
+			AggregateIterable<Document> cursor = ReadRouting.aggregate(msgsReadCollection, session, pipeline)
+					.allowDiskUse(true);
 			Document countDoc = cursor.first();
 			int count = (countDoc != null) ? countDoc.getInteger("count") : 0;
 
@@ -374,7 +431,9 @@ public class MongoMessageArchiveRepository
 				}
 				pipeline.add(limit(query.getRsm().getMax()));
 
-				cursor = msgsCollection.aggregate(pipeline).allowDiskUse(true).batchSize(batchSize);
+				cursor = ReadRouting.aggregate(msgsReadCollection, session, pipeline)
+						.allowDiskUse(true)
+						.batchSize(batchSize);
 
 				for (Document dto : cursor) {
 					String buddy = (String) dto.get("buddy");
@@ -407,7 +466,7 @@ public class MongoMessageArchiveRepository
 	@Override
 	public void queryItems(QueryCriteria query, ItemHandler<QueryCriteria, MAMRepository.Item> itemHandler)
 			throws TigaseDBException {
-		try {
+		try (ClientSession session = readRouting.startReadSession(query.getQuestionerJID().getBareJID())) {
 			if (!query.getIds().isEmpty()) {
 				BareJID owner = query.getQuestionerJID().getBareJID();
 				byte[] oid = generateId(owner);
@@ -417,24 +476,24 @@ public class MongoMessageArchiveRepository
 						.map(UUID::fromString)
 						.collect(Collectors.toList())));
 
-				FindIterable<Document> cursor = msgsCollection.find(crit);
+				FindIterable<ArchivedMessageRecord> cursor = ReadRouting.find(msgsReadRecords, session, crit);
 				cursor = cursor.batchSize(batchSize).sort(new Document("ts", 1));
 				query.getRsm().setIndex(0);
 
 				handleQueryItemsResult(query, crit, cursor, itemHandler);
 			} else {
 				Document crit = createCriteriaDocument(query);
-				int count = (int) msgsCollection.countDocuments(crit);
+				int count = (int) ReadRouting.countDocuments(msgsReadCollection, session, crit);
 
-				Range range = MAMUtil.rangeFromPositions(getItemPosition(query.getAfterId(), query, crit),
-														getItemPosition(query.getBeforeId(), query, crit));
+				Range range = MAMUtil.rangeFromPositions(getItemPosition(session, query.getAfterId(), query, crit),
+														getItemPosition(session, query.getBeforeId(), query, crit));
 
-				Integer afterPosRSM = getItemPosition(query.getRsm().getAfter(), query, crit);
-				Integer beforePosRSM = getItemPosition(query.getRsm().getBefore(), query, crit);
+				Integer afterPosRSM = getItemPosition(session, query.getRsm().getAfter(), query, crit);
+				Integer beforePosRSM = getItemPosition(session, query.getRsm().getBefore(), query, crit);
 
 				calculateOffsetAndPosition(query, count, beforePosRSM, afterPosRSM, range);
 				
-				FindIterable<Document> cursor = msgsCollection.find(crit);
+				FindIterable<ArchivedMessageRecord> cursor = ReadRouting.find(msgsReadRecords, session, crit);
 				if (query.getRsm().getIndex() > 0 || range.getLowerBound() > 0) {
 					cursor = cursor.skip(range.getLowerBound() + query.getRsm().getIndex());
 				}
@@ -449,39 +508,122 @@ public class MongoMessageArchiveRepository
 		}
 	}
 
-	private void handleQueryItemsResult(QueryCriteria query, Document crit, FindIterable<Document> cursor, MAMRepository.ItemHandler itemHandler) {
-		Iterator<Document> iter = cursor.iterator();
+	/**
+	 * Asynchronous variant of {@link #queryItems(QueryCriteria, ItemHandler)}. Item handler is called by the driver
+	 * thread, so it should not block. If reactive data source is not used, query is executed synchronously (blocking
+	 * the calling thread).
+	 */
+	public CompletableFuture<Void> queryItemsAsync(QueryCriteria query,
+	                                               ItemHandler<QueryCriteria, MAMRepository.Item> itemHandler) {
+		if (msgsReactiveCollection == null) {
+			return Publishers.blocking(() -> {
+				queryItems(query, itemHandler);
+				return null;
+			});
+		}
+		try {
+			if (!query.getIds().isEmpty()) {
+				BareJID owner = query.getQuestionerJID().getBareJID();
+				byte[] oid = generateId(owner);
+				Document crit = new Document("owner_id", oid);
+				crit.append("stable_id", new Document("$in", query.getIds()
+						.stream()
+						.map(UUID::fromString)
+						.collect(Collectors.toList())));
+
+				return Publishers.toList(
+						msgsReactiveCollection.find(crit).batchSize(batchSize).sort(new Document("ts", 1)))
+						.thenAccept(docs -> {
+							query.getRsm().setIndex(0);
+							handleQueryItemsResult(query, crit, docs, itemHandler);
+						});
+			}
+
+			Document crit = createCriteriaDocument(query);
+			CompletableFuture<Long> count = Publishers.first(msgsReactiveCollection.countDocuments(crit));
+			CompletableFuture<Integer> afterId = getItemPositionAsync(query.getAfterId(), query, crit);
+			CompletableFuture<Integer> beforeId = getItemPositionAsync(query.getBeforeId(), query, crit);
+			CompletableFuture<Integer> afterPosRSM = getItemPositionAsync(query.getRsm().getAfter(), query, crit);
+			CompletableFuture<Integer> beforePosRSM = getItemPositionAsync(query.getRsm().getBefore(), query, crit);
+
+			return CompletableFuture.allOf(count, afterId, beforeId, afterPosRSM, beforePosRSM).thenCompose(v -> {
+				Range range = MAMUtil.rangeFromPositions(afterId.join(), beforeId.join());
+				try {
+					calculateOffsetAndPosition(query, count.join().intValue(), beforePosRSM.join(), afterPosRSM.join(),
+					                           range);
+				} catch (Exception ex) {
+					throw new CompletionException(ex);
+				}
+
+				FindPublisher<ArchivedMessageRecord> publisher = msgsReactiveCollection.find(crit);
+				if (query.getRsm().getIndex() > 0 || range.getLowerBound() > 0) {
+					publisher = publisher.skip(range.getLowerBound() + query.getRsm().getIndex());
+				}
+				publisher = publisher.batchSize(batchSize)
+						.limit(Math.min(range.size(), query.getRsm().getMax()))
+						.sort(new Document("ts", 1));
+				return Publishers.toList(publisher);
+			}).thenAccept(docs -> handleQueryItemsResult(query, crit, docs, itemHandler));
+		} catch (Exception ex) {
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(new TigaseDBException("Cound not retrieve collections", ex));
+			return future;
+		}
+	}
+
+	private CompletableFuture<Integer> getItemPositionAsync(String uid, QueryCriteria query, Document crit)
+			throws TigaseDBException {
+		if (uid == null || uid.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (!query.getUseMessageIdInRsm()) {
+			return CompletableFuture.completedFuture(Integer.parseInt(uid));
+		}
+
+		byte[] ownerId = generateId(query.getQuestionerJID().getBareJID());
+		Bson idCrit = Filters.and(Filters.eq("owner_id", ownerId), Filters.eq("stable_id", UUID.fromString(uid)));
+
+		return Publishers.first(msgsReactiveCollection.find(idCrit).projection(Projections.include("ts")).first())
+				.thenCompose(doc -> {
+					if (doc == null) {
+						return CompletableFuture.completedFuture(null);
+					}
+					Document positionCrit = new Document(crit);
+					positionCrit.append("ts", new Document("$lt", doc.ts));
+					return Publishers.first(msgsReactiveCollection.countDocuments(positionCrit))
+							.thenApply(Long::intValue);
+				});
+	}
+
+	private void handleQueryItemsResult(QueryCriteria query, Document crit, Iterable<ArchivedMessageRecord> cursor,
+	                                    MAMRepository.ItemHandler itemHandler) {
+		Iterator<ArchivedMessageRecord> iter = cursor.iterator();
 		if (iter.hasNext()) {
 			int idx = query.getRsm().getIndex();
 			int i = 0;
 			Date startTimestamp = query.getStart();
-			DomBuilderHandler domHandler = new DomBuilderHandler();
 			while (iter.hasNext()) {
 				Item item = new Item();
 				item.owner = query.getQuestionerJID().getBareJID();
-				Document dto = iter.next();
+				ArchivedMessageRecord dto = iter.next();
 
-				String msgStr = (String) dto.get("msg");
-				item.timestamp = (Date) dto.get("ts");
+				item.timestamp = dto.ts;
 
-				item.with = (crit.containsKey("buddy")) ? null : (String) dto.get("buddy");
+				item.with = (crit.containsKey("buddy")) ? null : dto.buddy;
 				if (query.getUseMessageIdInRsm()) {
-					item.id = ((UUID) dto.get("stable_id")).toString();
+					item.id = dto.stableId.toString();
 				}
 
-				parser.parse(domHandler, msgStr.toCharArray(), 0, msgStr.length());
-
 				if (startTimestamp == null) {
 					startTimestamp = item.timestamp;
 				}
 
-				Queue<Element> queue = domHandler.getParsedElements();
-				Element msg = null;
-				while ((msg = queue.poll()) != null) {
+				// payload is parsed while decoding record from BSON
+				if (dto.msg != null) {
 					if (!query.getUseMessageIdInRsm()) {
 						item.id = String.valueOf(idx + i);
 					}
-					item.messageEl = msg;
+					item.messageEl = dto.msg;
 					itemHandler.itemFound(query, item);
 				}
 				i++;
@@ -520,19 +662,30 @@ public class MongoMessageArchiveRepository
 
 	public void setDataSource(MongoDataSource dataSource) {
 		MongoDatabase db = dataSource.getDatabase();
-		if (!collectionExists(db, MSGS_COLLECTION)) {
-			db.createCollection(MSGS_COLLECTION);
-		}
 
-		msgsCollection = db.getCollection(MSGS_COLLECTION);
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(MSGS_COLLECTION)
+				.index(new Document("owner_id", 1).append("date", 1))
+				.index(new Document("owner_id", 1).append("buddy_id", 1).append("ts", 1))
+				.index(new Document("owner_id", 1).append("ts", 1))
+				.index(new Document("body", "text"))
+				.index(new Document("owner_id", 1).append("tags", 1))
+				.index(new Document("owner_id", 1).append("stable_id", 1))
+				.index(new Document("owner_domain_id", 1).append("ts", 1));
+		dataSource.reconcileSchema(manifest);
 
-		msgsCollection.createIndex(new Document("owner_id", 1).append("date", 1));
-		msgsCollection.createIndex(new Document("owner_id", 1).append("buddy_id", 1).append("ts", 1));
-		msgsCollection.createIndex(new Document("owner_id", 1).append("ts", 1));
-		msgsCollection.createIndex(new Document("body", "text"));
-		msgsCollection.createIndex(new Document("owner_id", 1).append("tags", 1));
-		msgsCollection.createIndex(new Document("owner_id", 1).append("stable_id", 1));
-		msgsCollection.createIndex(new Document("owner_domain_id", 1).append("ts", 1));
+		msgsCollection = db.getCollection(MSGS_COLLECTION);
+		payloadFormat = dataSource.getPayloadFormat();
+		dataSource.convertPayloads(msgsCollection, "msg");
+		readRouting = new ReadRouting(dataSource.getClient(), readPreference, readMaxStaleness, readConcern,
+		                              causalConsistency);
+		msgsReadCollection = readRouting.forReads(msgsCollection);
+		msgsReadRecords = msgsReadCollection.withDocumentClass(ArchivedMessageRecord.class);
+		bulkWriter = writeBehind ? dataSource.getBulkWriter() : null;
+
+		msgsReactiveCollection = MongoReactiveDataSource.getReactiveCollection(dataSource, MSGS_COLLECTION,
+		                                                                       ArchivedMessageRecord.class,
+		                                                                       readRouting);
 
 		this.db = db;
 	}
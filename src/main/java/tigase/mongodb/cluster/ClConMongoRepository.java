@@ -32,14 +32,13 @@ import tigase.db.Schema;
 import tigase.db.comp.ComponentRepositoryDataSourceAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.mongodb.MongoDataSource;
+import tigase.mongodb.SchemaManifest;
 
 import java.util.Date;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static tigase.mongodb.Helper.collectionExists;
-
 @Deprecated
 @TigaseDeprecated(since = "2.5.0", note = "MongoDB support in Tigase is depracated and will be removed in Tigase XMPP Server 9.0.0")
 @Repository.Meta(supportedUris = {"mongodb:.*"})
@@ -141,9 +140,10 @@ public class ClConMongoRepository
 	public void setDataSource(MongoDataSource dataSource) {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, CLUSTER_NODES)) {
-			db.createCollection(CLUSTER_NODES);
-		}
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(CLUSTER_NODES);
+		dataSource.reconcileSchema(manifest);
+
 		clusterNodes = db.getCollection(CLUSTER_NODES);
 	}
 
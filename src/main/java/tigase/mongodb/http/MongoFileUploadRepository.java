@@ -28,6 +28,7 @@ import tigase.db.TigaseDBException;
 import tigase.http.Schema;
 import tigase.http.upload.db.FileUploadRepository;
 import tigase.mongodb.MongoDataSource;
+import tigase.mongodb.SchemaManifest;
 import tigase.xmpp.jid.BareJID;
 
 import java.time.LocalDateTime;
@@ -37,8 +38,6 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
-import static tigase.mongodb.Helper.collectionExists;
-
 /**
  * Created by andrzej on 14.03.2017.
  */
@@ -201,11 +200,11 @@ public class MongoFileUploadRepository
 	public void setDataSource(MongoDataSource dataSource) {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, SLOTS)) {
-			db.createCollection(SLOTS);
-		}
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(SLOTS).index(new Document("ts", 1));
+		dataSource.reconcileSchema(manifest);
+
 		slots = db.getCollection(SLOTS);
-		slots.createIndex(new Document("ts", 1));
 	}
 
 	@Override
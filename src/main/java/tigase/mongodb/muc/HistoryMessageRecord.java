@@ -0,0 +1,114 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb.muc;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import tigase.mongodb.PayloadFormat;
+import tigase.mongodb.RecordCodec;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Message stored in {@code tig_muc_room_history} collection.
+ *
+ * @author andrzej
+ */
+public final class HistoryMessageRecord {
+
+	String body;
+	Integer eventType;
+	String msg;
+	Boolean publicEvent;
+	String roomJid;
+	byte[] roomJidId;
+	String senderJid;
+	String senderNickname;
+	UUID stableId;
+	Date timestamp;
+
+	public static final class BsonCodec
+			extends RecordCodec<HistoryMessageRecord> {
+
+		public BsonCodec(CodecRegistry registry, PayloadFormat payloadFormat) {
+			super(HistoryMessageRecord.class, registry, payloadFormat);
+		}
+
+		@Override
+		protected HistoryMessageRecord newRecord() {
+			return new HistoryMessageRecord();
+		}
+
+		@Override
+		protected boolean decodeField(BsonReader reader, DecoderContext decoderContext, String name,
+		                              HistoryMessageRecord record) {
+			switch (name) {
+				case "room_jid_id":
+					record.roomJidId = readBinary(reader);
+					return true;
+				case "room_jid":
+					record.roomJid = reader.readString();
+					return true;
+				case "event_type":
+					record.eventType = reader.readInt32();
+					return true;
+				case "sender_jid":
+					record.senderJid = reader.readString();
+					return true;
+				case "sender_nickname":
+					record.senderNickname = reader.readString();
+					return true;
+				case "stable_id":
+					record.stableId = readUUID(reader, decoderContext);
+					return true;
+				case "body":
+					record.body = reader.readString();
+					return true;
+				case "public_event":
+					record.publicEvent = reader.readBoolean();
+					return true;
+				case "timestamp":
+					record.timestamp = readDate(reader);
+					return true;
+				case "msg":
+					record.msg = readPayloadString(reader);
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		@Override
+		protected void encodeFields(BsonWriter writer, EncoderContext encoderContext, HistoryMessageRecord record) {
+			writeBinary(writer, "room_jid_id", record.roomJidId);
+			writeString(writer, "room_jid", record.roomJid);
+			writeInt(writer, "event_type", record.eventType);
+			writeString(writer, "sender_jid", record.senderJid);
+			writeString(writer, "sender_nickname", record.senderNickname);
+			writeUUID(writer, encoderContext, "stable_id", record.stableId);
+			writeString(writer, "body", record.body);
+			writeBoolean(writer, "public_event", record.publicEvent);
+			writeDate(writer, "timestamp", record.timestamp);
+			writePayload(writer, "msg", record.msg);
+		}
+	}
+}
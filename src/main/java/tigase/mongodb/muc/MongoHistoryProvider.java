@@ -17,12 +17,14 @@
  */
 package tigase.mongodb.muc;
 
-import com.mongodb.MongoNamespace;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.Updates;
 import org.bson.Document;
 import org.bson.conversions.Bson;
@@ -31,13 +33,21 @@ import tigase.annotations.TigaseDeprecated;
 import tigase.component.PacketWriter;
 import tigase.component.exceptions.ComponentException;
 import tigase.component.exceptions.RepositoryException;
+import tigase.component.responses.AsyncCallback;
 import tigase.db.Repository;
 import tigase.db.TigaseDBException;
 import tigase.db.util.RepositoryVersionAware;
 import tigase.db.util.SchemaLoader;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.mongodb.BulkWriter;
+import tigase.mongodb.JidIdCodec;
 import tigase.mongodb.MongoDataSource;
+import tigase.mongodb.MongoReactiveDataSource;
 import tigase.mongodb.MongoRepositoryVersionAware;
+import tigase.mongodb.PayloadFormat;
+import tigase.mongodb.Publishers;
+import tigase.mongodb.ReadRouting;
+import tigase.mongodb.SchemaManifest;
 import tigase.muc.Affiliation;
 import tigase.muc.Room;
 import tigase.muc.RoomConfig;
@@ -54,15 +64,13 @@ import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.Query;
 import tigase.xmpp.mam.QueryImpl;
 
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 
 import static com.mongodb.client.model.Accumulators.first;
 import static com.mongodb.client.model.Aggregates.group;
-import static tigase.mongodb.Helper.collectionExists;
 
 /**
  * @author andrzej
@@ -77,14 +85,28 @@ public class MongoHistoryProvider
 		implements MongoRepositoryVersionAware, ExtendedMAMRepository {
 
 	private static final int DEF_BATCH_SIZE = 100;
-	private static final String HASH_ALG = "SHA-256";
 	private static final String HISTORY_COLLECTION = "tig_muc_room_history";
 	private static final String HISTORY_COLLECTION_OLD = "muc_history";
-	private static final Charset UTF8 = Charset.forName("UTF-8");
 	protected MongoCollection<Document> historyCollection;
+	protected com.mongodb.reactivestreams.client.MongoCollection<Document> historyReactiveCollection;
+	protected MongoCollection<Document> historyReadCollection;
+	protected MongoCollection<HistoryMessageRecord> historyReadRecords;
 	@ConfigField(desc = "Batch size", alias = "batch-size")
 	private int batchSize = DEF_BATCH_SIZE;
+	private BulkWriter bulkWriter;
+	@ConfigField(desc = "Use causally consistent sessions to read own writes", alias = "causal-consistency")
+	private boolean causalConsistency = false;
 	private MongoDatabase db;
+	@ConfigField(desc = "Read concern used for queries", alias = "read-concern")
+	private String readConcern = null;
+	@ConfigField(desc = "Max staleness (in seconds) of secondary used for queries", alias = "read-max-staleness")
+	private long readMaxStaleness = -1;
+	@ConfigField(desc = "Read preference used for queries", alias = "read-preference")
+	private String readPreference = null;
+	private PayloadFormat payloadFormat = PayloadFormat.PLAIN;
+	private ReadRouting readRouting;
+	@ConfigField(desc = "Queue writes and execute them in bulk (queued writes may be lost on crash)", alias = "write-behind")
+	private boolean writeBehind = false;
 
 	@Override
 	public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
@@ -104,27 +126,63 @@ public class MongoHistoryProvider
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time, String stableId) {
 		try {
-			byte[] rid = generateId(room.getRoomJID());
-			Document dto = new Document("room_jid_id", rid).append("room_jid", room.getRoomJID().toString())
-					.append("event_type", 1)
-					.append("sender_jid", senderJid.toString())
-					.append("sender_nickname", senderNickname)
-					.append("stable_id", UUID.fromString(stableId))
-					.append("body", body)
-					.append("public_event", room.getConfig().isLoggingEnabled());
-			if (time != null) {
-				dto.append("timestamp", time);
+			Document dto = createMessageDocument(room, message, body, senderJid, senderNickname, time, stableId);
+			if (bulkWriter != null) {
+				bulkWriter.submit(historyCollection, new InsertOneModel<>(dto));
+				return;
 			}
-			if (message != null) {
-				dto.append("msg", message.toString());
+			try (ClientSession session = readRouting.startWriteSession()) {
+				ReadRouting.insertOne(historyCollection, session, dto);
+				readRouting.afterWrite(room.getRoomJID(), session);
 			}
-			historyCollection.insertOne(dto);
 		} catch (Exception ex) {
 			log.log(Level.WARNING, "Can't add MUC message to database", ex);
 			throw new RuntimeException(ex);
 		}
 	}
 
+	/**
+	 * Asynchronous variant of {@link #addMessage(Room, Element, String, JID, String, Date, String)}. If reactive
+	 * data source is not used, it is executed synchronously (blocking the calling thread).
+	 */
+	public CompletableFuture<Void> addMessageAsync(Room room, Element message, String body, JID senderJid,
+	                                               String senderNickname, Date time, String stableId) {
+		if (historyReactiveCollection == null) {
+			return Publishers.blocking(() -> {
+				addMessage(room, message, body, senderJid, senderNickname, time, stableId);
+				return null;
+			});
+		}
+		try {
+			Document dto = createMessageDocument(room, message, body, senderJid, senderNickname, time, stableId);
+			return Publishers.completion(historyReactiveCollection.insertOne(dto));
+		} catch (Exception ex) {
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(ex);
+			return future;
+		}
+	}
+
+	private Document createMessageDocument(Room room, Element message, String body, JID senderJid,
+	                                       String senderNickname, Date time, String stableId)
+			throws TigaseDBException {
+		byte[] rid = generateId(room.getRoomJID());
+		Document dto = new Document("room_jid_id", rid).append("room_jid", room.getRoomJID().toString())
+				.append("event_type", 1)
+				.append("sender_jid", senderJid.toString())
+				.append("sender_nickname", senderNickname)
+				.append("stable_id", UUID.fromString(stableId))
+				.append("body", body)
+				.append("public_event", room.getConfig().isLoggingEnabled());
+		if (time != null) {
+			dto.append("timestamp", time);
+		}
+		if (message != null) {
+			dto.append("msg", payloadFormat.encode(message));
+		}
+		return dto;
+	}
+
 	@Override
 	public void addSubjectChange(Room room, Element message, String subject, JID senderJid, String senderNickname,
 	                             Date time) {
@@ -132,9 +190,9 @@ public class MongoHistoryProvider
 
 	@Override
 	public Item getItem(BareJID owner, String stableId) throws RepositoryException {
-		try {
+		try (ClientSession session = readRouting.startReadSession(owner)) {
 			byte[] rid = generateId(owner);
-			Document result = historyCollection.find(
+			HistoryMessageRecord result = ReadRouting.find(historyReadRecords, session,
 							Filters.and(Filters.eq("room_jid_id", rid), Filters.eq("stable_id", UUID.fromString(stableId))))
 					.projection(Projections.include("msg", "timestamp", "sender_jid"))
 					.first();
@@ -142,10 +200,9 @@ public class MongoHistoryProvider
 				return null;
 			}
 
-			String msgStr = result.getString("msg");
-			Element msg = parseMessage(msgStr);
-			Date timestamp = result.getDate("timestamp");
-			String msgSenderJid = result.getString("sender_jid");
+			Element msg = parseMessage(result.msg);
+			Date timestamp = result.timestamp;
+			String msgSenderJid = result.senderJid;
 
 			return new Item() {
 				@Override
@@ -179,11 +236,13 @@ public class MongoHistoryProvider
 
 	@Override
 	public void updateMessage(BareJID owner, String stableId, Element msg, String body) throws RepositoryException {
-		try {
+		try (ClientSession session = readRouting.startWriteSession()) {
 			byte[] rid = generateId(owner);
-			historyCollection.updateOne(
+			ReadRouting.updateOne(historyCollection, session,
 							Filters.and(Filters.eq("room_jid_id", rid), Filters.eq("stable_id", UUID.fromString(stableId))),
-							Updates.combine(Updates.set("body", body), Updates.set("msg", msg.toString())));
+							Updates.combine(Updates.set("body", body), Updates.set("msg", payloadFormat.encode(msg))),
+							new UpdateOptions());
+			readRouting.afterWrite(owner, session);
 		} catch (Exception ex) {
 			log.log(Level.WARNING, "Can't update MUC message in database", ex);
 			throw new RuntimeException(ex);
@@ -191,24 +250,13 @@ public class MongoHistoryProvider
 	}
 
 	protected byte[] calculateHash(String user) throws TigaseDBException {
-		try {
-			MessageDigest md = MessageDigest.getInstance(HASH_ALG);
-			return md.digest(user.getBytes(UTF8));
-		} catch (NoSuchAlgorithmException ex) {
-			throw new TigaseDBException("Should not happen!!", ex);
-		}
+		return JidIdCodec.calculateHash(user);
 	}
 
-	private Packet createMessage(BareJID roomJid, JID senderJID, Document dto, boolean addRealJids)
+	private Packet createMessage(BareJID roomJid, JID senderJID, HistoryMessageRecord dto, boolean addRealJids)
 			throws TigaseStringprepException {
-		String sender_nickname = (String) dto.get("sender_nickname");
-		String msg = (String) dto.get("msg");
-		String body = (String) dto.get("body");
-		String sender_jid = (String) dto.get("sender_jid");
-		Date timestamp = (Date) dto.get("timestamp");
-		UUID stableId = (UUID) dto.get("stable_id");
-
-		return createMessage(roomJid, senderJID, sender_nickname, msg, body, sender_jid, addRealJids, timestamp, stableId.toString());
+		return createMessage(roomJid, senderJID, dto.senderNickname, dto.msg, dto.body, dto.senderJid, addRealJids,
+		                     dto.timestamp, dto.stableId.toString());
 	}
 
 	@Override
@@ -216,7 +264,7 @@ public class MongoHistoryProvider
 	}
 
 	protected byte[] generateId(BareJID user) throws TigaseDBException {
-		return calculateHash(user.toString().toLowerCase());
+		return JidIdCodec.generateId(user);
 	}
 
 	@Override
@@ -227,7 +275,7 @@ public class MongoHistoryProvider
 				room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.semianonymous &&
 						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
 
-		try {
+		try (ClientSession session = readRouting.startReadSession(room.getRoomJID())) {
 			if (maxchars != null && maxchars == 0) {
 				return;
 			}
@@ -242,22 +290,22 @@ public class MongoHistoryProvider
 			if (since != null) {
 				crit.append("timestamp", new Document("$gte", since));
 				Document order = new Document("timestamp", 1);
-				FindIterable<Document> cursor = historyCollection.find(crit)
+				FindIterable<HistoryMessageRecord> cursor = ReadRouting.find(historyReadRecords, session, crit)
 						.batchSize(batchSize)
 						.limit(limit)
 						.sort(order);
-				for (Document dto : cursor) {
+				for (HistoryMessageRecord dto : cursor) {
 					Packet packet = createMessage(room.getRoomJID(), senderJID, dto, addRealJids);
 					writer.write(packet);
 				}
 			} else {
 				Document order = new Document("timestamp", -1);
-				FindIterable<Document> cursor = historyCollection.find(crit)
+				FindIterable<HistoryMessageRecord> cursor = ReadRouting.find(historyReadRecords, session, crit)
 						.batchSize(batchSize)
 						.limit(limit)
 						.sort(order);
 				List<Packet> results = new ArrayList<Packet>();
-				for (Document dto : cursor) {
+				for (HistoryMessageRecord dto : cursor) {
 					Packet packet = createMessage(room.getRoomJID(), senderJID, dto, addRealJids);
 					results.add(packet);
 				}
@@ -272,19 +320,97 @@ public class MongoHistoryProvider
 		}
 	}
 
-	private Long getItemPosition(String msgId, Bson filter) throws ComponentException {
+	/**
+	 * Asynchronous variant of {@link #getHistoryMessages(Room, JID, Integer, Integer, Integer, Date, PacketWriter)}
+	 * which returns history messages instead of writing them. If reactive data source is not used, it is executed
+	 * synchronously (blocking the calling thread).
+	 */
+	public CompletableFuture<List<Packet>> getHistoryMessagesAsync(Room room, JID senderJID, Integer maxchars,
+	                                                               Integer maxstanzas, Integer seconds, Date since) {
+		if (historyReactiveCollection == null) {
+			return Publishers.blocking(() -> {
+				List<Packet> results = new ArrayList<>();
+				getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, new PacketWriter() {
+					@Override
+					public void write(Collection<Packet> packets) {
+						results.addAll(packets);
+					}
+
+					@Override
+					public void write(Packet packet) {
+						results.add(packet);
+					}
+
+					@Override
+					public void write(Packet packet, AsyncCallback callback) {
+						results.add(packet);
+					}
+				});
+				return results;
+			});
+		}
+
+		Affiliation recipientAffiliation = room.getAffiliation(senderJID.getBareJID()).getAffiliation();
+		boolean addRealJids = room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.nonanonymous ||
+				room.getConfig().getRoomAnonymity() == RoomConfig.Anonymity.semianonymous &&
+						(recipientAffiliation == Affiliation.owner || recipientAffiliation == Affiliation.admin);
+		try {
+			if (maxchars != null && maxchars == 0) {
+				return CompletableFuture.completedFuture(Collections.emptyList());
+			}
+			byte[] rid = generateId(room.getRoomJID());
+			int maxMessages = room.getConfig().getMaxHistory();
+			int limit = maxstanzas != null ? Math.min(maxMessages, maxstanzas) : maxMessages;
+			Date sinceDate = since;
+			if (sinceDate == null && seconds != null && maxstanzas == null) {
+				sinceDate = new Date(new Date().getTime() - seconds * 1000);
+			}
+
+			Document crit = new Document("room_jid_id", rid);
+			if (sinceDate != null) {
+				crit.append("timestamp", new Document("$gte", sinceDate));
+			}
+			boolean reverse = sinceDate == null;
+			return Publishers.toList(historyReactiveCollection.withDocumentClass(HistoryMessageRecord.class)
+											 .find(crit)
+											 .batchSize(batchSize)
+											 .limit(limit)
+											 .sort(new Document("timestamp", reverse ? -1 : 1))).thenApply(docs -> {
+				List<Packet> results = new ArrayList<>(docs.size());
+				for (HistoryMessageRecord dto : docs) {
+					try {
+						results.add(createMessage(room.getRoomJID(), senderJID, dto, addRealJids));
+					} catch (TigaseStringprepException ex) {
+						throw new CompletionException(ex);
+					}
+				}
+				if (reverse) {
+					Collections.reverse(results);
+				}
+				return results;
+			});
+		} catch (Exception ex) {
+			CompletableFuture<List<Packet>> future = new CompletableFuture<>();
+			future.completeExceptionally(ex);
+			return future;
+		}
+	}
+
+	private Long getItemPosition(ClientSession session, String msgId, Bson filter) throws ComponentException {
 		if (msgId == null) {
 			return null;
 		}
 		try {
-			Document dto = historyCollection.find(Filters.and(filter, Filters.eq("stable_id", UUID.fromString(msgId))))
+			HistoryMessageRecord dto = ReadRouting.find(historyReadRecords, session,
+			                                            Filters.and(filter, Filters.eq("stable_id", UUID.fromString(msgId))))
 					.projection(Projections.include("timestamp"))
 					.first();
 			if (dto == null) {
 				return null;
 			}
 
-			return historyCollection.countDocuments(Filters.and(filter, Filters.lt("timestamp", dto.getDate("timestamp"))));
+			return ReadRouting.countDocuments(historyReadCollection, session,
+			                                  Filters.and(filter, Filters.lt("timestamp", dto.timestamp)));
 		} catch (NumberFormatException ex) {
 			throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Not found message with id = " + msgId);
 		}
@@ -302,7 +428,7 @@ public class MongoHistoryProvider
 
 	@Override
 	public void queryItems(Query query, ItemHandler itemHandler) throws TigaseDBException, ComponentException {
-		try {
+		try (ClientSession session = readRouting.startReadSession(query.getComponentJID().getBareJID())) {
 			byte[] rid = generateId(query.getComponentJID().getBareJID());
 
 			List<Bson> filters = new ArrayList<>();
@@ -319,27 +445,27 @@ public class MongoHistoryProvider
 			}
 
 			Bson filter = Filters.and(filters);
-			long count = historyCollection.countDocuments(filter);
+			long count = ReadRouting.countDocuments(historyReadCollection, session, filter);
 
-			Long after = getItemPosition(query.getRsm().getAfter(), filter);
-			Long before = getItemPosition(query.getRsm().getBefore(), filter);
+			Long after = getItemPosition(session, query.getRsm().getAfter(), filter);
+			Long before = getItemPosition(session, query.getRsm().getBefore(), filter);
 
 			AbstractHistoryProvider.calculateOffsetAndPosition(query, (int) count,
 			                                                   before == null ? null : before.intValue(),
 			                                                   after == null ? null : after.intValue());
 
 			Document order = new Document("timestamp", 1);
-			FindIterable<Document> cursor = historyCollection.find(filter)
+			FindIterable<HistoryMessageRecord> cursor = ReadRouting.find(historyReadRecords, session, filter)
 					.sort(order)
 					.skip(query.getRsm().getIndex())
 					.limit(query.getRsm().getMax());
-			for (Document dto : cursor) {
-				String sender_nickname = (String) dto.get("sender_nickname");
-				String msg = (String) dto.get("msg");
-				String body = (String) dto.get("body");
-				Date timestamp = (Date) dto.get("timestamp");
-				UUID stableId = (UUID) dto.get("stable_id");
-				String msgSenderJid = dto.getString("sender_jid");
+			for (HistoryMessageRecord dto : cursor) {
+				String sender_nickname = dto.senderNickname;
+				String msg = dto.msg;
+				String body = dto.body;
+				Date timestamp = dto.timestamp;
+				UUID stableId = dto.stableId;
+				String msgSenderJid = dto.senderJid;
 
 				Element msgEl = createMessageElement(query.getComponentJID().getBareJID(), query.getQuestionerJID(),
 				                                     sender_nickname, msg, body, stableId.toString());
@@ -396,19 +522,24 @@ public class MongoHistoryProvider
 	public void setDataSource(MongoDataSource dataSource) {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, HISTORY_COLLECTION)) {
-			if (collectionExists(db, HISTORY_COLLECTION_OLD)) {
-				db.getCollection(HISTORY_COLLECTION_OLD)
-						.renameCollection(new MongoNamespace(db.getName(), HISTORY_COLLECTION));
-			} else {
-				db.createCollection(HISTORY_COLLECTION);
-			}
-		}
-		historyCollection = db.getCollection(HISTORY_COLLECTION);
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(HISTORY_COLLECTION)
+				.renamedFrom(HISTORY_COLLECTION_OLD)
+				.index(new Document("room_jid_id", 1))
+				.index(new Document("room_jid_id", 1).append("timestamp", 1))
+				.index(new Document("room_jid_id", 1).append("stable_id", 1));
+		dataSource.reconcileSchema(manifest);
 
-		historyCollection.createIndex(new Document("room_jid_id", 1));
-		historyCollection.createIndex(new Document("room_jid_id", 1).append("timestamp", 1));
-		historyCollection.createIndex(new Document("room_jid_id", 1).append("stable_id", 1));
+		historyCollection = db.getCollection(HISTORY_COLLECTION);
+		payloadFormat = dataSource.getPayloadFormat();
+		dataSource.convertPayloads(historyCollection, "msg");
+		readRouting = new ReadRouting(dataSource.getClient(), readPreference, readMaxStaleness, readConcern,
+		                              causalConsistency);
+		historyReadCollection = readRouting.forReads(historyCollection);
+		historyReadRecords = historyReadCollection.withDocumentClass(HistoryMessageRecord.class);
+		bulkWriter = writeBehind ? dataSource.getBulkWriter() : null;
+		historyReactiveCollection = MongoReactiveDataSource.getReactiveCollection(dataSource, HISTORY_COLLECTION,
+		                                                                          readRouting);
 	}
 
 	@Override
@@ -30,16 +30,15 @@ import tigase.component.exceptions.RepositoryException;
 import tigase.db.Repository;
 import tigase.db.TigaseDBException;
 import tigase.kernel.beans.Inject;
+import tigase.mongodb.JidIdCodec;
 import tigase.mongodb.MongoDataSource;
+import tigase.mongodb.SchemaManifest;
 import tigase.muc.*;
 import tigase.muc.repository.AbstractMucDAO;
 import tigase.muc.repository.Schema;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xmpp.jid.BareJID;
 
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -50,7 +49,6 @@ import java.util.logging.Logger;
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Projections.include;
-import static tigase.mongodb.Helper.collectionExists;
 
 /**
  * Created by andrzej on 20.10.2016.
@@ -65,10 +63,8 @@ public class MongoMucDAO
 	private static final Logger log = Logger.getLogger(MongoMucDAO.class.getCanonicalName());
 
 	private static final int DEF_BATCH_SIZE = 100;
-	private static final String HASH_ALG = "SHA-256";
 	private static final String ROOMS_COLLECTION = "tig_muc_rooms";
 	private static final String ROOM_AFFILIATIONS_COLLECTION = "tig_muc_room_affiliations";
-	private static final Charset UTF8 = Charset.forName("UTF-8");
 	protected MongoCollection<Document> roomAffilaitionsCollection;
 	protected MongoCollection<Document> roomsCollection;
 	private MongoDatabase db;
@@ -76,12 +72,7 @@ public class MongoMucDAO
 	private Room.RoomFactory roomFactory;
 
 	protected byte[] calculateHash(String user) throws TigaseDBException {
-		try {
-			MessageDigest md = MessageDigest.getInstance(HASH_ALG);
-			return md.digest(user.getBytes(UTF8));
-		} catch (NoSuchAlgorithmException ex) {
-			throw new TigaseDBException("Should not happen!!", ex);
-		}
+		return JidIdCodec.calculateHash(user);
 	}
 
 	@Override
@@ -122,7 +113,7 @@ public class MongoMucDAO
 	}
 
 	protected byte[] generateId(BareJID user) throws TigaseDBException {
-		return calculateHash(user.toString().toLowerCase());
+		return JidIdCodec.generateId(user);
 	}
 
 	@Override
@@ -230,19 +221,15 @@ public class MongoMucDAO
 	public void setDataSource(MongoDataSource dataSource) {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, ROOMS_COLLECTION)) {
-			db.createCollection(ROOMS_COLLECTION);
-		}
-		roomsCollection = db.getCollection(ROOMS_COLLECTION);
-		roomsCollection.createIndex(new Document("jid", 1), new IndexOptions().unique(true));
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(ROOMS_COLLECTION).index(new Document("jid", 1), new IndexOptions().unique(true));
+		manifest.collection(ROOM_AFFILIATIONS_COLLECTION)
+				.index(new Document("room_id", 1))
+				.index(new Document("room_id", 1).append("jid_id", 1), new IndexOptions().unique(true));
+		dataSource.reconcileSchema(manifest);
 
-		if (!collectionExists(db, ROOM_AFFILIATIONS_COLLECTION)) {
-			db.createCollection(ROOM_AFFILIATIONS_COLLECTION);
-		}
+		roomsCollection = db.getCollection(ROOMS_COLLECTION);
 		roomAffilaitionsCollection = db.getCollection(ROOM_AFFILIATIONS_COLLECTION);
-		roomAffilaitionsCollection.createIndex(new Document("room_id", 1));
-		roomAffilaitionsCollection.createIndex(new Document("room_id", 1).append("jid_id", 1),
-		                                       new IndexOptions().unique(true));
 	}
 
 	@Override
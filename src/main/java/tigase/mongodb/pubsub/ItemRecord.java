@@ -0,0 +1,116 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb.pubsub;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import tigase.mongodb.PayloadFormat;
+import tigase.mongodb.RecordCodec;
+import tigase.xml.Element;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Item stored in {@code tig_pubsub_items} collection.
+ *
+ * @author andrzej
+ */
+public final class ItemRecord {
+
+	Date creationDate;
+	Element item;
+	String itemId;
+	String node;
+	ObjectId nodeId;
+	String publisher;
+	String serviceJid;
+	byte[] serviceJidId;
+	Date updateDate;
+	UUID uuid;
+
+	public static final class BsonCodec
+			extends RecordCodec<ItemRecord> {
+
+		public BsonCodec(CodecRegistry registry, PayloadFormat payloadFormat) {
+			super(ItemRecord.class, registry, payloadFormat);
+		}
+
+		@Override
+		protected ItemRecord newRecord() {
+			return new ItemRecord();
+		}
+
+		@Override
+		protected boolean decodeField(BsonReader reader, DecoderContext decoderContext, String name,
+		                              ItemRecord record) {
+			switch (name) {
+				case "service_jid_id":
+					record.serviceJidId = readBinary(reader);
+					return true;
+				case "service_jid":
+					record.serviceJid = reader.readString();
+					return true;
+				case "node_id":
+					record.nodeId = reader.readObjectId();
+					return true;
+				case "node":
+					record.node = reader.readString();
+					return true;
+				case "item_id":
+					record.itemId = reader.readString();
+					return true;
+				case "creation_date":
+					record.creationDate = readDate(reader);
+					return true;
+				case "update_date":
+					record.updateDate = readDate(reader);
+					return true;
+				case "publisher":
+					record.publisher = reader.readString();
+					return true;
+				case "item":
+					record.item = readElement(reader);
+					return true;
+				case "uuid":
+					record.uuid = readUUID(reader, decoderContext);
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		@Override
+		protected void encodeFields(BsonWriter writer, EncoderContext encoderContext, ItemRecord record) {
+			writeBinary(writer, "service_jid_id", record.serviceJidId);
+			writeString(writer, "service_jid", record.serviceJid);
+			writeObjectId(writer, "node_id", record.nodeId);
+			writeString(writer, "node", record.node);
+			writeString(writer, "item_id", record.itemId);
+			writeDate(writer, "creation_date", record.creationDate);
+			writeDate(writer, "update_date", record.updateDate);
+			writeString(writer, "publisher", record.publisher);
+			writePayload(writer, "item", record.item);
+			writeUUID(writer, encoderContext, "uuid", record.uuid);
+		}
+	}
+}
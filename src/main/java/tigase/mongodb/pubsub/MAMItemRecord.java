@@ -0,0 +1,91 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb.pubsub;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import tigase.mongodb.PayloadFormat;
+import tigase.mongodb.RecordCodec;
+import tigase.xml.Element;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Entry stored in {@code tig_pubsub_mam} collection.
+ *
+ * @author andrzej
+ */
+public final class MAMItemRecord {
+
+	Element data;
+	String itemId;
+	ObjectId nodeId;
+	Date ts;
+	UUID uuid;
+
+	public static final class BsonCodec
+			extends RecordCodec<MAMItemRecord> {
+
+		public BsonCodec(CodecRegistry registry, PayloadFormat payloadFormat) {
+			super(MAMItemRecord.class, registry, payloadFormat);
+		}
+
+		@Override
+		protected MAMItemRecord newRecord() {
+			return new MAMItemRecord();
+		}
+
+		@Override
+		protected boolean decodeField(BsonReader reader, DecoderContext decoderContext, String name,
+		                              MAMItemRecord record) {
+			switch (name) {
+				case "node_id":
+					record.nodeId = reader.readObjectId();
+					return true;
+				case "uuid":
+					record.uuid = readUUID(reader, decoderContext);
+					return true;
+				case "ts":
+					record.ts = readDate(reader);
+					return true;
+				case "data":
+					record.data = readElement(reader);
+					return true;
+				case "item_id":
+					record.itemId = reader.readString();
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		@Override
+		protected void encodeFields(BsonWriter writer, EncoderContext encoderContext, MAMItemRecord record) {
+			writeObjectId(writer, "node_id", record.nodeId);
+			writeUUID(writer, encoderContext, "uuid", record.uuid);
+			writeDate(writer, "ts", record.ts);
+			writePayload(writer, "data", record.data);
+			writeString(writer, "item_id", record.itemId);
+		}
+	}
+}
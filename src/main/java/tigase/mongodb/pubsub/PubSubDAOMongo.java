@@ -18,6 +18,7 @@
 package tigase.mongodb.pubsub;
 
 import com.mongodb.MongoException;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
@@ -33,8 +34,15 @@ import tigase.db.Repository;
 import tigase.db.util.RepositoryVersionAware;
 import tigase.db.util.SchemaLoader;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.mongodb.BulkWriter;
+import tigase.mongodb.JidIdCodec;
 import tigase.mongodb.MongoDataSource;
+import tigase.mongodb.MongoReactiveDataSource;
 import tigase.mongodb.MongoRepositoryVersionAware;
+import tigase.mongodb.PayloadFormat;
+import tigase.mongodb.Publishers;
+import tigase.mongodb.ReadRouting;
+import tigase.mongodb.SchemaManifest;
 import tigase.pubsub.*;
 import tigase.pubsub.modules.mam.ExtendedQueryImpl;
 import tigase.pubsub.repository.*;
@@ -51,15 +59,11 @@ import tigase.xmpp.mam.util.MAMUtil;
 import tigase.xmpp.mam.util.Range;
 import tigase.xmpp.rsm.RSM;
 
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static com.mongodb.client.model.Projections.include;
-import static tigase.mongodb.Helper.collectionExists;
-import static tigase.mongodb.Helper.indexCreateOrReplace;
 
 /**
  * @author andrzej
@@ -79,34 +83,49 @@ public class PubSubDAOMongo
 	public static final String PUBSUB_NODES = "tig_pubsub_nodes";
 	public static final String PUBSUB_SERVICE_JIDS = "tig_pubsub_service_jids";
 	public static final String PUBSUB_SUBSCRIPTIONS = "tig_pubsub_subscriptions";
-	private static final String JID_HASH_ALG = "SHA-256";
-	private static final Charset UTF8 = Charset.forName("UTF-8");
 	private static final int DEF_BATCH_SIZE = 100;
 	private MongoCollection<Document> affiliationsCollection;
 	@ConfigField(desc = "Batch size", alias = "batch-size")
 	private int batchSize = DEF_BATCH_SIZE;
+	private BulkWriter bulkWriter;
+	@ConfigField(desc = "Use causally consistent sessions to read own writes", alias = "causal-consistency")
+	private boolean causalConsistency = false;
 	private MongoDatabase db;
 	private MongoCollection<Document> itemsCollecton;
+	private com.mongodb.reactivestreams.client.MongoCollection<Document> itemsReactiveCollection;
+	private com.mongodb.reactivestreams.client.MongoCollection<ItemRecord> itemsReactiveReadCollection;
+	private MongoCollection<Document> itemsReadCollection;
+	private MongoCollection<ItemRecord> itemsReadRecords;
 	private MongoCollection<Document> nodesCollection;
 	private MongoCollection<Document> serviceJidsCollection;
 	private MongoCollection<Document> subscriptionsCollection;
 	private MongoCollection<Document> mamCollection;
+	private MongoCollection<Document> mamReadCollection;
+	private MongoCollection<MAMItemRecord> mamReadRecords;
+	@ConfigField(desc = "Read concern used for queries", alias = "read-concern")
+	private String readConcern = null;
+	@ConfigField(desc = "Max staleness (in seconds) of secondary used for queries", alias = "read-max-staleness")
+	private long readMaxStaleness = -1;
+	@ConfigField(desc = "Read preference used for queries", alias = "read-preference")
+	private String readPreference = null;
+	private PayloadFormat payloadFormat = PayloadFormat.PLAIN;
+	private ReadRouting readRouting;
+	@ConfigField(desc = "Queue writes and execute them in bulk (queued writes may be lost on crash)", alias = "write-behind")
+	private boolean writeBehind = false;
 
 	public PubSubDAOMongo() {
 	}
 
 	@Override
 	public MAMRepository.Item getMAMItem(BareJID serviceJid, ObjectId nodeId, String stableId) throws RepositoryException {
-		FindIterable<Document> cursor = mamCollection.find(
-				Filters.and(Filters.eq("node_id", nodeId), Filters.eq("uuid", UUID.fromString(stableId))));
-		for (Document dto : cursor) {
-			UUID uuid = (UUID) dto.get("uuid");
-			Date ts = dto.getDate("ts");
-			Element itemEl = itemDataToElement(dto.getString("data"));
-
-			return new MAMItem(uuid.toString(),  ts, itemEl);
+		try (ClientSession session = readRouting.startReadSession(nodeId)) {
+			FindIterable<MAMItemRecord> cursor = ReadRouting.find(mamReadRecords, session,
+					Filters.and(Filters.eq("node_id", nodeId), Filters.eq("uuid", UUID.fromString(stableId))));
+			for (MAMItemRecord dto : cursor) {
+				return new MAMItem(dto.uuid.toString(), dto.ts, dto.data);
+			}
+			return null;
 		}
-		return null;
 	}
 
 	@Override
@@ -114,16 +133,11 @@ public class PubSubDAOMongo
 			throws RepositoryException {
 		mamCollection.updateOne(
 				Filters.and(Filters.eq("node_id", nodeId), Filters.eq("uuid", UUID.fromString(stableId))),
-				Updates.set("data", element.toString()));
+				Updates.set("data", payloadFormat.encode(element)));
 	}
 
 	private byte[] calculateHash(String in) throws RepositoryException {
-		try {
-			MessageDigest md = MessageDigest.getInstance(JID_HASH_ALG);
-			return md.digest(in.getBytes(UTF8));
-		} catch (NoSuchAlgorithmException ex) {
-			throw new RepositoryException("Should not happen!!", ex);
-		}
+		return JidIdCodec.calculateHash(in);
 	}
 
 	private Document createCrit(BareJID serviceJid, String nodeName) throws RepositoryException {
@@ -218,7 +232,7 @@ public class PubSubDAOMongo
 	}
 
 	private byte[] generateId(BareJID jid) throws RepositoryException {
-		return calculateHash(jid.toString().toLowerCase());
+		return JidIdCodec.generateId(jid);
 	}
 
 	@Override
@@ -241,25 +255,40 @@ public class PubSubDAOMongo
 
 	@Override
 	public IItems.IItem getItem(BareJID serviceJid, ObjectId nodeId, String id) throws RepositoryException {
-		try {
+		try (ClientSession session = readRouting.startReadSession(serviceJid)) {
 			Document crit = new Document("node_id", nodeId).append("item_id", id);
-			Document dto = itemsCollecton.find(crit).first();
+			ItemRecord dto = ReadRouting.find(itemsReadRecords, session, crit).first();
 			if (dto == null) {
 				return null;
 			}
 
-			return new IItems.Item(dto.getString("node"), id,
-								   Optional.ofNullable((UUID) dto.get("uuid")).map(String::valueOf).orElse(null),
-								   itemDataToElement(((String) dto.get("item")).toCharArray()));
+			return new IItems.Item(dto.node, id, Optional.ofNullable(dto.uuid).map(String::valueOf).orElse(null), dto.item);
 		} catch (MongoException ex) {
 			throw new RepositoryException("Error while retrieving item from repository", ex);
 		}
 	}
 
+	/**
+	 * Asynchronous variant of {@link #getItem(BareJID, ObjectId, String)}. If reactive data source is not used, it is
+	 * executed synchronously (blocking the calling thread).
+	 */
+	public CompletableFuture<IItems.IItem> getItemAsync(BareJID serviceJid, ObjectId nodeId, String id) {
+		if (itemsReactiveReadCollection == null) {
+			return Publishers.blocking(() -> getItem(serviceJid, nodeId, id));
+		}
+		Document crit = new Document("node_id", nodeId).append("item_id", id);
+		return Publishers.first(itemsReactiveReadCollection.find(crit).limit(1)).thenApply(dto -> {
+			if (dto == null) {
+				return null;
+			}
+			return new IItems.Item(dto.node, id, Optional.ofNullable(dto.uuid).map(String::valueOf).orElse(null), dto.item);
+		});
+	}
+
 	@Override
 	public List<IItems.IItem> getItems(BareJID serviceJid, List<ObjectId> nodeIds, Date afterDate, Date beforeDate, RSM rsm,
 									   CollectionItemsOrdering collectionItemsOrdering) throws RepositoryException {
-		try {
+		try (ClientSession session = readRouting.startReadSession(serviceJid)) {
 			List<Bson> filters = new ArrayList<>();
 			filters.add(Filters.in("node_id", nodeIds));
 			String timestampField =
@@ -272,10 +301,10 @@ public class PubSubDAOMongo
 			}
 
 			Bson filter = Filters.and(filters);
-			long count = itemsCollecton.countDocuments(filter);
+			long count = ReadRouting.countDocuments(itemsReadCollection, session, filter);
 
-			Long after = getItemPosition(rsm.getAfter(), filter, timestampField);
-			Long before = getItemPosition(rsm.getBefore(), filter, timestampField);
+			Long after = getItemPosition(session, rsm.getAfter(), filter, timestampField);
+			Long before = getItemPosition(session, rsm.getBefore(), filter, timestampField);
 
 			calculateOffsetAndPosition(rsm, (int) count, before == null ? null : before.intValue(),
 									   after == null ? null : after.intValue());
@@ -287,14 +316,15 @@ public class PubSubDAOMongo
 			
 			List<IItems.IItem> items = new ArrayList<>();
 			Document order = new Document(timestampField, 1);
-			FindIterable<Document> cursor = itemsCollecton.find(filter).sort(order).skip(rsm.getIndex()).limit(rsm.getMax());
-			for (Document dto : cursor) {
-				String node = nodes.get(dto.getObjectId("node_id"));
-				String id = dto.getString("item_id");
-				String uuid = Optional.ofNullable((UUID) dto.get("uuid")).map(UUID::toString).orElse(null);
-				Element itemEl = itemDataToElement(dto.getString("item"));
-
-				items.add(new IItems.Item(node, id, uuid, itemEl));
+			FindIterable<ItemRecord> cursor = ReadRouting.find(itemsReadRecords, session, filter)
+					.sort(order)
+					.skip(rsm.getIndex())
+					.limit(rsm.getMax());
+			for (ItemRecord dto : cursor) {
+				String node = nodes.get(dto.nodeId);
+				String id = dto.itemId;
+				String uuid = Optional.ofNullable(dto.uuid).map(UUID::toString).orElse(null);
+				items.add(new IItems.Item(node, id, uuid, dto.item));
 			}
 			return items;
 		} catch (MongoException ex) {
@@ -304,13 +334,14 @@ public class PubSubDAOMongo
 		}
 	}
 
-	private Long getItemPosition(String msgId, Bson filter, String timestampField) throws ComponentException {
+	private Long getItemPosition(ClientSession session, String msgId, Bson filter, String timestampField)
+			throws ComponentException {
 		if (msgId == null) {
 			return null;
 		}
 
 		ObjectId id = new ObjectId(msgId);
-		Document doc = itemsCollecton.find(Filters.eq("_id", id))
+		Document doc = ReadRouting.find(itemsReadCollection, session, Filters.eq("_id", id))
 				.projection(Projections.include(timestampField))
 				.first();
 		if (doc == null) {
@@ -318,24 +349,24 @@ public class PubSubDAOMongo
 		}
 		Date ts = doc.getDate(timestampField);
 
-		return itemsCollecton.countDocuments(Filters.and(filter, Filters.lt(timestampField, ts)));
+		return ReadRouting.countDocuments(itemsReadCollection, session, Filters.and(filter, Filters.lt(timestampField, ts)));
 	}
 
-	private Long getMAMItemPosition(String msgId, Bson filter) throws ComponentException {
+	private Long getMAMItemPosition(ClientSession session, String msgId, Bson filter) throws ComponentException {
 		if (msgId == null) {
 			return null;
 		}
 
 		UUID uuid = UUID.fromString(msgId);
-		Document doc = mamCollection.find(Filters.eq("uuid", uuid))
+		MAMItemRecord doc = ReadRouting.find(mamReadRecords, session, Filters.eq("uuid", uuid))
 				.projection(Projections.include("ts"))
 				.first();
 		if (doc == null) {
 			throw new ComponentException(Authorization.ITEM_NOT_FOUND, "Not found item with id = " + msgId);
 		}
-		Date ts = doc.getDate("ts");
+		Date ts = doc.ts;
 
-		return mamCollection.countDocuments(Filters.and(filter, Filters.lt("ts", ts)));
+		return ReadRouting.countDocuments(mamReadCollection, session, Filters.and(filter, Filters.lt("ts", ts)));
 	}
 	
 	@Override
@@ -538,11 +569,17 @@ public class PubSubDAOMongo
 	@Override
 	public void addMAMItem(BareJID serviceJid, ObjectId nodeId, String uuid, Element message, Date timestamp, String itemId)
 			throws RepositoryException {
-		try {
-			mamCollection.insertOne(new Document("node_id", nodeId).append("uuid", UUID.fromString(uuid))
-											.append("ts", timestamp)
-											.append("data", message.toString())
-											.append("item_id", itemId));
+		Document dto = new Document("node_id", nodeId).append("uuid", UUID.fromString(uuid))
+				.append("ts", timestamp)
+				.append("data", payloadFormat.encode(message))
+				.append("item_id", itemId);
+		if (bulkWriter != null) {
+			bulkWriter.submit(mamCollection, new InsertOneModel<>(dto));
+			return;
+		}
+		try (ClientSession session = readRouting.startWriteSession()) {
+			ReadRouting.insertOne(mamCollection, session, dto);
+			readRouting.afterWrite(nodeId, session);
 		} catch (MongoException ex) {
 			throw new RepositoryException("Could not insert MAM entry", ex);
 		}
@@ -557,7 +594,7 @@ public class PubSubDAOMongo
 	public void queryItems(ExtendedQueryImpl query, ObjectId nodeId,
 						   MAMRepository.ItemHandler<ExtendedQueryImpl, IPubSubRepository.Item> itemHandler)
 			throws RepositoryException {
-		try {
+		try (ClientSession session = readRouting.startReadSession(nodeId)) {
 			List<Bson> filters = new ArrayList<>();
 			filters.add(Filters.eq("node_id", nodeId));
 			if (!query.getIds().isEmpty()) {
@@ -565,13 +602,9 @@ public class PubSubDAOMongo
 						.stream()
 						.map(UUID::fromString)
 						.collect(Collectors.toList())));
-				FindIterable<Document> cursor = mamCollection.find(Filters.and(filters));
-				for (Document dto : cursor) {
-					UUID uuid = (UUID) dto.get("uuid");
-					Date ts = dto.getDate("ts");
-					Element itemEl = itemDataToElement(dto.getString("data"));
-
-					itemHandler.itemFound(query, new MAMItem(uuid.toString(),  ts, itemEl));
+				FindIterable<MAMItemRecord> cursor = ReadRouting.find(mamReadRecords, session, Filters.and(filters));
+				for (MAMItemRecord dto : cursor) {
+					itemHandler.itemFound(query, new MAMItem(dto.uuid.toString(), dto.ts, dto.data));
 				}
 			} else {
 				String timestampField = "ts";
@@ -583,33 +616,29 @@ public class PubSubDAOMongo
 				}
 
 				Bson filter = Filters.and(filters);
-				long count = mamCollection.countDocuments(filter);
+				long count = ReadRouting.countDocuments(mamReadCollection, session, filter);
 
 				Range range = MAMUtil.rangeFromPositions(
-						Optional.ofNullable(getMAMItemPosition(query.getAfterId(), filter))
+						Optional.ofNullable(getMAMItemPosition(session, query.getAfterId(), filter))
 								.map(Long::intValue)
-								.orElse(null), Optional.ofNullable(getMAMItemPosition(query.getBeforeId(), filter))
+								.orElse(null), Optional.ofNullable(getMAMItemPosition(session, query.getBeforeId(), filter))
 								.map(Long::intValue)
 								.orElse(null));
 				
-				Long after = getMAMItemPosition(query.getRsm().getAfter(), filter);
-				Long before = getMAMItemPosition(query.getRsm().getBefore(), filter);
+				Long after = getMAMItemPosition(session, query.getRsm().getAfter(), filter);
+				Long before = getMAMItemPosition(session, query.getRsm().getBefore(), filter);
 
 				MAMUtil.calculateOffsetAndPosition(query.getRsm(), (int) count,
 												   before == null ? null : before.intValue(),
 												   after == null ? null : after.intValue(), range);
 
 				Document order = new Document(timestampField, 1);
-				FindIterable<Document> cursor = mamCollection.find(filter)
+				FindIterable<MAMItemRecord> cursor = ReadRouting.find(mamReadRecords, session, filter)
 						.sort(order)
 						.skip(range.getLowerBound() + query.getRsm().getIndex())
 						.limit(Math.min(range.size(), query.getRsm().getMax()));
-				for (Document dto : cursor) {
-					UUID uuid = (UUID) dto.get("uuid");
-					Date ts = dto.getDate("ts");
-					Element itemEl = itemDataToElement(dto.getString("data"));
-
-					itemHandler.itemFound(query, new MAMItem(uuid.toString(),  ts, itemEl));
+				for (MAMItemRecord dto : cursor) {
+					itemHandler.itemFound(query, new MAMItem(dto.uuid.toString(), dto.ts, dto.data));
 				}
 			}
 		} catch (Exception ex) {
@@ -702,55 +731,48 @@ public class PubSubDAOMongo
 	public void setDataSource(MongoDataSource dataSource) {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, PUBSUB_SERVICE_JIDS)) {
-			db.createCollection(PUBSUB_SERVICE_JIDS);
-		}
-		serviceJidsCollection = db.getCollection(PUBSUB_SERVICE_JIDS);
-
-		indexCreateOrReplace(serviceJidsCollection, new Document("service_jid", 1), new IndexOptions().unique(true));
+		SchemaManifest manifest = new SchemaManifest();
+		// index was not unique in older versions, but creation of services relies on it
+		manifest.collection(PUBSUB_SERVICE_JIDS)
+				.replacedIndex(new Document("service_jid", 1), new IndexOptions().unique(true));
+		manifest.collection(PUBSUB_NODES)
+				.index(new Document("service_jid_id", 1).append("node_name_id", 1), new IndexOptions().unique(true))
+				.index(new Document("service_jid_id", 1).append("node_name_id", 1).append("collection", 1),
+				       new IndexOptions().unique(true))
+				.index(new Document("collection", 1));
+		manifest.collection(PUBSUB_AFFILIATIONS)
+				.index(new Document("node_id", 1))
+				.index(new Document("node_id", 1).append("jid_id", 1), new IndexOptions().unique(true));
+		manifest.collection(PUBSUB_SUBSCRIPTIONS)
+				.index(new Document("node_id", 1))
+				.index(new Document("node_id", 1).append("jid_id", 1), new IndexOptions().unique(true));
+		manifest.collection(PUBSUB_ITEMS)
+				.index(new Document("node_id", 1))
+				.index(new Document("node_id", 1).append("item_id", 1), new IndexOptions().unique(true))
+				.index(new Document("node_id", 1).append("creation_date", 1));
+		manifest.collection(PUBSUB_MAM);
+		dataSource.reconcileSchema(manifest);
 
-		if (!collectionExists(db, PUBSUB_NODES)) {
-			db.createCollection(PUBSUB_NODES);
-		}
+		serviceJidsCollection = db.getCollection(PUBSUB_SERVICE_JIDS);
 		nodesCollection = db.getCollection(PUBSUB_NODES);
-
-		nodesCollection.createIndex(new Document("service_jid_id", 1).append("node_name_id", 1),
-		                            new IndexOptions().unique(true));
-		nodesCollection.createIndex(new Document("service_jid_id", 1).append("node_name_id", 1).append("collection", 1),
-		                            new IndexOptions().unique(true));
-		nodesCollection.createIndex(new Document("collection", 1));
-
-		if (!collectionExists(db, PUBSUB_AFFILIATIONS)) {
-			db.createCollection(PUBSUB_AFFILIATIONS);
-		}
 		affiliationsCollection = db.getCollection(PUBSUB_AFFILIATIONS);
-
-		affiliationsCollection.createIndex(new Document("node_id", 1));
-		affiliationsCollection.createIndex(new Document("node_id", 1).append("jid_id", 1),
-		                                   new IndexOptions().unique(true));
-
-		if (!collectionExists(db, PUBSUB_SUBSCRIPTIONS)) {
-			db.createCollection(PUBSUB_SUBSCRIPTIONS);
-		}
 		subscriptionsCollection = db.getCollection(PUBSUB_SUBSCRIPTIONS);
-
-		subscriptionsCollection.createIndex(new Document("node_id", 1));
-		subscriptionsCollection.createIndex(new Document("node_id", 1).append("jid_id", 1),
-		                                    new IndexOptions().unique(true));
-
-		if (!collectionExists(db, PUBSUB_ITEMS)) {
-			db.createCollection(PUBSUB_ITEMS);
-		}
 		itemsCollecton = db.getCollection(PUBSUB_ITEMS);
-
-		itemsCollecton.createIndex(new Document("node_id", 1));
-		itemsCollecton.createIndex(new Document("node_id", 1).append("item_id", 1), new IndexOptions().unique(true));
-		itemsCollecton.createIndex(new Document("node_id", 1).append("creation_date", 1));
-
-		if (!collectionExists(db, PUBSUB_MAM)) {
-			db.createCollection(PUBSUB_MAM);
-		}
 		mamCollection = db.getCollection(PUBSUB_MAM);
+		payloadFormat = dataSource.getPayloadFormat();
+		dataSource.convertPayloads(itemsCollecton, "item");
+		dataSource.convertPayloads(mamCollection, "data");
+
+		readRouting = new ReadRouting(dataSource.getClient(), readPreference, readMaxStaleness, readConcern,
+		                              causalConsistency);
+		itemsReadCollection = readRouting.forReads(itemsCollecton);
+		itemsReadRecords = itemsReadCollection.withDocumentClass(ItemRecord.class);
+		mamReadCollection = readRouting.forReads(mamCollection);
+		mamReadRecords = mamReadCollection.withDocumentClass(MAMItemRecord.class);
+		bulkWriter = writeBehind ? dataSource.getBulkWriter() : null;
+		itemsReactiveCollection = MongoReactiveDataSource.getReactiveCollection(dataSource, PUBSUB_ITEMS, null);
+		itemsReactiveReadCollection = MongoReactiveDataSource.getReactiveCollection(dataSource, PUBSUB_ITEMS,
+		                                                                            ItemRecord.class, readRouting);
 	}
 
 	@Override
@@ -884,6 +906,13 @@ public class PubSubDAOMongo
 		return SchemaLoader.Result.ok;
 	}
 
+	Document createItemUpdate(String publisher, Element item, String uuid) {
+		Document dto = new Document("$set", new Document("update_date", new Date()).append("publisher", publisher)
+				.append("item", payloadFormat.encode(item)).append("uuid", uuid == null ? null : UUID.fromString(uuid)));
+		dto.append("$setOnInsert", new Document("creation_date", new Date()));
+		return dto;
+	}
+
 	@Override
 	public void writeItem(BareJID serviceJid, ObjectId nodeId, long timeInMilis, String id, String publisher,
 	                      Element item, String uuid) throws RepositoryException {
@@ -891,13 +920,39 @@ public class PubSubDAOMongo
 			byte[] serviceJidId = generateId(serviceJid);
 			Document crit = new Document("service_jid_id", serviceJidId).append("service_jid", serviceJid.toString());
 			crit.append("node_id", nodeId).append("item_id", id);
-			Document dto = new Document("$set", new Document("update_date", new Date()).append("publisher", publisher)
-					.append("item", item.toString()).append("uuid", uuid == null ? null : UUID.fromString(uuid)));
-			dto.append("$setOnInsert", new Document("creation_date", new Date()));
-			itemsCollecton.updateOne(crit, dto, new UpdateOptions().upsert(true));
+			Document dto = createItemUpdate(publisher, item, uuid);
+			try (ClientSession session = readRouting.startWriteSession()) {
+				ReadRouting.updateOne(itemsCollecton, session, crit, dto, new UpdateOptions().upsert(true));
+				readRouting.afterWrite(serviceJid, session);
+			}
 		} catch (MongoException ex) {
 			throw new RepositoryException("Could not write item to repository", ex);
 		}
 	}
 
+	/**
+	 * Asynchronous variant of {@link #writeItem(BareJID, ObjectId, long, String, String, Element, String)}. If
+	 * reactive data source is not used, it is executed synchronously (blocking the calling thread).
+	 */
+	public CompletableFuture<Void> writeItemAsync(BareJID serviceJid, ObjectId nodeId, long timeInMilis, String id,
+	                                              String publisher, Element item, String uuid) {
+		if (itemsReactiveCollection == null) {
+			return Publishers.blocking(() -> {
+				writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item, uuid);
+				return null;
+			});
+		}
+		try {
+			byte[] serviceJidId = generateId(serviceJid);
+			Document crit = new Document("service_jid_id", serviceJidId).append("service_jid", serviceJid.toString());
+			crit.append("node_id", nodeId).append("item_id", id);
+			Document dto = createItemUpdate(publisher, item, uuid);
+			return Publishers.completion(itemsReactiveCollection.updateOne(crit, dto, new UpdateOptions().upsert(true)));
+		} catch (Exception ex) {
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(new RepositoryException("Could not write item to repository", ex));
+			return future;
+		}
+	}
+
 }
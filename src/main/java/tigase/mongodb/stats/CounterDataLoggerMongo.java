@@ -17,22 +17,23 @@
  */
 package tigase.mongodb.stats;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertOneModel;
 import org.bson.Document;
 import tigase.annotations.TigaseDeprecated;
 import tigase.component.exceptions.RepositoryException;
 import tigase.db.Repository;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.mongodb.BulkWriter;
 import tigase.mongodb.MongoDataSource;
+import tigase.mongodb.SchemaManifest;
 import tigase.stats.db.CounterDataLoggerRepositoryIfc;
 
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static tigase.mongodb.Helper.collectionExists;
-
 /**
  * @author Wojciech Kapcia
  */
@@ -43,8 +44,11 @@ public class CounterDataLoggerMongo
 		implements CounterDataLoggerRepositoryIfc<MongoDataSource> {
 
 	private static final Logger log = Logger.getLogger(CounterDataLoggerMongo.class.getName());
+	private BulkWriter bulkWriter;
 	private MongoDatabase db;
 	private MongoCollection<Document> tigaseStatsLogCollection;
+	@ConfigField(desc = "Queue writes and execute them in bulk (queued writes may be lost on crash)", alias = "write-behind")
+	private boolean writeBehind = false;
 
 	@Override
 	public void addStatsLogEntry(String hostname, float cpu_usage, float mem_usage, long uptime, int vhosts,
@@ -77,7 +81,11 @@ public class CounterDataLoggerMongo
 					.append(S2S_CONNS_COL, s2s_conns)
 					.append(SM_CONNECTIONS_COL, sm_connections)
 					.append(SM_SESSIONS_COL, sm_sessions);
-			tigaseStatsLogCollection.insertOne(dto);
+			if (bulkWriter != null) {
+				bulkWriter.submit(tigaseStatsLogCollection, new InsertOneModel<>(dto));
+			} else {
+				tigaseStatsLogCollection.insertOne(dto);
+			}
 		} catch (Exception ex) {
 			log.log(Level.WARNING, "Problem setting element to DB: ", ex);
 		}
@@ -87,10 +95,11 @@ public class CounterDataLoggerMongo
 	public void setDataSource(MongoDataSource dataSource) throws RepositoryException {
 		db = dataSource.getDatabase();
 
-		if (!collectionExists(db, STATS_TABLE)) {
-			db.createCollection(STATS_TABLE);
-		}
+		SchemaManifest manifest = new SchemaManifest();
+		manifest.collection(STATS_TABLE).index(new Document("hostname", 1));
+		dataSource.reconcileSchema(manifest);
+
 		tigaseStatsLogCollection = db.getCollection(STATS_TABLE);
-		tigaseStatsLogCollection.createIndex(new BasicDBObject("hostname", 1));
+		bulkWriter = writeBehind ? dataSource.getBulkWriter() : null;
 	}
 }
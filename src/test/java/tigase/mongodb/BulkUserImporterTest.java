@@ -0,0 +1,154 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+import tigase.db.AuthRepository;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static tigase.db.AuthRepositoryImpl.ACCOUNT_STATUS_KEY;
+
+public class BulkUserImporterTest {
+
+	private static final List<String> MECHANISMS = Arrays.asList("SCRAM-SHA-1", "SCRAM-SHA-256");
+
+	private final BareJID jid = BareJID.bareJIDInstanceNS("user@example.com");
+
+	private static BulkUserImporter importer(boolean embeddedUserData) {
+		return new BulkUserImporter(null, null, null, null, embeddedUserData, null,
+		                            (user, password) -> Collections.singletonList(
+				                            new String[]{"SCRAM-SHA-1", "encoded-" + password}), MECHANISMS,
+		                            new LargeValues(null, 0, 6, 0), users -> {
+		}, null, 10);
+	}
+
+	private static BsonDocument render(Bson bson) {
+		return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+	}
+
+	private static BsonDocument update(WriteModel<Document> model) {
+		assertTrue(model instanceof UpdateOneModel);
+		UpdateOneModel<Document> update = (UpdateOneModel<Document>) model;
+		assertTrue(update.getOptions().isUpsert());
+		return render(update.getUpdate());
+	}
+
+	@Test
+	public void testCredentialsUpdate() {
+		BsonDocument update = render(BulkUserImporter.credentialsUpdate(
+				Collections.singletonList(new String[]{"SCRAM-SHA-1", "encoded"}), MECHANISMS,
+				AuthRepository.AccountStatus.active));
+
+		assertEquals(new BsonString("encoded"), update.getDocument("$set").get("SCRAM-SHA-1"));
+		assertEquals(1, update.getDocument("$set").size());
+		// mechanism not encoded for the new password is removed
+		assertTrue(update.getDocument("$unset").containsKey("SCRAM-SHA-256"));
+		assertEquals(1, update.getDocument("$unset").size());
+		// status of an existing account is kept
+		assertEquals(new BsonString("active"), update.getDocument("$setOnInsert").get(ACCOUNT_STATUS_KEY));
+		assertFalse(update.getDocument("$set").containsKey(ACCOUNT_STATUS_KEY));
+	}
+
+	@Test
+	public void testCountCreated() {
+		List<BareJID> jids = Arrays.asList(BareJID.bareJIDInstanceNS("user1@a.com"),
+		                                   BareJID.bareJIDInstanceNS("user2@a.com"),
+		                                   BareJID.bareJIDInstanceNS("user3@b.com"),
+		                                   BareJID.bareJIDInstanceNS("user4@a.com"));
+		// user2 already existed, so it was not upserted
+		Map<String, Long> created = BulkUserImporter.countCreated(
+				Arrays.asList(new BulkWriteUpsert(0, new BsonInt32(0)), new BulkWriteUpsert(2, new BsonInt32(2)),
+				              new BulkWriteUpsert(3, new BsonInt32(3))), jids);
+
+		assertEquals(2, created.size());
+		assertEquals(2L, (long) created.get("a.com"));
+		assertEquals(1L, (long) created.get("b.com"));
+	}
+
+	@Test
+	public void testExistingUserIsNotReplaced() {
+		BulkUserImporter.PreparedUser prepared = importer(false).prepare(
+				new BulkUserImporter.ImportedUser(jid, null));
+
+		BsonDocument update = update(prepared.user);
+		assertEquals(1, update.size());
+		BsonDocument setOnInsert = update.getDocument("$setOnInsert");
+		assertEquals(new BsonString(jid.toString()), setOnInsert.get(MongoRepository.ID_KEY));
+		assertEquals(new BsonString(jid.getDomain()), setOnInsert.get(MongoRepository.DOMAIN_KEY));
+		assertNull(prepared.credentials);
+		assertNull(prepared.data);
+		assertEquals(jid, prepared.jid);
+	}
+
+	@Test
+	public void testCredentialsArePrepared() {
+		BulkUserImporter.PreparedUser prepared = importer(false).prepare(
+				new BulkUserImporter.ImportedUser(jid, "secret"));
+
+		BsonDocument update = update(prepared.credentials);
+		assertEquals(new BsonString("encoded-secret"), update.getDocument("$set").get("SCRAM-SHA-1"));
+		assertTrue(update.getDocument("$unset").containsKey("SCRAM-SHA-256"));
+	}
+
+	@Test
+	public void testNodesDataIsPrepared() {
+		BulkUserImporter.PreparedUser prepared = importer(false).prepare(
+				new BulkUserImporter.ImportedUser(jid, null).setData(null, "key1", "value1")
+						.setData("roster", "contact@example.com", "item"));
+
+		assertEquals(2, prepared.data.size());
+		BsonDocument root = update(prepared.data.get(0)).getDocument("$set");
+		assertEquals(new BsonString("key1"), root.get("key"));
+		assertEquals(new BsonString("value1"), root.get("value"));
+		assertFalse(root.containsKey("node"));
+
+		BsonDocument roster = update(prepared.data.get(1)).getDocument("$set");
+		assertEquals(new BsonString("roster"), roster.get("node"));
+		assertEquals(new BsonString("contact@example.com"), roster.get("key"));
+		assertEquals(new BsonString("item"), roster.get("value"));
+	}
+
+	@Test
+	public void testEmbeddedDataIsPrepared() {
+		BulkUserImporter.PreparedUser prepared = importer(true).prepare(
+				new BulkUserImporter.ImportedUser(jid, null).setData(null, "key1", "value1")
+						.setData("roster", "contact", "item"));
+
+		// all data of the user is written by a single update without replacing other fields
+		assertEquals(1, prepared.data.size());
+		BsonDocument set = update(prepared.data.get(0)).getDocument("$set");
+		assertEquals(2, set.size());
+		assertEquals(new BsonString("value1"), set.get(EmbeddedUserDataStore.fieldName(null, "key1")));
+		assertEquals(new BsonString("item"), set.get(EmbeddedUserDataStore.fieldName("roster", "contact")));
+	}
+}
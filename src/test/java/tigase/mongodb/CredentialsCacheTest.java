@@ -0,0 +1,64 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.junit.Test;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CredentialsCacheTest {
+
+	private final BareJID user = BareJID.bareJIDInstanceNS("user@example.com");
+
+	@Test
+	public void testNegativeCaching() throws TigaseDBException {
+		CredentialsCache cache = new CredentialsCache(10, 30, 30);
+		AtomicInteger loads = new AtomicInteger();
+		CredentialsCache.Loader loader = () -> {
+			loads.incrementAndGet();
+			return null;
+		};
+
+		assertNull(cache.get(user, "default", loader));
+		assertNull(cache.get(user, "default", loader));
+		assertEquals(1, loads.get());
+
+		cache.invalidate(user);
+		assertNull(cache.get(user, "default", loader));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testNegativeCachingDisabled() throws TigaseDBException {
+		CredentialsCache cache = new CredentialsCache(10, 30, 0);
+		AtomicInteger loads = new AtomicInteger();
+		CredentialsCache.Loader loader = () -> {
+			loads.incrementAndGet();
+			return null;
+		};
+
+		cache.get(user, "default", loader);
+		cache.get(user, "default", loader);
+		assertEquals(2, loads.get());
+	}
+}
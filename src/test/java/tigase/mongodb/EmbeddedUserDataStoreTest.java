@@ -0,0 +1,52 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EmbeddedUserDataStoreTest {
+
+	@Test
+	public void testChildNodes() {
+		List<String> paths = Arrays.asList("/", "roster", "privacy/list1", "privacy/list2", "a/b/c");
+		assertEquals(Arrays.asList("roster", "privacy", "a"), EmbeddedUserDataStore.childNodes(paths, null));
+		assertEquals(Arrays.asList("list1", "list2"), EmbeddedUserDataStore.childNodes(paths, "privacy"));
+		assertEquals(Arrays.asList("b"), EmbeddedUserDataStore.childNodes(paths, "a"));
+		assertEquals(Arrays.asList(), EmbeddedUserDataStore.childNodes(paths, "roster"));
+	}
+
+	@Test
+	public void testEscape() {
+		assertEquals("storage:bookmarks", EmbeddedUserDataStore.escape("storage:bookmarks"));
+		assertEquals("my%2Elist%24%25", EmbeddedUserDataStore.escape("my.list$%"));
+		for (String name : new String[]{"my.list$%", "%2E", "%252E", "a%.b"}) {
+			assertEquals(name, EmbeddedUserDataStore.unescape(EmbeddedUserDataStore.escape(name)));
+		}
+	}
+
+	@Test
+	public void testFieldName() {
+		assertEquals("nodes./.roster", EmbeddedUserDataStore.fieldName(null, "roster"));
+		assertEquals("nodes.privacy/a%2Eb.list", EmbeddedUserDataStore.fieldName("privacy/a.b", "list"));
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JidIdCodecTest {
+
+	private static byte[] sha256(String in) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(in.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testCalculateHash() throws Exception {
+		for (String in : new String[]{"example.com", "TeSt@Example.com", "zażółć@example.com", ""}) {
+			assertArrayEquals(sha256(in), JidIdCodec.calculateHash(in));
+		}
+	}
+
+	@Test
+	public void testGenerateId() throws Exception {
+		for (String in : new String[]{"TeSt1@example.com", "user@EXAMPLE.com", "ŻÓŁW@example.com"}) {
+			BareJID jid = BareJID.bareJIDInstanceNS(in);
+			assertArrayEquals(sha256(jid.toString().toLowerCase()), JidIdCodec.generateId(jid));
+			assertArrayEquals(sha256(in.toLowerCase()), JidIdCodec.generateId(in));
+		}
+	}
+
+	@Test
+	public void testGenerateIdCached() {
+		BareJID jid = BareJID.bareJIDInstanceNS("cached-" + System.nanoTime() + "@example.com");
+		long hits = JidIdCodec.getCacheHits();
+		byte[] first = JidIdCodec.generateId(jid);
+		assertSame(first, JidIdCodec.generateId(jid));
+		assertTrue(JidIdCodec.getCacheHits() > hits);
+	}
+}
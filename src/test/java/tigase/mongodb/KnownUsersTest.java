@@ -0,0 +1,57 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KnownUsersTest {
+
+	@Test
+	public void testAddAndRemove() {
+		KnownUsers knownUsers = new KnownUsers(100000);
+		for (int i = 0; i < 10000; i++) {
+			knownUsers.add(JidIdCodec.calculateHash("user" + i + "@example.com"));
+		}
+		assertEquals(10000, knownUsers.size());
+		for (int i = 0; i < 10000; i += 2) {
+			knownUsers.remove(JidIdCodec.calculateHash("user" + i + "@example.com"));
+		}
+		assertEquals(5000, knownUsers.size());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i % 2 == 1, knownUsers.contains(JidIdCodec.calculateHash("user" + i + "@example.com")));
+		}
+		assertFalse(knownUsers.contains(JidIdCodec.calculateHash("other@example.com")));
+	}
+
+	@Test
+	public void testMaxSize() {
+		KnownUsers knownUsers = new KnownUsers(64 * 16);
+		for (int i = 0; i < 100000; i++) {
+			knownUsers.add(JidIdCodec.calculateHash("user" + i + "@example.com"));
+		}
+		assertTrue(knownUsers.size() <= 64 * 16);
+	}
+
+	@Test
+	public void testPrefix() {
+		assertEquals(0x0102030405060708L, KnownUsers.prefix(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9}));
+		assertEquals(1, KnownUsers.prefix(new byte[8]));
+	}
+}
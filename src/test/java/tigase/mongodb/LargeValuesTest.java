@@ -0,0 +1,70 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LargeValuesTest {
+
+	private final LargeValues largeValues = new LargeValues(null, 64, 6, 0);
+
+	@Test
+	public void testCompression() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			sb.append("<item jid='contact").append(i).append("@example.com'/>");
+		}
+		String value = sb.toString();
+
+		Object encoded = largeValues.encode(new byte[]{1}, "roster", "items", value);
+		assertTrue(encoded instanceof Binary);
+		assertEquals(value, largeValues.decode(encoded));
+	}
+
+	@Test
+	public void testDecodeAll() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append("value");
+		}
+		Map<String, Object> values = new HashMap<>();
+		values.put("small", largeValues.encode(new byte[]{1}, null, "small", "value"));
+		values.put("large", largeValues.encode(new byte[]{1}, null, "large", sb.toString()));
+		values.put("list", Arrays.asList("a", "b"));
+
+		Map<String, String> decoded = largeValues.decodeAll(values);
+		assertEquals("value", decoded.get("small"));
+		assertEquals(sb.toString(), decoded.get("large"));
+		assertTrue(decoded.containsKey("list"));
+		assertNull(decoded.get("list"));
+	}
+
+	@Test
+	public void testSmallValue() {
+		assertEquals("value", largeValues.encode(new byte[]{1}, null, "key", "value"));
+		assertNull(largeValues.encode(new byte[]{1}, null, "key", null));
+		assertNull(largeValues.decode(null));
+	}
+}
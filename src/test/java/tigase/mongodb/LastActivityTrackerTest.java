@@ -0,0 +1,108 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class LastActivityTrackerTest {
+
+	private static final byte[] UID_1 = JidIdCodec.calculateHash("user1@example.com");
+	private static final byte[] UID_2 = JidIdCodec.calculateHash("user2@example.com");
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	private final CapturingBulkWriter writer = new CapturingBulkWriter(scheduler);
+	private final LastActivityTracker tracker = new LastActivityTracker(null, writer);
+
+	private static BsonDocument render(Bson bson) {
+		return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void testLatestTimeIsWritten() {
+		tracker.record(UID_1, 2000);
+		tracker.record(UID_1, 1000);
+		tracker.record(UID_1, 1500);
+		tracker.flush();
+
+		assertEquals(1, writer.writes.size());
+		UpdateOneModel<Document> update = (UpdateOneModel<Document>) writer.writes.get(0);
+		assertEquals(new BsonBinary(UID_1), render(update.getFilter()).get("_id"));
+		BsonDocument max = render(update.getUpdate()).getDocument("$max");
+		assertEquals(2000, max.getDateTime(LastActivityTracker.LAST_ACTIVITY_KEY).getValue());
+	}
+
+	@Test
+	public void testSingleWritePerUser() {
+		// copies of the same id are merged
+		tracker.record(UID_1.clone(), 1000);
+		tracker.record(UID_1.clone(), 3000);
+		tracker.record(UID_2, 2000);
+		tracker.flush();
+
+		assertEquals(2, writer.writes.size());
+	}
+
+	@Test
+	public void testFlushedTimesAreNotWrittenAgain() {
+		tracker.record(UID_1, 1000);
+		tracker.flush();
+		tracker.flush();
+		assertEquals(1, writer.writes.size());
+
+		tracker.record(UID_1, 2000);
+		tracker.flush();
+		assertEquals(2, writer.writes.size());
+	}
+
+	private static class CapturingBulkWriter
+			extends BulkWriter {
+
+		private final List<WriteModel<Document>> writes = new ArrayList<>();
+
+		CapturingBulkWriter(ScheduledExecutorService scheduler) {
+			super(scheduler, 10, 60000, 10, WriteConcern.ACKNOWLEDGED);
+		}
+
+		@Override
+		public void submit(MongoCollection<Document> collection, WriteModel<Document> write) {
+			writes.add(write);
+		}
+	}
+}
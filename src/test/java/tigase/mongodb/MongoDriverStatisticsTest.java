@@ -0,0 +1,83 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import org.junit.Test;
+import tigase.stats.StatisticsList;
+
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+
+public class MongoDriverStatisticsTest {
+
+	@Test
+	public void testHistogram() {
+		MongoDriverStatistics.Histogram histogram = new MongoDriverStatistics.Histogram();
+		assertEquals(0, histogram.getPercentile(99));
+		for (int i = 0; i < 98; i++) {
+			histogram.record(100);
+		}
+		histogram.record(5000);
+		histogram.record(70000);
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(127, histogram.getPercentile(50));
+		assertEquals(8191, histogram.getPercentile(99));
+		assertEquals(131071, histogram.getPercentile(100));
+		assertEquals((98 * 100 + 5000 + 70000) / 100f, histogram.getAverage(), 0.01f);
+	}
+
+	@Test
+	public void testCheckOutCompletedByOtherThread() throws InterruptedException {
+		MongoDriverStatistics statistics = new MongoDriverStatistics(false);
+		ServerId serverId = new ServerId(new ClusterId(), new ServerAddress("localhost"));
+
+		Thread thread = new Thread(
+				() -> statistics.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(serverId)));
+		thread.start();
+		thread.join();
+		statistics.connectionCheckedOut(new ConnectionCheckedOutEvent(new ConnectionId(serverId)));
+
+		assertEquals(1, statistics.getCheckOutWait().getCount());
+	}
+
+	@Test
+	public void testPeakCheckedOutNotResetByStatistics() {
+		MongoDriverStatistics statistics = new MongoDriverStatistics(false);
+		ServerId serverId = new ServerId(new ClusterId(), new ServerAddress("localhost"));
+		ConnectionId connectionId = new ConnectionId(serverId);
+
+		for (int i = 0; i < 2; i++) {
+			statistics.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(serverId));
+			statistics.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId));
+		}
+		statistics.connectionCheckedIn(new ConnectionCheckedInEvent(connectionId));
+		statistics.connectionCheckedIn(new ConnectionCheckedInEvent(connectionId));
+
+		statistics.getStatistics("test", new StatisticsList(Level.FINE));
+		assertEquals(2, statistics.getPeakCheckedOut());
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import tigase.xml.Element;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class MongoMsgRepositoryDeliveryTest {
+
+	private static final byte[] TO_HASH = JidIdCodec.calculateHash("user@example.com");
+
+	@Test
+	public void testDeliveredInBatches() {
+		InMemoryMsgRepository repo = new InMemoryMsgRepository(250, 0);
+		List<Integer> batches = new ArrayList<>();
+		List<String> delivered = new ArrayList<>();
+
+		long count = repo.deliverMessagesToJID(TO_HASH, null, batch -> {
+			batches.add(batch.size());
+			batch.forEach(msg -> delivered.add(msg.getAttributeStaticStr("id")));
+			return true;
+		});
+
+		assertEquals(250, count);
+		assertEquals(Arrays.asList(100, 100, 50), batches);
+		assertEquals("0", delivered.get(0));
+		assertEquals("249", delivered.get(249));
+		assertTrue(repo.stored.isEmpty());
+		assertEquals(1, repo.drained);
+	}
+
+	@Test
+	public void testUnconfirmedBatchIsNotRemoved() {
+		InMemoryMsgRepository repo = new InMemoryMsgRepository(250, 0);
+		List<Integer> batches = new ArrayList<>();
+
+		long count = repo.deliverMessagesToJID(TO_HASH, null, batch -> {
+			batches.add(batch.size());
+			return batches.size() < 2;
+		});
+
+		assertEquals(100, count);
+		assertEquals(Arrays.asList(100, 100), batches);
+		assertEquals(150, repo.stored.size());
+		assertEquals("100", repo.stored.get(0).message.getAttributeStaticStr("id"));
+		assertEquals(0, repo.drained);
+	}
+
+	@Test
+	public void testExpiredMessagesAreRemovedWithoutDelivery() {
+		InMemoryMsgRepository repo = new InMemoryMsgRepository(5, 2);
+		List<Queue<Element>> batches = new ArrayList<>();
+
+		long count = repo.deliverMessagesToJID(TO_HASH, null, batch -> {
+			batches.add(batch);
+			return true;
+		});
+
+		assertEquals(3, count);
+		assertEquals(1, batches.size());
+		assertEquals(Arrays.asList("2", "3", "4"),
+		             batches.get(0).stream().map(msg -> msg.getAttributeStaticStr("id")).collect(Collectors.toList()));
+		assertTrue(repo.stored.isEmpty());
+	}
+
+	@Test
+	public void testOnlyExpiredMessages() {
+		InMemoryMsgRepository repo = new InMemoryMsgRepository(3, 3);
+
+		long count = repo.deliverMessagesToJID(TO_HASH, null, batch -> {
+			fail("No messages should be delivered");
+			return true;
+		});
+
+		assertEquals(0, count);
+		assertTrue(repo.stored.isEmpty());
+	}
+
+	private static class InMemoryMsgRepository
+			extends MongoMsgRepository {
+
+		private final List<OfflineMessageRecord> stored = new ArrayList<>();
+		private int drained = 0;
+
+		InMemoryMsgRepository(int messages, int expired) {
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < messages; i++) {
+				OfflineMessageRecord record = new OfflineMessageRecord();
+				record.id = new ObjectId();
+				record.toHash = TO_HASH;
+				record.ts = new Date(now - messages + i);
+				record.message = new Element("message", new String[]{"id"}, new String[]{String.valueOf(i)});
+				if (i < expired) {
+					record.expireAt = new Date(now - 1000);
+				}
+				stored.add(record);
+			}
+		}
+
+		@Override
+		int deleteLoaded(List<OfflineMessageRecord> records) {
+			Set<ObjectId> ids = records.stream().map(it -> it.id).collect(Collectors.toSet());
+			int before = stored.size();
+			stored.removeIf(it -> ids.contains(it.id));
+			return before - stored.size();
+		}
+
+		@Override
+		void inboxDrained(byte[] toHash) {
+			assertArrayEquals(TO_HASH, toHash);
+			drained++;
+		}
+
+		@Override
+		List<OfflineMessageRecord> loadOldestMessages(byte[] toHash, int limit) {
+			return new ArrayList<>(stored.subList(0, Math.min(limit, stored.size())));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class NodePathsTest {
+
+	@Test
+	public void testDepth() {
+		assertEquals(0, NodePaths.depth(null));
+		assertEquals(1, NodePaths.depth("roster"));
+		assertEquals(3, NodePaths.depth("a/b/c"));
+	}
+
+	@Test
+	public void testName() {
+		assertEquals("roster", NodePaths.name("roster"));
+		assertEquals("c", NodePaths.name("a/b/c"));
+	}
+
+	@Test
+	public void testOf() {
+		assertEquals(Collections.emptyList(), NodePaths.of(null));
+		assertEquals(Arrays.asList("roster"), NodePaths.of("roster"));
+		assertEquals(Arrays.asList("a", "a/b", "a/b/c"), NodePaths.of("a/b/c"));
+	}
+}
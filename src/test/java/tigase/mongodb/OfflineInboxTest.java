@@ -0,0 +1,120 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OfflineInboxTest {
+
+	private static final byte[] FROM_1 = JidIdCodec.calculateHash("sender1@example.com");
+	private static final byte[] FROM_2 = JidIdCodec.calculateHash("sender2@example.com");
+	private static final byte[] TO_1 = JidIdCodec.calculateHash("recipient1@example.com");
+	private static final byte[] TO_2 = JidIdCodec.calculateHash("recipient2@example.com");
+
+	private static BsonDocument render(Bson bson) {
+		return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+	}
+
+	private static BsonValue findValue(BsonDocument filter, String field) {
+		if (filter.containsKey(field)) {
+			return filter.get(field);
+		}
+		for (BsonValue condition : filter.getArray("$and")) {
+			if (condition.asDocument().containsKey(field)) {
+				return condition.asDocument().get(field);
+			}
+		}
+		return null;
+	}
+
+	private static OfflineMessageRecord record(byte[] toHash, byte[] fromHash, String msgType) {
+		OfflineMessageRecord record = new OfflineMessageRecord();
+		record.toHash = toHash;
+		record.fromHash = fromHash;
+		record.msgType = msgType;
+		return record;
+	}
+
+	@Test
+	public void testSenderKey() {
+		String key = OfflineInbox.senderKey(FROM_1);
+		assertEquals(key, OfflineInbox.senderKey(Arrays.copyOf(FROM_1, FROM_1.length)));
+		assertNotEquals(key, OfflineInbox.senderKey(FROM_2));
+		// key is used as a field name, so it may not contain '.', '$' or padding
+		assertTrue(key.matches("[A-Za-z0-9_-]+"));
+	}
+
+	@Test
+	public void testReserveFilter() {
+		BsonDocument filter = render(OfflineInbox.reserveFilter(TO_1, FROM_1, 10));
+		String senderField = OfflineInbox.SENDERS_KEY + "." + OfflineInbox.senderKey(FROM_1);
+
+		assertEquals(new BsonBinary(TO_1), findValue(filter, "_id"));
+		BsonDocument limit = findValue(filter, senderField).asDocument();
+		assertEquals(10, limit.getDocument("$not").getNumber("$gte").longValue());
+	}
+
+	@Test
+	public void testReserveUpdate() {
+		BsonDocument update = render(OfflineInbox.reserveUpdate(FROM_1, "chat", -1)).getDocument("$inc");
+
+		assertEquals(3, update.size());
+		assertEquals(-1, update.getNumber(OfflineInbox.TOTAL_KEY).longValue());
+		assertEquals(-1,
+		             update.getNumber(OfflineInbox.SENDERS_KEY + "." + OfflineInbox.senderKey(FROM_1)).longValue());
+		assertEquals(-1, update.getNumber(OfflineInbox.TYPES_KEY + ".chat").longValue());
+	}
+
+	@Test
+	public void testDecrements() {
+		Map<ByteBuffer, Document> decrements = OfflineInbox.decrements(
+				Arrays.asList(record(TO_1, FROM_1, "chat"), record(TO_1, FROM_1, "chat"),
+				              record(TO_1, FROM_2, "normal"), record(TO_2, FROM_2, null), record(null, FROM_1, "chat")));
+
+		assertEquals(2, decrements.size());
+
+		Document inc = decrements.get(ByteBuffer.wrap(TO_1));
+		assertEquals(-3L, inc.get(OfflineInbox.TOTAL_KEY));
+		assertEquals(-2L, inc.get(OfflineInbox.SENDERS_KEY + "." + OfflineInbox.senderKey(FROM_1)));
+		assertEquals(-1L, inc.get(OfflineInbox.SENDERS_KEY + "." + OfflineInbox.senderKey(FROM_2)));
+		assertEquals(-2L, inc.get(OfflineInbox.TYPES_KEY + ".chat"));
+		assertEquals(-1L, inc.get(OfflineInbox.TYPES_KEY + ".normal"));
+
+		inc = decrements.get(ByteBuffer.wrap(TO_2));
+		assertEquals(-1L, inc.get(OfflineInbox.TOTAL_KEY));
+		assertEquals(2, inc.size());
+	}
+
+	@Test
+	public void testDecrementsOfNoRecords() {
+		assertTrue(OfflineInbox.decrements(Collections.emptyList()).isEmpty());
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class PayloadFormatTest {
+
+	private final PayloadFormat format = new PayloadFormat(true, 16, Deflater.DEFAULT_COMPRESSION);
+
+	@Test
+	public void testCompression() {
+		StringBuilder sb = new StringBuilder("<message><body>");
+		for (int i = 0; i < 100; i++) {
+			sb.append("zażółć gęślą jaźń ");
+		}
+		String payload = sb.append("</body></message>").toString();
+
+		Object encoded = format.encode(payload);
+		assertTrue(encoded instanceof Binary);
+		assertEquals(PayloadFormat.FORMAT_DEFLATE, ((Binary) encoded).getData()[0]);
+		assertTrue(((Binary) encoded).getData().length < payload.length());
+		assertEquals(payload, PayloadFormat.toString(encoded));
+	}
+
+	@Test
+	public void testPlainPayloads() {
+		assertEquals("<a/>", format.encode("<a/>"));
+		assertEquals("<message/>", PayloadFormat.PLAIN.encode("<message/>"));
+		assertEquals("<message/>", PayloadFormat.toString("<message/>"));
+		assertNull(PayloadFormat.toString(null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedFormat() {
+		PayloadFormat.toString(new Binary(new byte[]{7, 0, 0, 0, 1, 0}));
+	}
+}
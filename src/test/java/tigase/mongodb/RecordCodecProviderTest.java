@@ -0,0 +1,116 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import tigase.xml.Element;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class RecordCodecProviderTest {
+
+	private final CodecRegistry registry = CodecRegistries.fromRegistries(
+			CodecRegistries.fromProviders(new RecordCodecProvider()), MongoClientSettings.getDefaultCodecRegistry());
+
+	@Test
+	public void testDecodeOfflineMessage() {
+		ObjectId id = new ObjectId();
+		Date ts = new Date();
+		Document dto = new Document("_id", id).append("from_hash", new byte[]{1, 2})
+				.append("to_hash", new byte[]{3, 4})
+				.append("from", "sender@example.com")
+				.append("to", "recipient@example.com")
+				.append("expire-at", null)
+				.append("ts", ts)
+				.append("unknown", new Document("nested", 1))
+				.append("msg_type", "message")
+				.append("message", "<message><body>zażółć gęślą jaźń</body></message>");
+
+		OfflineMessageRecord record = decode(registry.get(OfflineMessageRecord.class),
+		                                     encode(registry.get(Document.class), dto));
+		assertEquals(id, record.id);
+		assertArrayEquals(new byte[]{1, 2}, record.fromHash);
+		assertArrayEquals(new byte[]{3, 4}, record.toHash);
+		assertEquals("sender@example.com", record.from);
+		assertEquals("recipient@example.com", record.to);
+		assertNull(record.expireAt);
+		assertEquals(ts, record.ts);
+		assertEquals("message", record.msgType);
+		assertEquals("message", record.message.getName());
+		assertEquals("zażółć gęślą jaźń", record.message.getChildCData(new String[]{"message", "body"}));
+	}
+
+	@Test
+	public void testEncodeOfflineMessage() {
+		OfflineMessageRecord record = new OfflineMessageRecord();
+		record.fromHash = new byte[]{1};
+		record.toHash = new byte[]{2};
+		record.from = "sender@example.com";
+		record.to = "recipient@example.com";
+		record.ts = new Date();
+		record.msgType = "message";
+		record.message = new Element("message");
+
+		Document dto = decode(registry.get(Document.class), encode(registry.get(OfflineMessageRecord.class), record));
+		assertFalse(dto.containsKey("_id"));
+		assertFalse(dto.containsKey("expire-at"));
+		assertEquals(record.to, dto.getString("to"));
+		assertEquals(record.ts, dto.getDate("ts"));
+		assertEquals("<message/>", dto.getString("message"));
+	}
+
+	@Test
+	public void testCompressedPayload() {
+		CodecRegistry compressingRegistry = CodecRegistries.fromRegistries(
+				CodecRegistries.fromProviders(new RecordCodecProvider(new PayloadFormat(true, 0, 6))),
+				MongoClientSettings.getDefaultCodecRegistry());
+		Codec<OfflineMessageRecord> codec = compressingRegistry.get(OfflineMessageRecord.class);
+		OfflineMessageRecord record = new OfflineMessageRecord();
+		record.message = new Element("message", new Element[]{new Element("body", "zażółć gęślą jaźń")},
+		                             new String[]{"to"}, new String[]{"recipient@example.com"});
+
+		byte[] data = encode(codec, record);
+		assertTrue(decode(registry.get(Document.class), data).get("message") instanceof Binary);
+		assertEquals(record.message.toString(), decode(codec, data).message.toString());
+	}
+
+	private static <T> byte[] encode(Codec<T> codec, T value) {
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		codec.encode(new BsonBinaryWriter(buffer), value, EncoderContext.builder().build());
+		return buffer.toByteArray();
+	}
+
+	private static <T> T decode(Codec<T> codec, byte[] data) {
+		return codec.decode(new BsonBinaryReader(ByteBuffer.wrap(data)), DecoderContext.builder().build());
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.junit.Test;
+import tigase.db.TigaseDBException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UserDataCacheTest {
+
+	private static final byte[] UID_1 = JidIdCodec.calculateHash("user1@example.com");
+	private static final byte[] UID_2 = JidIdCodec.calculateHash("user2@example.com");
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private static ChangeStreamDocument<Document> change(String operationType, byte[] documentKey,
+	                                                     byte[] fullDocumentUid, byte[] beforeChangeUid) {
+		BsonDocument doc = new BsonDocument("_id", new BsonDocument("_data", new BsonString("token"))).append(
+				"operationType", new BsonString(operationType));
+		doc.append("documentKey", new BsonDocument("_id", new BsonBinary(documentKey)));
+		if (fullDocumentUid != null) {
+			doc.append("fullDocument", new BsonDocument("uid", new BsonBinary(fullDocumentUid)));
+		}
+		if (beforeChangeUid != null) {
+			doc.append("fullDocumentBeforeChange", new BsonDocument("uid", new BsonBinary(beforeChangeUid)));
+		}
+		return ChangeStreamDocument.createCodec(Document.class, MongoClientSettings.getDefaultCodecRegistry())
+				.decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+	}
+
+	private static UserDataCache enabledCache(String... excludedSubnodes) {
+		UserDataCache cache = new UserDataCache(100, excludedSubnodes);
+		cache.enable();
+		return cache;
+	}
+
+	private String get(UserDataCache cache, byte[] uid, String subnode, String key) throws TigaseDBException {
+		return cache.get(uid, UserDataCache.DATA, subnode, key, () -> {
+			loads.incrementAndGet();
+			return key == null ? null : "value-" + key;
+		});
+	}
+
+	@Test
+	public void testNotCachedBeforeEnabled() throws TigaseDBException {
+		UserDataCache cache = new UserDataCache(100, null);
+		get(cache, UID_1, null, "key");
+		get(cache, UID_1, null, "key");
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testCachedUntilInvalidated() throws TigaseDBException {
+		UserDataCache cache = enabledCache();
+		assertEquals("value-key", get(cache, UID_1, "roster", "key"));
+		assertEquals("value-key", get(cache, UID_1, "roster", "key"));
+		get(cache, UID_2, "roster", "key");
+		assertEquals(2, loads.get());
+
+		cache.invalidate(UID_1);
+		get(cache, UID_1, "roster", "key");
+		get(cache, UID_2, "roster", "key");
+		assertEquals(3, loads.get());
+
+		cache.invalidateAll();
+		get(cache, UID_1, "roster", "key");
+		get(cache, UID_2, "roster", "key");
+		assertEquals(5, loads.get());
+	}
+
+	@Test
+	public void testNullValueIsCached() throws TigaseDBException {
+		UserDataCache cache = enabledCache();
+		assertNull(get(cache, UID_1, null, null));
+		assertNull(get(cache, UID_1, null, null));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testExcludedSubnodes() throws TigaseDBException {
+		UserDataCache cache = enabledCache("privacy", "/");
+		for (String subnode : new String[]{null, "privacy", "privacy/list"}) {
+			get(cache, UID_1, subnode, "key");
+			get(cache, UID_1, subnode, "key");
+		}
+		assertEquals(6, loads.get());
+
+		get(cache, UID_1, "privacy-other", "key");
+		get(cache, UID_1, "privacy-other", "key");
+		assertEquals(7, loads.get());
+	}
+
+	@Test
+	public void testChangeOfNodeInvalidatesUser() throws TigaseDBException {
+		UserDataCache cache = enabledCache();
+		get(cache, UID_1, null, "key");
+		get(cache, UID_2, null, "key");
+
+		cache.handleChange(change("update", new byte[]{1}, UID_1, null), false);
+		get(cache, UID_1, null, "key");
+		get(cache, UID_2, null, "key");
+		assertEquals(3, loads.get());
+	}
+
+	@Test
+	public void testRemovalOfNodeWithPreImageInvalidatesUser() throws TigaseDBException {
+		UserDataCache cache = enabledCache();
+		get(cache, UID_1, null, "key");
+		get(cache, UID_2, null, "key");
+
+		cache.handleChange(change("delete", new byte[]{1}, null, UID_1), false);
+		get(cache, UID_1, null, "key");
+		get(cache, UID_2, null, "key");
+		assertEquals(3, loads.get());
+	}
+
+	@Test
+	public void testRemovalOfNodeWithoutPreImageInvalidatesAll() throws TigaseDBException {
+		UserDataCache cache = enabledCache();
+		get(cache, UID_1, null, "key");
+		get(cache, UID_2, null, "key");
+
+		cache.handleChange(change("delete", new byte[]{1}, null, null), false);
+		get(cache, UID_1, null, "key");
+		get(cache, UID_2, null, "key");
+		assertEquals(4, loads.get());
+	}
+
+	@Test
+	public void testChangeOfEmbeddedDataInvalidatesUser() throws TigaseDBException {
+		UserDataCache cache = enabledCache();
+		get(cache, UID_1, null, "key");
+		get(cache, UID_2, null, "key");
+
+		cache.handleChange(change("delete", UID_2, null, null), true);
+		get(cache, UID_1, null, "key");
+		get(cache, UID_2, null, "key");
+		assertEquals(3, loads.get());
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UsersCounterTest {
+
+	@Test
+	public void testSum() {
+		assertEquals(0, UsersCounter.sum(Collections.emptyList()));
+		assertEquals(7, UsersCounter.sum(Arrays.asList(new Document("_id", "a.com").append(UsersCounter.COUNT_KEY, 3),
+		                                               new Document("_id", "b.com").append(UsersCounter.COUNT_KEY, 4L),
+		                                               new Document("_id", "c.com"))));
+	}
+
+	@Test
+	public void testCreateReplacements() {
+		List<Document> counts = Arrays.asList(new Document("_id", "a.com").append(UsersCounter.COUNT_KEY, 3L),
+		                                      new Document("_id", "b.com").append(UsersCounter.COUNT_KEY, 1L));
+		List<Object> domains = new ArrayList<>();
+
+		List<WriteModel<Document>> updates = UsersCounter.createReplacements(counts, domains);
+
+		assertEquals(Arrays.asList("a.com", "b.com"), domains);
+		assertEquals(2, updates.size());
+		for (int i = 0; i < counts.size(); i++) {
+			ReplaceOneModel<Document> replace = (ReplaceOneModel<Document>) updates.get(i);
+			assertTrue(replace.getReplaceOptions().isUpsert());
+			assertSame(counts.get(i), replace.getReplacement());
+			BsonDocument filter = replace.getFilter()
+					.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+			assertEquals(new BsonString((String) domains.get(i)), filter.get("_id"));
+		}
+	}
+
+	@Test
+	public void testCreateReplacementsWithoutUsers() {
+		List<Object> domains = new ArrayList<>();
+		assertTrue(UsersCounter.createReplacements(Collections.emptyList(), domains).isEmpty());
+		assertTrue(domains.isEmpty());
+	}
+}
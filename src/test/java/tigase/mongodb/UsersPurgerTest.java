@@ -0,0 +1,138 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.junit.After;
+import org.junit.Test;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class UsersPurgerTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	private static Iterator<BareJID> users(int count) {
+		List<BareJID> users = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			users.add(BareJID.bareJIDInstanceNS("user" + i + "@example.com"));
+		}
+		return users.iterator();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testRemovedInChunks() throws TigaseDBException {
+		Queue<Integer> chunks = new ConcurrentLinkedQueue<>();
+		Set<BareJID> removed = Collections.synchronizedSet(new HashSet<>());
+		Queue<Long> progress = new ConcurrentLinkedQueue<>();
+		UsersPurger purger = new TestUsersPurger(executor, 2, 1000, 0, chunk -> {
+			chunks.add(chunk.size());
+			removed.addAll(chunk);
+			return (long) chunk.size();
+		});
+
+		assertEquals(2500, purger.purge(users(2500), null, progress::add));
+
+		List<Integer> sizes = new ArrayList<>(chunks);
+		Collections.sort(sizes);
+		assertEquals(Arrays.asList(500, 1000, 1000), sizes);
+		assertEquals(2500, removed.size());
+		assertEquals(3, progress.size());
+		assertEquals(2500L, (long) Collections.max(progress));
+	}
+
+	@Test
+	public void testParallelismLimit() throws TigaseDBException {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		UsersPurger purger = new TestUsersPurger(executor, 2, 10, 0, chunk -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			return (long) chunk.size();
+		});
+
+		assertEquals(100, purger.purge(users(100), null, null));
+		assertTrue(maxRunning.get() <= 2);
+	}
+
+	@Test
+	public void testFailureOfChunkStopsPurge() {
+		AtomicInteger chunks = new AtomicInteger();
+		UsersPurger purger = new TestUsersPurger(executor, 1, 10, 0, chunk -> {
+			if (chunks.incrementAndGet() == 2) {
+				throw new IllegalStateException("failed");
+			}
+			return (long) chunk.size();
+		});
+
+		try {
+			purger.purge(users(1000), null, null);
+			fail("Purge should fail");
+		} catch (TigaseDBException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+		assertTrue(chunks.get() < 100);
+	}
+
+	@Test
+	public void testRateLimit() throws TigaseDBException {
+		UsersPurger purger = new TestUsersPurger(executor, 4, 50, 1000, chunk -> (long) chunk.size());
+
+		long start = System.nanoTime();
+		assertEquals(200, purger.purge(users(200), null, null));
+		// first chunk is not delayed, each next one waits for 50ms
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+	}
+
+	private static class TestUsersPurger
+			extends UsersPurger {
+
+		private final Function<List<BareJID>, Long> remover;
+
+		TestUsersPurger(ExecutorService executor, int parallelism, int chunkSize, long rateLimit,
+		                Function<List<BareJID>, Long> remover) {
+			super(null, Collections.emptyList(), null, null, chunk -> {
+			}, executor, parallelism, chunkSize, rateLimit);
+			this.remover = remover;
+		}
+
+		@Override
+		long remove(List<BareJID> chunk) {
+			return remover.apply(chunk);
+		}
+	}
+}
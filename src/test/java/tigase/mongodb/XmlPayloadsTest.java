@@ -0,0 +1,36 @@
+/*
+ * Tigase MongoDB - Tigase MongoDB support library
+ * Copyright (C) 2014 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.mongodb;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class XmlPayloadsTest {
+
+	@Test
+	public void testParseElementAfterInvalidPayload() {
+		assertNull(XmlPayloads.parseElement("<message><body>not closed"));
+
+		Element msg = XmlPayloads.parseElement("<message to='test@example.com'><body>test</body></message>");
+		assertEquals("test@example.com", msg.getAttributeStaticStr("to"));
+		assertEquals("test", msg.getChildCData(new String[]{"message", "body"}));
+	}
+}